@@ -0,0 +1,52 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Synthetic image pairs for benchmarks.
+ */
+final class BenchmarkImages {
+
+  private BenchmarkImages() {
+  }
+
+  /**
+   * Returns a pair of square images of the given size. The first is a noisy gradient, and the
+   * second is a copy with faint noise everywhere and a visibly different block in the middle.
+   */
+  static BufferedImage[] pair(int size) {
+    Random random = new Random(size);
+    BufferedImage imgA = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+    BufferedImage imgB = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+    int[] rowA = new int[size];
+    int[] rowB = new int[size];
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        int r = clamp(255 * x / size + random.nextInt(16));
+        int g = clamp(255 * y / size + random.nextInt(16));
+        int b = clamp(128 + random.nextInt(32));
+        rowA[x] = (r << 16) | (g << 8) | b;
+        boolean block = x > size / 3 && x < size / 2 && y > size / 3 && y < size / 2;
+        int d = block ? 64 : random.nextInt(3) - 1;
+        rowB[x] = (clamp(r + d) << 16) | (clamp(g + d) << 8) | clamp(b - d);
+      }
+      imgA.setRGB(0, y, size, 1, rowA, 0, size);
+      imgB.setRGB(0, y, size, 1, rowB, 0, size);
+    }
+    return new BufferedImage[] {imgA, imgB};
+  }
+
+  /**
+   * Returns the pixels of the image.
+   */
+  static int[] rgb(BufferedImage img) {
+    int w = img.getWidth();
+    int h = img.getHeight();
+    return img.getRGB(0, 0, w, h, null, 0, w);
+  }
+
+  private static int clamp(int value) {
+    return (value < 0) ? 0 : (value > 255) ? 255 : value;
+  }
+}
@@ -0,0 +1,121 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the per-pixel comparison and end-to-end comparison with a pool of the given number
+ * of threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompareBenchmark {
+
+  @Param({"256", "1024", "2048"})
+  public int size;
+
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  @Param({"FULL", "COMPACT"})
+  public PerceptualDiff.PyramidType pyramidType;
+
+  @Param({"true", "false"})
+  public boolean exactModel;
+
+  private ForkJoinPool pool;
+  private PerceptualDiff pd;
+  private BufferedImage imgA;
+  private BufferedImage imgB;
+  private ComparisonWorkspace workspace;
+
+  private float[] aA;
+  private float[] aB;
+  private Pyramid la;
+  private float[] bA;
+  private float[] bB;
+  private Pyramid lb;
+  private double[] cpd;
+  private double[] freq;
+  private ModelTables tables;
+
+  @Setup
+  public void setUp() {
+    pool = new ForkJoinPool(threads);
+    pd = new PerceptualDiff.Builder().setPyramidType(pyramidType).setExactModel(exactModel)
+        .build();
+    BufferedImage[] pair = BenchmarkImages.pair(size);
+    imgA = pair[0];
+    imgB = pair[1];
+    workspace = new ComparisonWorkspace(size, size);
+
+    int dim = size * size;
+    aA = new float[dim];
+    aB = new float[dim];
+    la = pyramid(BenchmarkImages.rgb(imgA), aA, aB);
+    bA = new float[dim];
+    bB = new float[dim];
+    lb = pyramid(BenchmarkImages.rgb(imgB), bA, bB);
+    if (pyramidType == PerceptualDiff.PyramidType.COMPACT) {
+      // the compact pyramids hold the color planes
+      aA = aB = bA = bB = null;
+    }
+    cpd = pd.cyclesPerDegree(size);
+    freq = PerceptualDiff.frequencyWeights(cpd);
+    tables = pd.modelTables(size, cpd);
+  }
+
+  private Pyramid pyramid(int[] rgb, float[] a, float[] b) {
+    float[][] levels = new float[PerceptualDiff.MAX_PYR_LEVELS][rgb.length];
+    pd.convert(rgb, a, b, levels[0], rgb.length);
+    PerceptualDiff.construct(levels, new float[rgb.length], size, size);
+    if (pyramidType == PerceptualDiff.PyramidType.COMPACT) {
+      Pyramid.Compact pyramid = new Pyramid.Compact(new ComparisonWorkspace.Planes(),
+          rgb.length, levels.length, 100.0);
+      pyramid.storeColor(a, b, 0, rgb.length);
+      float[] stored = new float[rgb.length];
+      for (int i = 0; i < levels.length; i++) {
+        pyramid.storeLevel(i, levels[i], stored, 0, rgb.length);
+      }
+      return pyramid;
+    }
+    return new Pyramid.Full(levels, a, b, rgb.length);
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public boolean comparison() {
+    return pool.invoke(pd.new Comparison(aA, aB, la, bA, bB, lb, size, size,
+        new AtomicInteger(), null, null, pd.adaptationLevel, cpd, freq, tables,
+        new CompareMetrics()).rootTask());
+  }
+
+  @Benchmark
+  public CompareResult compare() throws IOException {
+    return pd.compare(pool, workspace, imgA, imgB, null);
+  }
+}
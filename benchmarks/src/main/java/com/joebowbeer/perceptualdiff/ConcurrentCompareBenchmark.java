@@ -0,0 +1,76 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks bursts of the given number of concurrent asynchronous comparisons, sharing one pool.
+ * The time of a burst is the latency of its slowest comparison, and the burst size divided by it
+ * is the throughput.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentCompareBenchmark {
+
+  @Param({"256"})
+  public int size;
+
+  @Param({"1", "16", "128"})
+  public int requests;
+
+  private ForkJoinPool pool;
+  private ExecutorService executor;
+  private PerceptualDiff pd;
+  private BufferedImage imgA;
+  private BufferedImage imgB;
+
+  @Setup
+  public void setUp() {
+    pool = new ForkJoinPool();
+    executor = Executors.newCachedThreadPool();
+    pd = new PerceptualDiff.Builder().build();
+    BufferedImage[] pair = BenchmarkImages.pair(size);
+    imgA = pair[0];
+    imgB = pair[1];
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+    pool.shutdown();
+  }
+
+  @Benchmark
+  public int burst() throws InterruptedException, ExecutionException {
+    CompareFuture[] futures = new CompareFuture[requests];
+    for (int i = 0; i < requests; i++) {
+      futures[i] = pd.compareAsync(pool, executor, imgA, imgB, null);
+    }
+    int failed = 0;
+    for (CompareFuture future : futures) {
+      failed += future.get().getPixelsFailed();
+    }
+    return failed;
+  }
+}
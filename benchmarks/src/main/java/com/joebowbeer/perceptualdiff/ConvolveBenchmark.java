@@ -0,0 +1,77 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks convolving and transposing a row at a time against doing so in tiles, on square
+ * images of the given width. Each invocation processes a band of 256 rows, which are stored as
+ * columns of the full size destination. Scores are per band. The 16384 pixel width needs a
+ * heap of about 2 GB.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Xmx4g"})
+@State(Scope.Thread)
+public class ConvolveBenchmark {
+
+  private static final int ROWS = 256;
+
+  @Param({"1024", "4096", "16384"})
+  public int width;
+
+  @Param({"scalar", "vector"})
+  public String kernels;
+
+  @Param({"rows", "blocked"})
+  public String loop;
+
+  private Kernels k;
+  private boolean blocked;
+  private float[] src;
+  private float[] dst;
+  private int band;
+
+  @Setup
+  public void setUp() {
+    k = kernels.equals("vector") ? Kernels.vector() : new Kernels();
+    if (k == null) {
+      throw new IllegalStateException("Vector kernels are not available");
+    }
+    blocked = loop.equals("blocked");
+    Random random = new Random(0);
+    src = new float[width * width];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = random.nextFloat() * 100;
+    }
+    dst = new float[width * width];
+  }
+
+  @Benchmark
+  public void convolveAndTranspose(Blackhole bh) {
+    // move through the image so that large destinations are not left in the cache
+    int beginRow = band;
+    band = (band + ROWS) % width;
+    if (blocked) {
+      k.convolveAndTransposeBlocked(src, dst, width, width, beginRow, beginRow + ROWS);
+    } else {
+      k.convolveAndTransposeRows(src, dst, width, width, beginRow, beginRow + ROWS);
+    }
+    bh.consume(dst);
+  }
+}
@@ -0,0 +1,100 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the scalar and vector kernels on a 1024 x 1024 image. Scores are per pixel. The
+ * forked JVM is given the incubating Vector API module, so this must be run on JDK 17 or later.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class KernelBenchmark {
+
+  private static final int SIZE = 1024;
+  private static final int DIM = SIZE * SIZE;
+  private static final int BLOCK = 64;
+
+  @Param({"scalar", "vector"})
+  public String kernels;
+
+  private Kernels k;
+  private double[] lut;
+  private int[] rgb;
+  private float[] a;
+  private float[] b;
+  private float[] lum;
+  private float[] tmp;
+  private float[][] va;
+  private float[][] vb;
+  private float[][] contrast;
+  private float[] sumContrast;
+
+  @Setup
+  public void setUp() {
+    k = kernels.equals("vector") ? Kernels.vector() : new Kernels();
+    if (k == null) {
+      throw new IllegalStateException("Vector kernels are not available");
+    }
+    lut = new double[256];
+    for (int i = 0; i < lut.length; i++) {
+      lut[i] = Math.pow(i / 255.0, 2.2);
+    }
+    rgb = BenchmarkImages.rgb(BenchmarkImages.pair(SIZE)[0]);
+    a = new float[DIM];
+    b = new float[DIM];
+    lum = new float[DIM];
+    tmp = new float[DIM];
+    k.convert(lut, 100.0, rgb, a, b, lum, 0, DIM);
+
+    Random random = new Random(0);
+    va = new float[PerceptualDiff.MAX_PYR_LEVELS][BLOCK];
+    vb = new float[PerceptualDiff.MAX_PYR_LEVELS][BLOCK];
+    for (int i = 0; i < va.length; i++) {
+      for (int j = 0; j < BLOCK; j++) {
+        va[i][j] = random.nextFloat() * 100;
+        vb[i][j] = random.nextFloat() * 100;
+      }
+    }
+    contrast = new float[PerceptualDiff.MAX_PYR_LEVELS - 2][BLOCK];
+    sumContrast = new float[BLOCK];
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DIM)
+  public float[] convert() {
+    k.convert(lut, 100.0, rgb, a, b, lum, 0, DIM);
+    return lum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DIM)
+  public float[] convolveAndTranspose() {
+    k.convolveAndTranspose(lum, tmp, SIZE, SIZE, 0, SIZE);
+    return tmp;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BLOCK)
+  public float[] contrast() {
+    k.contrast(va, vb, BLOCK, contrast, sumContrast);
+    return sumContrast;
+  }
+}
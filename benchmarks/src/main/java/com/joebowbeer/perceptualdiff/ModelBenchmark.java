@@ -0,0 +1,132 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the functions of the visual model that are evaluated for every pixel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModelBenchmark {
+
+  private static final int N = 1024;
+
+  private final double[] bases = new double[N];
+  private final double[] exponents = new double[N];
+  private final double[] luminances = new double[N];
+  private final double[] contrasts = new double[N];
+  private ModelTables tables;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    for (int i = 0; i < N; i++) {
+      bases[i] = random.nextDouble() * 2;
+      exponents[i] = random.nextDouble() * 4 - 1;
+      luminances[i] = Math.pow(10, random.nextDouble() * 6 - 3);
+      contrasts[i] = random.nextDouble();
+    }
+    double[] cpd = new double[PerceptualDiff.MAX_PYR_LEVELS];
+    for (int i = 0; i < cpd.length; i++) {
+      cpd[i] = 16.0 / (1 << i);
+    }
+    tables = new ModelTables(1024, cpd, 1);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public double fastpow() {
+    double sum = 0;
+    for (int i = 0; i < N; i++) {
+      sum += PerceptualDiff.fastpow(bases[i], exponents[i]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public double mathPow() {
+    double sum = 0;
+    for (int i = 0; i < N; i++) {
+      sum += Math.pow(bases[i], exponents[i]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public double tvi() {
+    double sum = 0;
+    for (int i = 0; i < N; i++) {
+      sum += PerceptualDiff.tvi(luminances[i]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public double csf() {
+    double sum = 0;
+    for (int i = 0; i < N; i++) {
+      sum += PerceptualDiff.csf(bases[i] * 16, luminances[i]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public double mask() {
+    double sum = 0;
+    for (int i = 0; i < N; i++) {
+      sum += PerceptualDiff.mask(contrasts[i]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public double tviTable() {
+    double sum = 0;
+    for (int i = 0; i < N; i++) {
+      sum += ModelTables.tvi(luminances[i]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public double csfTable() {
+    double sum = 0;
+    for (int i = 0; i < N; i++) {
+      sum += tables.csf(0, luminances[i]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(N)
+  public double maskTable() {
+    double sum = 0;
+    for (int i = 0; i < N; i++) {
+      sum += ModelTables.mask(contrasts[i]);
+    }
+    return sum;
+  }
+}
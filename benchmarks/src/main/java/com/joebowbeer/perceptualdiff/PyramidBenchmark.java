@@ -0,0 +1,107 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks color conversion and pyramid construction for one image. Parallel construction is
+ * measured on pools of 1 to 8 threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PyramidBenchmark {
+
+  @Param({"256", "1024", "2048"})
+  public int size;
+
+  private PerceptualDiff pd;
+  private int[] rgb;
+  private float[] a;
+  private float[] b;
+  private float[][] levels;
+  private float[] tmp;
+
+  @Setup
+  public void setUp() {
+    pd = new PerceptualDiff.Builder().build();
+    rgb = BenchmarkImages.rgb(BenchmarkImages.pair(size)[0]);
+    int dim = size * size;
+    a = new float[dim];
+    b = new float[dim];
+    levels = new float[PerceptualDiff.MAX_PYR_LEVELS][dim];
+    tmp = new float[dim];
+    pd.convert(rgb, a, b, levels[0], dim);
+  }
+
+  @Benchmark
+  public float[] convert() {
+    pd.convert(rgb, a, b, levels[0], rgb.length);
+    return levels[0];
+  }
+
+  @Benchmark
+  public float[][] construct() {
+    PerceptualDiff.construct(levels, tmp, size, size);
+    return levels;
+  }
+
+  /**
+   * Fork-join pool for parallel construction.
+   */
+  @State(Scope.Benchmark)
+  public static class Pool {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"65536"})
+    public int bandSize;
+
+    ForkJoinPool pool;
+
+    @Setup
+    public void setUp() {
+      pool = new ForkJoinPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+      pool.shutdown();
+    }
+  }
+
+  @Benchmark
+  public float[][] constructParallel(final Pool pool) {
+    pool.pool.invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        PerceptualDiff.construct(levels, tmp, size, size, pool.bandSize);
+      }
+    });
+    return levels;
+  }
+
+  @Benchmark
+  public float[] convolveAndTranspose() {
+    PerceptualDiff.convolveAndTranspose(levels[0], tmp, size, size);
+    return tmp;
+  }
+}
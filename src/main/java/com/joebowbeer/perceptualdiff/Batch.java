@@ -0,0 +1,428 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compares many pairs of images in one process. Decoding, comparison and encoding run as pipeline
+ * stages connected by bounded queues, so that the stages overlap while only a few decoded images
+ * are held in memory at a time. Each comparison stage thread reuses its own
+ * {@link ComparisonWorkspace}, and there are two of them so that one can be building pyramids
+ * while the other is comparing.
+ * <p>
+ * Given a {@link HashManifest} of the first images, the baselines, a candidate whose file hashes
+ * the same as its baseline passes without decoding either image, and one whose decoded pixels
+ * hash the same passes without decoding the baseline.
+ */
+class Batch {
+
+  private static final int DECODERS = 2;
+  private static final int COMPARATORS = 2;
+  private static final int QUEUE_CAPACITY = 4;
+
+  /**
+   * A pair of images to compare, and what became of them.
+   */
+  static class Pair {
+
+    final File fileA;
+    final File fileB;
+    final File fileDiff;
+
+    BufferedImage imgA;
+    BufferedImage imgB;
+    BufferedImage imgDiff;
+    CompareResult result;
+    String error;
+    long decodeNanos;
+    long compareNanos;
+    long encodeNanos;
+
+    Pair(File fileA, File fileB, File fileDiff) {
+      this.fileA = fileA;
+      this.fileB = fileB;
+      this.fileDiff = fileDiff;
+    }
+  }
+
+  /** Tells a comparison stage thread that there are no more pairs. */
+  private static final Pair END = new Pair(null, null, null);
+
+  private final PerceptualDiff pd;
+  private final ForkJoinPool pool;
+  private final int overview;
+  private final HashManifest hashes;
+
+  /**
+   * Creates a batch comparison. PNG difference images are written from the failure maps of the
+   * results, so <code>pd</code> should record them.
+   *
+   * @param pd comparison parameters
+   * @param pool fork-join pool for comparison tasks
+   * @param overview how many powers of two to reduce PNG difference images, which are then
+   *     written as overviews with sidecars, or zero for full-size images
+   * @param hashes hashes of the first images, which are added to as they are decoded, or
+   *     <code>null</code> to decode and compare every pair
+   */
+  Batch(PerceptualDiff pd, ForkJoinPool pool, int overview, HashManifest hashes) {
+    this.pd = pd;
+    this.pool = pool;
+    this.overview = overview;
+    this.hashes = hashes;
+  }
+
+  /**
+   * Reads pairs from a manifest. Each line names the first image, the second image and optionally
+   * a difference image to write, separated by tabs. Blank lines and lines starting with '#' are
+   * ignored.
+   *
+   * @param manifest file to read
+   * @param dir directory against which relative paths are resolved, or <code>null</code> for the
+   *     current directory
+   */
+  static List<Pair> readManifest(File manifest, File dir) throws IOException {
+    List<Pair> pairs = new ArrayList<Pair>();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(Files.newInputStream(manifest.toPath()), StandardCharsets.UTF_8));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\t");
+        if (fields.length < 2 || fields.length > 3) {
+          throw new IOException(String.format("%s:%d: expected 2 or 3 tab-separated fields",
+              manifest, lineNumber));
+        }
+        pairs.add(new Pair(Main.resolve(dir, fields[0]), Main.resolve(dir, fields[1]),
+            (fields.length == 3) ? Main.resolve(dir, fields[2]) : null));
+      }
+    } finally {
+      reader.close();
+    }
+    return pairs;
+  }
+
+  /**
+   * Pairs each image file under <code>dirA</code> with the file at the same relative path under
+   * <code>dirB</code>.
+   *
+   * @param dirA root of first tree
+   * @param dirB root of second tree
+   * @param dirDiff root of tree to receive png difference images (optional)
+   */
+  static List<Pair> walk(final File dirA, final File dirB, final File dirDiff)
+      throws IOException {
+    final Set<String> suffixes = imageSuffixes();
+    final Path rootA = dirA.toPath();
+    final List<String> names = new ArrayList<String>();
+    Files.walkFileTree(rootA, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        String name = rootA.relativize(file).toString();
+        if (isImage(name, suffixes)) {
+          names.add(name);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    String[] sorted = names.toArray(new String[names.size()]);
+    Arrays.sort(sorted);
+    List<Pair> pairs = new ArrayList<Pair>(sorted.length);
+    for (String name : sorted) {
+      File fileDiff = (dirDiff != null)
+          ? new File(dirDiff, name.substring(0, name.lastIndexOf('.')) + ".png")
+          : null;
+      pairs.add(new Pair(new File(dirA, name), new File(dirB, name), fileDiff));
+    }
+    return pairs;
+  }
+
+  /**
+   * Returns the lower-case suffixes of the image files that can be decoded.
+   */
+  static Set<String> imageSuffixes() {
+    Set<String> suffixes = new HashSet<String>();
+    for (String suffix : ImageIO.getReaderFileSuffixes()) {
+      suffixes.add(suffix.toLowerCase(Locale.ROOT));
+    }
+    return suffixes;
+  }
+
+  /**
+   * Returns whether the file name has one of the given suffixes, which are in lower case.
+   */
+  static boolean isImage(String name, Set<String> suffixes) {
+    int extIndex = name.lastIndexOf('.');
+    return extIndex != -1
+        && suffixes.contains(name.substring(extIndex + 1).toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Compares all pairs, writing one JSON object per line to the summary as each pair completes.
+   * A pair that fails to decode, compare or encode, even with an error such as running out of
+   * memory, is reported with its error and does not stop the others.
+   *
+   * @return number of pairs that did not pass
+   */
+  int run(final List<Pair> pairs, PrintStream summary) throws InterruptedException {
+    final BlockingQueue<Pair> decoded = new ArrayBlockingQueue<Pair>(QUEUE_CAPACITY);
+    final BlockingQueue<Pair> compared = new ArrayBlockingQueue<Pair>(QUEUE_CAPACITY);
+
+    // decode stage: the last decoder to finish tells the comparators to stop
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger decoders = new AtomicInteger(DECODERS);
+    for (int i = 0; i < DECODERS; i++) {
+      start("decode-" + i, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            int index;
+            while ((index = next.getAndIncrement()) < pairs.size()) {
+              Pair pair = pairs.get(index);
+              decode(pair);
+              decoded.put(pair);
+            }
+            if (decoders.decrementAndGet() == 0) {
+              for (int j = 0; j < COMPARATORS; j++) {
+                decoded.put(END);
+              }
+            }
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+
+    // compare stage
+    for (int i = 0; i < COMPARATORS; i++) {
+      start("compare-" + i, new Runnable() {
+        @Override
+        public void run() {
+          ComparisonWorkspace workspace = new ComparisonWorkspace();
+          try {
+            Pair pair;
+            while ((pair = decoded.take()) != END) {
+              compare(pair, workspace);
+              compared.put(pair);
+            }
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+
+    // encode stage
+    int failures = 0;
+    for (int i = 0; i < pairs.size(); i++) {
+      Pair pair = compared.take();
+      encode(pair);
+      if (pair.result == null || !pair.result.isPassed()) {
+        failures++;
+      }
+      summary.println(toJson(pair));
+    }
+    summary.flush();
+    return failures;
+  }
+
+  private static void start(String name, Runnable runnable) {
+    Thread thread = new Thread(runnable, "perceptualdiff-" + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void decode(Pair pair) {
+    long start = System.nanoTime();
+    try {
+      // non-PNG difference images are drawn by the comparison
+      if (hashes != null && (pair.fileDiff == null || DiffWriter.isPng(pair.fileDiff))) {
+        decodeHashed(pair);
+      } else {
+        pair.imgA = read(pair.fileA);
+        pair.imgB = read(pair.fileB);
+      }
+    } catch (Throwable ex) {
+      // an error such as running out of memory fails this pair, and the stage goes on
+      pair.imgA = null;
+      pair.imgB = null;
+      pair.error = ex.toString();
+    }
+    pair.decodeNanos = System.nanoTime() - start;
+  }
+
+  /**
+   * Decodes the images of the pair unless the hashes of the first image settle it, and records
+   * the hashes of the first image if they were missing or stale.
+   */
+  private void decodeHashed(Pair pair) throws IOException {
+    HashManifest.Entry baseline = hashes.get(pair.fileA);
+    if (baseline != null) {
+      checkFile(pair.fileB);
+      if (baseline.length == pair.fileB.length()
+          && baseline.fileHash == ContentHash.file(pair.fileB)) {
+        pair.result = pd.identical(baseline.width, baseline.height, "Files are identical");
+        return;
+      }
+    }
+    pair.imgB = read(pair.fileB);
+    if (baseline != null && baseline.width == pair.imgB.getWidth()
+        && baseline.height == pair.imgB.getHeight()
+        && baseline.pixelHash == ContentHash.pixels(pair.imgB)) {
+      pair.result = pd.identical(baseline.width, baseline.height, "Images are binary identical");
+      pair.imgB = null;
+      return;
+    }
+    pair.imgA = read(pair.fileA);
+    if (baseline == null) {
+      hashes.put(pair.fileA, pair.imgA);
+    }
+  }
+
+  private static void checkFile(File file) throws IOException {
+    if (!file.isFile()) {
+      throw new IOException("No such file: " + file);
+    }
+  }
+
+  /**
+   * Decodes the image file, failing if it does not exist or its format is not supported.
+   */
+  static BufferedImage read(File file) throws IOException {
+    checkFile(file);
+    BufferedImage img = ImageIO.read(file);
+    if (img == null) {
+      throw new IOException("Unsupported image format: " + file);
+    }
+    return img;
+  }
+
+  private void compare(Pair pair, ComparisonWorkspace workspace) {
+    if (pair.error != null || pair.result != null) {
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      if (pair.fileDiff != null && !DiffWriter.isPng(pair.fileDiff)) {
+        pair.imgDiff = pd.createDiffImage(pair.imgA.getWidth(), pair.imgA.getHeight());
+      }
+      pair.result = pd.compare(pool, workspace, pair.imgA, pair.imgB, pair.imgDiff);
+    } catch (Throwable ex) {
+      pair.imgDiff = null;
+      pair.error = ex.toString();
+    }
+    pair.imgA = null;
+    pair.imgB = null;
+    pair.compareNanos = System.nanoTime() - start;
+  }
+
+  private void encode(Pair pair) {
+    FailureMap map = (pair.result != null) ? pair.result.getFailureMap() : null;
+    if (pair.imgDiff == null && (pair.fileDiff == null || map == null)) {
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      File parent = pair.fileDiff.getAbsoluteFile().getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("Cannot create directory: " + parent);
+      }
+      if (pair.imgDiff != null) {
+        Main.write(pair.imgDiff, pair.fileDiff);
+      } else {
+        DiffWriter.write(map, pair.fileDiff, overview, pool);
+      }
+    } catch (Throwable ex) {
+      pair.error = ex.toString();
+    }
+    pair.imgDiff = null;
+    pair.encodeNanos = System.nanoTime() - start;
+  }
+
+  /**
+   * Formats the outcome of comparing the pair as a single line of JSON.
+   */
+  static String toJson(Pair pair) {
+    StringBuilder sb = new StringBuilder("{");
+    sb.append("\"imageA\":").append(quote(pair.fileA.getPath()));
+    sb.append(",\"imageB\":").append(quote(pair.fileB.getPath()));
+    if (pair.error != null) {
+      sb.append(",\"status\":\"ERROR\"");
+      sb.append(",\"error\":").append(quote(pair.error));
+    } else {
+      sb.append(",\"status\":").append(pair.result.isPassed() ? "\"PASS\"" : "\"FAIL\"");
+      sb.append(",\"pixelsFailed\":").append(pair.result.getPixelsFailed());
+      sb.append(",\"pixelsCompared\":").append(pair.result.getPixelsCompared());
+      sb.append(",\"message\":").append(quote(pair.result.getMessage()));
+      FailureMap map = pair.result.getFailureMap();
+      if (map != null) {
+        sb.append(",\"regions\":");
+        appendRegions(sb, map.getRegions());
+      }
+    }
+    if (pair.fileDiff != null) {
+      sb.append(",\"imageDiff\":").append(quote(pair.fileDiff.getPath()));
+    }
+    sb.append(String.format(Locale.ROOT,
+        ",\"decodeMillis\":%.3f,\"compareMillis\":%.3f,\"encodeMillis\":%.3f}",
+        pair.decodeNanos / 1e6, pair.compareNanos / 1e6, pair.encodeNanos / 1e6));
+    return sb.toString();
+  }
+
+  /**
+   * Appends the bounds of failing regions as a JSON array of [x, y, width, height] arrays.
+   */
+  static void appendRegions(StringBuilder sb, List<Rectangle> regions) {
+    sb.append('[');
+    String separator = "";
+    for (Rectangle region : regions) {
+      sb.append(separator).append(String.format("[%d,%d,%d,%d]",
+          region.x, region.y, region.width, region.height));
+      separator = ",";
+    }
+    sb.append(']');
+  }
+
+  private static String quote(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+}
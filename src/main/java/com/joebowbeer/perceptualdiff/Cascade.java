@@ -0,0 +1,226 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * The coarse stage of a cascade comparison: the images reduced to a grid of cells of
+ * {@link #CELL_SIZE} pixels square, each holding the extremes of the converted values of its
+ * pixels.
+ * <p>
+ * The extremes bound the values that the comparison would compute for every pixel of a cell. Its
+ * adaptation luminance is a weighted average of the luminance of the pixels within
+ * <code>2 * adaptationLevel</code> of it, and so lies between the extremes of the cells nearby,
+ * and the elevation factor lies between 1 and 10. A cell therefore passes if its largest
+ * luminance difference is below the threshold of visibility of its darkest neighborhood, and, for
+ * color, if its largest color difference is below 1. In the other cells, a pixel surely fails if
+ * its luminance difference is above ten times the threshold of its brightest neighborhood, or if
+ * its color is tested and its color difference is above 10. A cell in which every pixel surely
+ * fails is failing, and every other cell is ambiguous.
+ * <p>
+ * The threshold of visibility is divided by the safety margin when testing for a pass, and
+ * multiplied by it when testing for a failure, which absorbs the error of the approximations and
+ * lookup tables used by the comparison, whose threshold function is not quite monotonic.
+ */
+final class Cascade {
+
+  static final int CELL_SIZE = 8;
+
+  static final byte PASS = 0;
+  static final byte FAIL = 1;
+  static final byte AMBIGUOUS = 2;
+
+  final int width;
+  final int height;
+  final int columns;
+  final int rows;
+
+  /* extremes of each cell */
+  private final float[] minLum;
+  private final float[] maxLum;
+  private final float[] maxDelta;
+  private final float[] maxDeltaE;
+
+  private final byte[] state;
+
+  Cascade(int width, int height) {
+    this.width = width;
+    this.height = height;
+    columns = (width + CELL_SIZE - 1) / CELL_SIZE;
+    rows = (height + CELL_SIZE - 1) / CELL_SIZE;
+    int cells = columns * rows;
+    minLum = new float[cells];
+    maxLum = new float[cells];
+    maxDelta = new float[cells];
+    maxDeltaE = new float[cells];
+    state = new byte[cells];
+  }
+
+  /**
+   * Finds the extremes of a range of rows of cells, given the luminance and color planes of both
+   * images.
+   *
+   * @param beginRow first row of cells, inclusive
+   * @param endRow last row of cells, exclusive
+   */
+  void scan(float[] lumA, float[] aA, float[] aB, float[] lumB, float[] bA, float[] bB,
+      int beginRow, int endRow) {
+    for (int row = beginRow; row < endRow; row++) {
+      int y0 = row * CELL_SIZE;
+      int y1 = Math.min(y0 + CELL_SIZE, height);
+      for (int column = 0, cell = row * columns; column < columns; column++, cell++) {
+        int x0 = column * CELL_SIZE;
+        int x1 = Math.min(x0 + CELL_SIZE, width);
+        float lo = Float.POSITIVE_INFINITY;
+        float hi = Float.NEGATIVE_INFINITY;
+        float hiDelta = 0;
+        float hiDeltaE = 0;
+        for (int y = y0; y < y1; y++) {
+          for (int index = y * width + x0, end = y * width + x1; index < end; index++) {
+            float la = lumA[index];
+            float lb = lumB[index];
+            lo = Math.min(lo, Math.min(la, lb));
+            hi = Math.max(hi, Math.max(la, lb));
+            float delta = Math.abs(la - lb);
+            hiDelta = Math.max(hiDelta, delta);
+            float da = aA[index] - bA[index];
+            float db = aB[index] - bB[index];
+            hiDeltaE = Math.max(hiDeltaE, da * da + db * db);
+          }
+        }
+        minLum[cell] = lo;
+        maxLum[cell] = hi;
+        maxDelta[cell] = hiDelta;
+        maxDeltaE[cell] = hiDeltaE;
+      }
+    }
+  }
+
+  /**
+   * Classifies every cell as passing, failing or ambiguous, and counts the pixels of the cells
+   * that do not pass which surely fail.
+   *
+   * @param radius distance in pixels over which the adaptation luminance is averaged
+   * @param margin safety margin, at least 1
+   * @param luminanceOnly whether the color test is skipped
+   * @param colorFactor how much of color to use
+   * @return the number of pixels that surely fail
+   */
+  int classify(float[] lumA, float[] aA, float[] aB, float[] lumB, float[] bA, float[] bB,
+      int radius, double margin, boolean luminanceOnly, double colorFactor) {
+    int reach = (radius + CELL_SIZE - 1) / CELL_SIZE;
+    float[] lo = dilate(minLum, reach, false);
+    float[] hi = dilate(maxLum, reach, true);
+    int failed = 0;
+    for (int row = 0, cell = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++, cell++) {
+        double loAdapt = Math.max(lo[cell], 1e-5f);
+        double hiAdapt = Math.max(hi[cell], 1e-5f);
+        boolean colorPasses = luminanceOnly || hiAdapt * margin < 10.0
+            || maxDeltaE[cell] * colorFactor * margin <= 1.0;
+        if (colorPasses && maxDelta[cell] * margin <= PerceptualDiff.tvi(loAdapt, false)) {
+          state[cell] = PASS;
+          continue;
+        }
+        // a pixel surely fails if its luminance difference exceeds ten times the threshold, or
+        // if its color is tested and its color difference exceeds ten
+        double lumLimit = 10.0 * margin * PerceptualDiff.tvi(hiAdapt, false);
+        boolean colorTested = !luminanceOnly && loAdapt >= 10.0 * margin;
+        double colorLimit = 10.0 * margin / colorFactor;
+        int x0 = column * CELL_SIZE;
+        int x1 = Math.min(x0 + CELL_SIZE, width);
+        int y0 = row * CELL_SIZE;
+        int y1 = Math.min(y0 + CELL_SIZE, height);
+        int count = 0;
+        for (int y = y0; y < y1; y++) {
+          for (int index = y * width + x0, end = y * width + x1; index < end; index++) {
+            float da = aA[index] - bA[index];
+            float db = aB[index] - bB[index];
+            if (Math.abs(lumA[index] - lumB[index]) > lumLimit
+                || (colorTested && da * da + db * db > colorLimit)) {
+              count++;
+            }
+          }
+        }
+        state[cell] = (count == (x1 - x0) * (y1 - y0)) ? FAIL : AMBIGUOUS;
+        failed += count;
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * Returns the minimum or maximum of the values of the cells within <code>reach</code> cells
+   * of each cell, including the cell itself.
+   */
+  private float[] dilate(float[] values, int reach, boolean max) {
+    float[] tmp = new float[values.length];
+    for (int row = 0; row < rows; row++) {
+      int offset = row * columns;
+      for (int column = 0; column < columns; column++) {
+        float f = values[offset + column];
+        for (int c = Math.max(column - reach, 0), end = Math.min(column + reach + 1, columns);
+            c < end; c++) {
+          float v = values[offset + c];
+          f = max ? Math.max(f, v) : Math.min(f, v);
+        }
+        tmp[offset + column] = f;
+      }
+    }
+    float[] dst = new float[values.length];
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        float f = tmp[row * columns + column];
+        for (int r = Math.max(row - reach, 0), end = Math.min(row + reach + 1, rows); r < end;
+            r++) {
+          float v = tmp[r * columns + column];
+          f = max ? Math.max(f, v) : Math.min(f, v);
+        }
+        dst[row * columns + column] = f;
+      }
+    }
+    return dst;
+  }
+
+  /**
+   * Adds the bounds of the tiles that hold any failing or ambiguous cells, which must be compared
+   * at full resolution. Up to <code>maxRun</code> adjacent tiles in a row are merged into one
+   * box.
+   *
+   * @param tileSize tile size in pixels, a multiple of the cell size
+   * @param maxRun maximum number of tiles in one box
+   * @param boxes receives the bounds of the tiles
+   */
+  void findUnresolvedTiles(int tileSize, int maxRun, List<Rectangle> boxes) {
+    int tileCells = tileSize / CELL_SIZE;
+    for (int y0 = 0; y0 < height; y0 += tileSize) {
+      int y1 = Math.min(y0 + tileSize, height);
+      Rectangle run = null;
+      int runLength = 0;
+      for (int x0 = 0; x0 < width; x0 += tileSize) {
+        int x1 = Math.min(x0 + tileSize, width);
+        boolean unresolved = false;
+        for (int row = y0 / CELL_SIZE, rowEnd = Math.min(row + tileCells, rows);
+            !unresolved && row < rowEnd; row++) {
+          for (int column = x0 / CELL_SIZE, end = Math.min(column + tileCells, columns);
+              column < end; column++) {
+            if (state[row * columns + column] != PASS) {
+              unresolved = true;
+              break;
+            }
+          }
+        }
+        if (!unresolved) {
+          run = null;
+        } else if (run != null && runLength < maxRun) {
+          run.width = x1 - run.x;
+          runLength++;
+        } else {
+          run = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+          runLength = 1;
+          boxes.add(run);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package com.joebowbeer.perceptualdiff;
+
+/**
+ * Reports comparisons to an event recorder.
+ * <p>
+ * This class records nothing. On Java 17 and later, the multi-release jar also holds
+ * <code>FlightRecorderEvents</code>, which commits a Java Flight Recorder event for each
+ * comparison, and is selected at runtime when the <code>jdk.jfr</code> module is present.
+ */
+class CompareEvents {
+
+  private static final String FLIGHT_RECORDER_EVENTS =
+      "com.joebowbeer.perceptualdiff.FlightRecorderEvents";
+
+  /** The selected implementation. */
+  static final CompareEvents INSTANCE = select();
+
+  private static CompareEvents select() {
+    try {
+      return (CompareEvents) Class.forName(FLIGHT_RECORDER_EVENTS).getDeclaredConstructor()
+          .newInstance();
+    } catch (ReflectiveOperationException | LinkageError ex) {
+      Log.v("Flight recorder events not available: " + ex);
+      return new CompareEvents();
+    }
+  }
+
+  /**
+   * Reports the start of a comparison.
+   *
+   * @return the pending event, which its metrics hold until it is committed, or
+   *     <code>null</code> if none is recorded
+   */
+  Object begin() {
+    return null;
+  }
+
+  /**
+   * Reports the end of a comparison, before its result is recorded.
+   *
+   * @param event the pending event, or <code>null</code>
+   */
+  void end(Object event) {
+  }
+
+  /**
+   * Reports a finished comparison, committing the event that began with its metrics.
+   */
+  void commit(CompareResult result, CompareMetrics metrics) {
+  }
+}
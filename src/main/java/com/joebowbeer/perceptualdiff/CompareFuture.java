@@ -0,0 +1,145 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending result of a comparison started by one of the <code>compareAsync</code> methods of
+ * {@link PerceptualDiff}.
+ * <p>
+ * Cancelling the comparison also stops the comparison tasks running in the fork-join pool, at
+ * the end of the block of pixels each is comparing. Decoding and pyramid construction run to the
+ * end of their stage. Listeners are run once the comparison completes, fails or is cancelled, so
+ * that callers need not block on {@link #get()}.
+ */
+public final class CompareFuture implements Future<CompareResult> {
+
+  private final Task task;
+
+  /** Listeners and their executors, or null once they have been run. */
+  private List<Runnable> listeners = new ArrayList<Runnable>();
+
+  /** Metrics of the running comparison, which carry its cancellation to the tasks. */
+  private volatile CompareMetrics metrics;
+
+  /**
+   * @param measureAllocation whether the metrics measure the bytes allocated
+   */
+  CompareFuture(final boolean measureAllocation, final Work work) {
+    task = new Task(new Callable<CompareResult>() {
+      @Override
+      public CompareResult call() throws Exception {
+        CompareMetrics metrics = new CompareMetrics(measureAllocation);
+        started(metrics);
+        return work.run(metrics);
+      }
+    });
+  }
+
+  /**
+   * The work of a comparison, which reports to the given metrics and stops its tasks when they
+   * are cancelled.
+   */
+  interface Work {
+    CompareResult run(CompareMetrics metrics) throws Exception;
+  }
+
+  /**
+   * Returns the runnable that performs the comparison.
+   */
+  Runnable runnable() {
+    return task;
+  }
+
+  /**
+   * Attaches the metrics of the comparison once it has started, cancelling them if this future
+   * has already been cancelled.
+   */
+  private void started(CompareMetrics metrics) {
+    this.metrics = metrics;
+    if (isCancelled()) {
+      metrics.cancel();
+    }
+  }
+
+  /**
+   * Runs the listener on the executor when the comparison is done, or right away if it is done
+   * already.
+   */
+  public void addListener(final Runnable listener, final Executor executor) {
+    Runnable runnable = new Runnable() {
+      @Override
+      public void run() {
+        executor.execute(listener);
+      }
+    };
+    synchronized (this) {
+      if (listeners != null) {
+        listeners.add(runnable);
+        return;
+      }
+    }
+    runnable.run();
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    boolean cancelled = task.cancel(mayInterruptIfRunning);
+    CompareMetrics running = metrics;
+    if (cancelled && running != null) {
+      running.cancel();
+    }
+    return cancelled;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return task.isCancelled();
+  }
+
+  @Override
+  public boolean isDone() {
+    return task.isDone();
+  }
+
+  @Override
+  public CompareResult get() throws InterruptedException, ExecutionException {
+    return task.get();
+  }
+
+  @Override
+  public CompareResult get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    return task.get(timeout, unit);
+  }
+
+  private class Task extends FutureTask<CompareResult> {
+
+    Task(Callable<CompareResult> callable) {
+      super(callable);
+    }
+
+    @Override
+    protected void done() {
+      List<Runnable> done;
+      synchronized (CompareFuture.this) {
+        done = listeners;
+        listeners = null;
+      }
+      for (Runnable listener : done) {
+        try {
+          listener.run();
+        } catch (RuntimeException ex) {
+          Log.w("Listener failed: " + ex);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the time of one comparison went, and how much work it did.
+ * <p>
+ * Stage times are wall clock times of the thread that called <code>compare</code>, and stages
+ * that did not run take no time. Regions and tiles that are compared one at a time are converted,
+ * blurred and compared together, so all of their time counts as {@link Stage#COMPARE}.
+ */
+public final class CompareMetrics {
+
+  /**
+   * Stages of a comparison, in the order in which they run.
+   */
+  public enum Stage {
+    /** Decoding image files. */
+    DECODE,
+    /** Reading pixels from the images and checking them for identity. */
+    READ,
+    /** Converting the images and resolving what it can from the coarse stage of a cascade. */
+    CASCADE,
+    /** Converting the images and constructing their pyramids. */
+    PYRAMID,
+    /** Comparing pixels, including the regions and tiles that are compared separately. */
+    COMPARE,
+    /** Writing the difference image. */
+    WRITE
+  }
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  private final long[] stageNanos = new long[Stage.values().length];
+  private final long startNanos;
+  private final long startBytes;
+  private long totalNanos;
+  private long bytesAllocated = -1;
+  private long pixels;
+
+  /** Whole-image pyramids constructed or loaded, set by the thread that called compare. */
+  int pyramidsConstructed;
+
+  /* updated by comparison tasks */
+  final AtomicLong pixelsEvaluated = new AtomicLong();
+  final AtomicLong tasksForked = new AtomicLong();
+
+  /** Event that began with the comparison, committed when its result is recorded. */
+  final Object event;
+
+  /** Set when the comparison is cancelled, and read by its tasks. */
+  private volatile boolean cancelled;
+
+  CompareMetrics() {
+    this(false);
+  }
+
+  /**
+   * @param measureAllocation whether to measure the bytes allocated during the comparison
+   */
+  CompareMetrics(boolean measureAllocation) {
+    startNanos = System.nanoTime();
+    startBytes = measureAllocation ? allocatedBytes() : -1;
+    event = CompareEvents.INSTANCE.begin();
+  }
+
+  /**
+   * Adds the time since <code>start</code> to a stage.
+   *
+   * @return the current time, which starts the next stage
+   */
+  long lap(Stage stage, long start) {
+    long now = System.nanoTime();
+    stageNanos[stage.ordinal()] += now - start;
+    return now;
+  }
+
+  void cancel() {
+    cancelled = true;
+  }
+
+  boolean isCancelled() {
+    return cancelled;
+  }
+
+  void setPixels(long pixels) {
+    this.pixels = pixels;
+  }
+
+  /**
+   * Stops the clock at the end of the comparison.
+   */
+  void finish() {
+    totalNanos = System.nanoTime() - startNanos;
+    CompareEvents.INSTANCE.end(event);
+    if (startBytes >= 0) {
+      long endBytes = allocatedBytes();
+      // threads that ended meanwhile take their counts with them
+      bytesAllocated = (endBytes >= 0) ? Math.max(0, endBytes - startBytes) : -1;
+    }
+  }
+
+  /**
+   * Returns the nanoseconds spent in a stage.
+   */
+  public long getNanos(Stage stage) {
+    return stageNanos[stage.ordinal()];
+  }
+
+  /**
+   * Returns the nanoseconds spent in the whole comparison.
+   */
+  public long getTotalNanos() {
+    return totalNanos;
+  }
+
+  /**
+   * Returns the approximate number of bytes allocated during the comparison, or -1 if it was not
+   * measured. Allocation is only measured when {@linkplain
+   * PerceptualDiff.Builder#setMeasureAllocation requested}, and then counts every thread of the
+   * process, so it includes any other work done meanwhile, such as concurrent comparisons.
+   */
+  public long getBytesAllocated() {
+    return bytesAllocated;
+  }
+
+  /**
+   * Returns the number of pixels in each image, or zero if their sizes do not match.
+   */
+  public long getPixels() {
+    return pixels;
+  }
+
+  /**
+   * Returns the number of whole-image pyramids that were constructed or loaded from a cache: two
+   * when whole images are compared, one when the pyramid of the first image is reused from the
+   * previous comparison of a {@link FrameSequence}, and none when the images are identical or
+   * their regions or tiles are compared separately.
+   */
+  public int getPyramidsConstructed() {
+    return pyramidsConstructed;
+  }
+
+  /**
+   * Returns the number of pixels whose visibility was evaluated. The others were skipped because
+   * they were unchanged, resolved by a cascade, or cancelled when a comparison failed fast.
+   */
+  public long getPixelsEvaluated() {
+    return pixelsEvaluated.get();
+  }
+
+  /**
+   * Returns the number of pixels that were not evaluated.
+   */
+  public long getPixelsSkipped() {
+    return Math.max(0, pixels - pixelsEvaluated.get());
+  }
+
+  /**
+   * Returns the number of comparison tasks that were forked to split the work.
+   */
+  public long getTasksForked() {
+    return tasksForked.get();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Stage stage : Stage.values()) {
+      long nanos = getNanos(stage);
+      if (nanos != 0) {
+        sb.append(String.format("%s %.1f ms, ", stage.name().toLowerCase(Locale.ROOT),
+            nanos / 1e6));
+      }
+    }
+    sb.append(String.format("total %.1f ms; %d of %d pixels evaluated, %d tasks forked",
+        totalNanos / 1e6, getPixelsEvaluated(), pixels, getTasksForked()));
+    if (bytesAllocated >= 0) {
+      sb.append(String.format(", %d KB allocated", bytesAllocated >> 10));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns the bytes allocated so far by all live threads, or -1 if not measured.
+   */
+  private static long allocatedBytes() {
+    if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+    if (!threads.isThreadAllocatedMemorySupported()
+        || !threads.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    long total = 0;
+    for (long bytes : threads.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+      if (bytes > 0) {
+        total += bytes;
+      }
+    }
+    return total;
+  }
+}
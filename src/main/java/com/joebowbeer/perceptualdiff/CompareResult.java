@@ -0,0 +1,124 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Outcome of comparing two images.
+ */
+public class CompareResult {
+
+  private final boolean passed;
+  private final int pixelsFailed;
+  private final long pixelsCompared;
+  private final String message;
+  private final FailureMap failureMap;
+  private final CompareMetrics metrics;
+  private final BufferedImage diffImage;
+
+  CompareResult(boolean passed, int pixelsFailed, long pixelsCompared, String message) {
+    this(passed, pixelsFailed, pixelsCompared, message, null, null);
+  }
+
+  CompareResult(boolean passed, int pixelsFailed, long pixelsCompared, String message,
+      FailureMap failureMap, CompareMetrics metrics) {
+    this(passed, pixelsFailed, pixelsCompared, message, failureMap, metrics, null);
+  }
+
+  private CompareResult(boolean passed, int pixelsFailed, long pixelsCompared, String message,
+      FailureMap failureMap, CompareMetrics metrics, BufferedImage diffImage) {
+    this.passed = passed;
+    this.pixelsFailed = pixelsFailed;
+    this.pixelsCompared = pixelsCompared;
+    this.message = message;
+    this.failureMap = failureMap;
+    this.metrics = metrics;
+    this.diffImage = diffImage;
+  }
+
+  /**
+   * Returns this result with the given failure map.
+   */
+  CompareResult withFailureMap(FailureMap failureMap) {
+    return new CompareResult(passed, pixelsFailed, pixelsCompared, message, failureMap,
+        metrics, diffImage);
+  }
+
+  /**
+   * Returns this result with the given metrics.
+   */
+  CompareResult withMetrics(CompareMetrics metrics) {
+    return new CompareResult(passed, pixelsFailed, pixelsCompared, message, failureMap,
+        metrics, diffImage);
+  }
+
+  /**
+   * Returns this result with the difference image that the comparison created.
+   */
+  CompareResult withDiffImage(BufferedImage diffImage) {
+    return new CompareResult(passed, pixelsFailed, pixelsCompared, message, failureMap,
+        metrics, diffImage);
+  }
+
+  /**
+   * Returns the difference image that the comparison created once it knew the size of the
+   * images, or <code>null</code> if it did not create one.
+   */
+  BufferedImage getDiffImage() {
+    return diffImage;
+  }
+
+  /**
+   * Returns whether the images are perceptually indistinguishable.
+   */
+  public boolean isPassed() {
+    return passed;
+  }
+
+  /**
+   * Returns the number of pixels that are visibly different. This is a lower bound if the
+   * comparison failed fast, or if the coarse stage of a cascade found enough failing pixels to
+   * fail the comparison without comparing the rest, and zero if the images could not be compared
+   * pixel by pixel.
+   */
+  public int getPixelsFailed() {
+    return pixelsFailed;
+  }
+
+  /**
+   * Returns the number of pixels compared at full resolution. This is less than the number of
+   * pixels in the image when unchanged regions, or regions that a cascade comparison resolved
+   * from its coarse stage, were skipped.
+   */
+  public long getPixelsCompared() {
+    return pixelsCompared;
+  }
+
+  /**
+   * Returns a short description of the outcome.
+   */
+  public String getMessage() {
+    return message;
+  }
+
+  /**
+   * Returns where the images differ, if a failure map was requested and the images were compared
+   * pixel by pixel, or <code>null</code> otherwise.
+   *
+   * @see PerceptualDiff.Builder#setFailureMap
+   */
+  public FailureMap getFailureMap() {
+    return failureMap;
+  }
+
+  /**
+   * Returns where the time of the comparison went, and how much work it did.
+   */
+  public CompareMetrics getMetrics() {
+    return metrics;
+  }
+
+  @Override
+  public String toString() {
+    return (passed ? "PASS: " : "FAIL: ") + message;
+  }
+}
@@ -0,0 +1,152 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Accumulates the metrics of every comparison, publishes them through JMX, and reports each
+ * comparison to {@link CompareEvents}. Setting the system property
+ * <code>perceptualdiff.jmx</code> to <code>false</code> leaves the statistics unpublished.
+ */
+final class CompareStats implements CompareStatsMXBean {
+
+  static final String OBJECT_NAME = "com.joebowbeer.perceptualdiff:type=CompareStats";
+
+  private static final int BUCKETS = 40;
+
+  private static final CompareMetrics.Stage[] STAGES = CompareMetrics.Stage.values();
+
+  /** Statistics of this process. */
+  static final CompareStats INSTANCE = register(new CompareStats());
+
+  private long comparisons;
+  private long failures;
+  private long pixels;
+  private long pixelsEvaluated;
+  private long tasksForked;
+  private long bytesAllocated;
+  private final long[] stageNanos = new long[STAGES.length];
+  private final long[][] stageHistograms = new long[STAGES.length][BUCKETS];
+  private final long[] totalHistogram = new long[BUCKETS];
+
+  private static CompareStats register(CompareStats stats) {
+    if (!Boolean.parseBoolean(System.getProperty("perceptualdiff.jmx", "true"))) {
+      return stats;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          stats, new ObjectName(OBJECT_NAME));
+    } catch (JMException | SecurityException ex) {
+      Log.v("Comparison statistics not published: " + ex);
+    }
+    return stats;
+  }
+
+  /**
+   * Adds the metrics of a finished comparison.
+   */
+  void record(CompareResult result, CompareMetrics metrics) {
+    synchronized (this) {
+      comparisons++;
+      if (!result.isPassed()) {
+        failures++;
+      }
+      pixels += metrics.getPixels();
+      pixelsEvaluated += metrics.getPixelsEvaluated();
+      tasksForked += metrics.getTasksForked();
+      bytesAllocated += Math.max(0, metrics.getBytesAllocated());
+      for (int i = 0; i < STAGES.length; i++) {
+        long nanos = metrics.getNanos(STAGES[i]);
+        if (nanos != 0) {
+          stageNanos[i] += nanos;
+          stageHistograms[i][bucket(nanos)]++;
+        }
+      }
+      totalHistogram[bucket(metrics.getTotalNanos())]++;
+    }
+    CompareEvents.INSTANCE.commit(result, metrics);
+  }
+
+  /**
+   * Returns the histogram bucket of a time: the number of bits in its microseconds.
+   */
+  private static int bucket(long nanos) {
+    return Math.min(64 - Long.numberOfLeadingZeros(nanos / 1000), BUCKETS - 1);
+  }
+
+  @Override
+  public synchronized long getComparisons() {
+    return comparisons;
+  }
+
+  @Override
+  public synchronized long getFailures() {
+    return failures;
+  }
+
+  @Override
+  public synchronized long getPixels() {
+    return pixels;
+  }
+
+  @Override
+  public synchronized long getPixelsEvaluated() {
+    return pixelsEvaluated;
+  }
+
+  @Override
+  public synchronized long getTasksForked() {
+    return tasksForked;
+  }
+
+  @Override
+  public synchronized long getBytesAllocated() {
+    return bytesAllocated;
+  }
+
+  @Override
+  public String[] getStages() {
+    String[] names = new String[STAGES.length];
+    for (int i = 0; i < STAGES.length; i++) {
+      names[i] = STAGES[i].name();
+    }
+    return names;
+  }
+
+  @Override
+  public synchronized long[] getStageNanos() {
+    return stageNanos.clone();
+  }
+
+  @Override
+  public synchronized long[][] getStageHistograms() {
+    long[][] copy = new long[STAGES.length][];
+    for (int i = 0; i < STAGES.length; i++) {
+      copy[i] = stageHistograms[i].clone();
+    }
+    return copy;
+  }
+
+  @Override
+  public synchronized long[] getTotalHistogram() {
+    return totalHistogram.clone();
+  }
+
+  @Override
+  public synchronized void reset() {
+    comparisons = 0;
+    failures = 0;
+    pixels = 0;
+    pixelsEvaluated = 0;
+    tasksForked = 0;
+    bytesAllocated = 0;
+    for (int i = 0; i < STAGES.length; i++) {
+      stageNanos[i] = 0;
+      Arrays.fill(stageHistograms[i], 0);
+    }
+    Arrays.fill(totalHistogram, 0);
+  }
+}
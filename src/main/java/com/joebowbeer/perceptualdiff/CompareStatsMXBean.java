@@ -0,0 +1,50 @@
+package com.joebowbeer.perceptualdiff;
+
+/**
+ * Cumulative statistics of the comparisons made by this process, published through JMX as
+ * <code>com.joebowbeer.perceptualdiff:type=CompareStats</code>.
+ */
+public interface CompareStatsMXBean {
+
+  long getComparisons();
+
+  long getFailures();
+
+  long getPixels();
+
+  long getPixelsEvaluated();
+
+  long getTasksForked();
+
+  /**
+   * Returns the approximate bytes allocated during the comparisons that measured allocation.
+   */
+  long getBytesAllocated();
+
+  /**
+   * Returns the names of the stages, in the order of the other per-stage arrays.
+   */
+  String[] getStages();
+
+  /**
+   * Returns the total nanoseconds spent in each stage.
+   */
+  long[] getStageNanos();
+
+  /**
+   * Returns a histogram of the times of each stage, in which bucket <code>i</code> counts the
+   * times of less than <code>2^i</code> microseconds that were not counted by a lower bucket.
+   * Stages that did not run are not counted.
+   */
+  long[][] getStageHistograms();
+
+  /**
+   * Returns a histogram of the times of whole comparisons, bucketed as for stages.
+   */
+  long[] getTotalHistogram();
+
+  /**
+   * Clears all statistics.
+   */
+  void reset();
+}
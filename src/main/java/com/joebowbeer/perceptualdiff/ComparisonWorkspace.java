@@ -0,0 +1,180 @@
+package com.joebowbeer.perceptualdiff;
+
+import static com.joebowbeer.perceptualdiff.PerceptualDiff.MAX_PYR_LEVELS;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Holds the large arrays used by {@link PerceptualDiff#compare(java.util.concurrent.ForkJoinPool,
+ * ComparisonWorkspace, java.awt.image.BufferedImage, java.awt.image.BufferedImage,
+ * java.awt.image.BufferedImage) compare}, so that they can be reused from one comparison to the
+ * next. Arrays grow as needed to fit the largest image compared, and are never shrunk.
+ * <p>
+ * A workspace may only be used by one comparison at a time. Callers that compare images
+ * concurrently should keep a pool of workspaces.
+ */
+public class ComparisonWorkspace {
+
+  Planes a = new Planes();
+  Planes b = new Planes();
+
+  /**
+   * Whether the planes remember the image whose full pyramid they hold, so that a comparison of
+   * the same image object can reuse it. Comparisons then construct the full pyramids of whole
+   * images rather than comparing changed regions or cascades, so that each leaves the pyramid of
+   * its second image. Set only by callers that do not modify their images.
+   */
+  boolean retain;
+
+  private int[] pixDiff = new int[0];
+
+  /**
+   * Creates an empty workspace.
+   */
+  public ComparisonWorkspace() {
+  }
+
+  /**
+   * Creates a workspace sized for images of up to <code>width * height</code> pixels.
+   *
+   * @throws IllegalArgumentException if the images would have more pixels than an array can hold
+   */
+  public ComparisonWorkspace(int width, int height) {
+    int dim = PerceptualDiff.pixels(width, height);
+    a.ensure(dim);
+    b.ensure(dim);
+    pixDiff(dim);
+  }
+
+  /**
+   * Exchanges the planes of the two images, so that the pyramid of the second image of one
+   * comparison can be reused for the first image of the next.
+   */
+  void swap() {
+    Planes planes = a;
+    a = b;
+    b = planes;
+  }
+
+  int[] pixDiff(int size) {
+    if (pixDiff.length < size) {
+      pixDiff = new int[size];
+    }
+    return pixDiff;
+  }
+
+  /**
+   * Arrays used for one of the two images.
+   */
+  static class Planes {
+
+    private int[] rgb = new int[0];
+    private float[] a = new float[0];
+    private float[] b = new float[0];
+    private float[] tmp = new float[0];
+    private final float[][] levels = new float[MAX_PYR_LEVELS][0];
+    private short[] compactA = new short[0];
+    private short[] compactB = new short[0];
+    private final short[][] compactLevels = new short[MAX_PYR_LEVELS][0];
+
+    /** Comparison and image whose pixels, color planes and full pyramid these hold, if any. */
+    private Object owner;
+    private BufferedImage image;
+
+    /**
+     * Records that these planes hold the pixels, color planes and full pyramid of the image, as
+     * converted by the given comparison.
+     */
+    void hold(Object owner, BufferedImage image) {
+      this.owner = owner;
+      this.image = image;
+    }
+
+    /**
+     * Returns whether these planes hold the pyramid of the image, as converted by the given
+     * comparison.
+     */
+    boolean holds(Object owner, BufferedImage image) {
+      return image != null && this.image == image && this.owner == owner;
+    }
+
+    /**
+     * Forgets the image whose pyramid these planes held, before they are overwritten.
+     */
+    void release() {
+      owner = null;
+      image = null;
+    }
+
+    private void ensure(int dim) {
+      rgb(dim);
+      a(dim);
+      b(dim);
+      tmp(dim);
+      levels(dim);
+    }
+
+    int[] rgb(int size) {
+      if (rgb.length < size) {
+        rgb = new int[size];
+      }
+      return rgb;
+    }
+
+    float[] a(int size) {
+      if (a.length < size) {
+        a = new float[size];
+      }
+      return a;
+    }
+
+    float[] b(int size) {
+      if (b.length < size) {
+        b = new float[size];
+      }
+      return b;
+    }
+
+    float[] tmp(int size) {
+      if (tmp.length < size) {
+        tmp = new float[size];
+      }
+      return tmp;
+    }
+
+    float[][] levels(int size) {
+      for (int i = 0; i < levels.length; i++) {
+        level(i, size);
+      }
+      return levels;
+    }
+
+    float[] level(int i, int size) {
+      if (levels[i].length < size) {
+        levels[i] = new float[size];
+      }
+      return levels[i];
+    }
+
+    short[] compactA(int size) {
+      if (compactA.length < size) {
+        compactA = new short[size];
+      }
+      return compactA;
+    }
+
+    short[] compactB(int size) {
+      if (compactB.length < size) {
+        compactB = new short[size];
+      }
+      return compactB;
+    }
+
+    short[] compactLevel(int i, int size) {
+      if (compactLevels[i].length < size) {
+        compactLevels[i] = new short[size];
+      }
+      return compactLevels[i];
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streaming XXH64 hash, used to recognize files and decoded images that are identical to a
+ * baseline without comparing them. It is not a cryptographic digest, but it hashes several
+ * gigabytes per second, so hashing a file costs little more than reading it.
+ */
+final class ContentHash {
+
+  private static final long PRIME1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME3 = 0x165667B19E3779F9L;
+  private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+  private static final int STRIPE = 32;
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  private final long seed;
+  private long v1;
+  private long v2;
+  private long v3;
+  private long v4;
+  private long total;
+
+  /** Bytes of an incomplete stripe. */
+  private final ByteBuffer pending = ByteBuffer.allocate(STRIPE).order(ByteOrder.LITTLE_ENDIAN);
+
+  ContentHash() {
+    this(0);
+  }
+
+  ContentHash(long seed) {
+    this.seed = seed;
+    v1 = seed + PRIME1 + PRIME2;
+    v2 = seed + PRIME2;
+    v3 = seed;
+    v4 = seed - PRIME1;
+  }
+
+  /**
+   * Returns the hash of the contents of the file.
+   */
+  static long file(File file) throws IOException {
+    ContentHash hash = new ContentHash();
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_SIZE);
+      while (channel.read(buf) != -1) {
+        buf.flip();
+        hash.update(buf);
+        buf.clear();
+      }
+    } finally {
+      channel.close();
+    }
+    return hash.digest();
+  }
+
+  /**
+   * Returns the hash of the pixels of the image, as the little-endian ARGB values of its rows in
+   * the default RGB color space.
+   */
+  static long pixels(BufferedImage img) {
+    int width = img.getWidth();
+    int height = img.getHeight();
+    ContentHash hash = new ContentHash();
+    ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE * 4).order(ByteOrder.LITTLE_ENDIAN);
+    IntBuffer ints = buf.asIntBuffer();
+    int rows = Math.max(1, CHUNK_SIZE / Math.max(width, 1));
+    int[] rgb = new int[width * Math.min(rows, height)];
+    for (int y = 0; y < height; y += rows) {
+      int n = Math.min(rows, height - y);
+      Pixels.getRGB(img, 0, y, width, n, rgb);
+      for (int offset = 0; offset < width * n; offset += ints.capacity()) {
+        int length = Math.min(ints.capacity(), width * n - offset);
+        ints.clear();
+        ints.put(rgb, offset, length);
+        buf.clear().limit(length * 4);
+        hash.update(buf);
+      }
+    }
+    return hash.digest();
+  }
+
+  /**
+   * Hashes the remaining bytes of the buffer, leaving it at its limit.
+   */
+  ContentHash update(ByteBuffer buf) {
+    ByteBuffer src = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    buf.position(buf.limit());
+    total += src.remaining();
+    if (pending.position() > 0) {
+      while (pending.hasRemaining() && src.hasRemaining()) {
+        pending.put(src.get());
+      }
+      if (pending.hasRemaining()) {
+        return this;
+      }
+      pending.flip();
+      stripe(pending);
+      pending.clear();
+    }
+    while (src.remaining() >= STRIPE) {
+      stripe(src);
+    }
+    pending.put(src);
+    return this;
+  }
+
+  /**
+   * Returns the hash of the bytes so far, which may be followed by more.
+   */
+  long digest() {
+    long h;
+    if (total >= STRIPE) {
+      h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+          + Long.rotateLeft(v4, 18);
+      h = merge(h, v1);
+      h = merge(h, v2);
+      h = merge(h, v3);
+      h = merge(h, v4);
+    } else {
+      h = seed + PRIME5;
+    }
+    h += total;
+
+    ByteBuffer tail = (ByteBuffer) pending.duplicate().order(ByteOrder.LITTLE_ENDIAN).flip();
+    while (tail.remaining() >= 8) {
+      h ^= round(0, tail.getLong());
+      h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+    }
+    if (tail.remaining() >= 4) {
+      h ^= (tail.getInt() & 0xFFFFFFFFL) * PRIME1;
+      h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+    }
+    while (tail.hasRemaining()) {
+      h ^= (tail.get() & 0xFF) * PRIME5;
+      h = Long.rotateLeft(h, 11) * PRIME1;
+    }
+
+    h ^= h >>> 33;
+    h *= PRIME2;
+    h ^= h >>> 29;
+    h *= PRIME3;
+    h ^= h >>> 32;
+    return h;
+  }
+
+  private void stripe(ByteBuffer src) {
+    v1 = round(v1, src.getLong());
+    v2 = round(v2, src.getLong());
+    v3 = round(v3, src.getLong());
+    v4 = round(v4, src.getLong());
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * PRIME2;
+    acc = Long.rotateLeft(acc, 31);
+    return acc * PRIME1;
+  }
+
+  private static long merge(long acc, long v) {
+    acc ^= round(0, v);
+    return acc * PRIME1 + PRIME4;
+  }
+}
@@ -0,0 +1,293 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs command lines on behalf of thin clients, so that repeated comparisons share one warm JVM
+ * and fork-join pool instead of each paying for startup and running cold code. The server
+ * listens on a localhost TCP port and serves each connection on its own thread.
+ * <p>
+ * The server runs command lines with its own access to files, so it serves only clients that
+ * can read its token: random bytes that it writes on startup to a file in the user's home
+ * directory which only the user can read. Other users of the host, who can connect to the port,
+ * cannot read the token.
+ * <p>
+ * A client sends the token, then its working directory and its command line as {@link
+ * DataOutputStream#writeUTF UTF} strings, the command line preceded by its length. A client
+ * whose token does not match receives an error and exit status 2. The server runs the command
+ * line, with relative paths resolved against the client's directory, and sends back frames of
+ * output, each a channel byte followed by a length and that many bytes, and finally the exit
+ * status of the command line. Messages logged while comparing stay in the server's log.
+ */
+final class Daemon {
+
+  /* frame channels */
+  private static final int EXIT = 0;
+  private static final int OUT = 1;
+  private static final int ERR = 2;
+
+  private static final int TOKEN_LENGTH = 32;
+
+  /** Time allowed for a client to send its token. */
+  private static final int AUTHENTICATION_TIMEOUT_MILLIS = 10000;
+
+  private Daemon() {
+  }
+
+  /**
+   * Serves clients until the process is killed.
+   *
+   * @param port localhost port on which to listen
+   */
+  static void serve(int port) throws IOException {
+    ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    try {
+      byte[] token = new byte[TOKEN_LENGTH];
+      new SecureRandom().nextBytes(token);
+      File tokenFile = tokenFile(server.getLocalPort());
+      writeToken(tokenFile, token);
+      tokenFile.deleteOnExit();
+      try {
+        Log.i("Serving on port " + server.getLocalPort());
+        serve(server, token);
+      } finally {
+        tokenFile.delete();
+      }
+    } finally {
+      server.close();
+    }
+  }
+
+  /**
+   * Serves the clients of a bound socket that send the token, until the socket is closed.
+   */
+  static void serve(ServerSocket server, final byte[] token) throws IOException {
+    AtomicInteger clients = new AtomicInteger();
+    while (!server.isClosed()) {
+      final Socket socket;
+      try {
+        socket = server.accept();
+      } catch (IOException ex) {
+        if (server.isClosed()) {
+          return;
+        }
+        throw ex;
+      }
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            handle(socket, token);
+          } catch (IOException ex) {
+            Log.w("Client failed: " + ex);
+          }
+        }
+      }, "perceptualdiff-client-" + clients.incrementAndGet());
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Runs the command line of a client on a server of this user.
+   *
+   * @param port localhost port on which the server listens
+   * @param dir directory against which relative paths are resolved
+   * @param args command line options
+   * @param out receives the results
+   * @param err receives command line errors
+   * @return exit status
+   * @throws ConnectException if no server of this user is listening
+   */
+  static int request(int port, File dir, String[] args, OutputStream out, OutputStream err)
+      throws IOException {
+    byte[] token;
+    try {
+      token = Files.readAllBytes(tokenFile(port).toPath());
+    } catch (NoSuchFileException ex) {
+      throw new ConnectException("No token for port " + port);
+    }
+    return request(port, token, dir, args, out, err);
+  }
+
+  /**
+   * Runs the command line of a client on the server that has the token.
+   */
+  static int request(int port, byte[] token, File dir, String[] args, OutputStream out,
+      OutputStream err) throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+    try {
+      DataOutputStream request = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream()));
+      request.write(token);
+      request.writeUTF(dir.getPath());
+      request.writeInt(args.length);
+      for (String arg : args) {
+        request.writeUTF(arg);
+      }
+      request.flush();
+
+      DataInputStream response = new DataInputStream(
+          new BufferedInputStream(socket.getInputStream()));
+      byte[] buffer = new byte[8192];
+      int channel;
+      while ((channel = response.readUnsignedByte()) != EXIT) {
+        OutputStream stream = (channel == ERR) ? err : out;
+        for (int length = response.readInt(); length > 0; ) {
+          int count = response.read(buffer, 0, Math.min(length, buffer.length));
+          if (count < 0) {
+            throw new IOException("Server closed the connection");
+          }
+          stream.write(buffer, 0, count);
+          length -= count;
+        }
+        stream.flush();
+      }
+      return response.readInt();
+    } finally {
+      socket.close();
+    }
+  }
+
+  /**
+   * Returns the file that holds the token of the server on the port.
+   */
+  static File tokenFile(int port) {
+    return new File(System.getProperty("user.home"), ".perceptualdiff-" + port + ".token");
+  }
+
+  /**
+   * Writes the token to a new file that only the owner can read and write.
+   */
+  private static void writeToken(File file, byte[] token) throws IOException {
+    Path path = file.toPath();
+    // a stale file of a killed server is replaced, rather than reused with its permissions
+    Files.deleteIfExists(path);
+    if (Files.getFileStore(path.getParent()).supportsFileAttributeView("posix")) {
+      Files.createFile(path, PosixFilePermissions.asFileAttribute(
+          EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+    } else {
+      Files.createFile(path);
+      if (!file.setReadable(false, false) || !file.setReadable(true, true)
+          || !file.setWritable(false, false) || !file.setWritable(true, true)) {
+        Files.delete(path);
+        throw new IOException("Cannot restrict access to " + file);
+      }
+    }
+    Files.write(path, token);
+  }
+
+  private static void handle(Socket socket, byte[] token) throws IOException {
+    try {
+      DataInputStream request = new DataInputStream(
+          new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream response = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream()));
+      PrintStream out = new PrintStream(new Channel(response, OUT), true, "UTF-8");
+      PrintStream err = new PrintStream(new Channel(response, ERR), true, "UTF-8");
+
+      byte[] received = new byte[token.length];
+      socket.setSoTimeout(AUTHENTICATION_TIMEOUT_MILLIS);
+      request.readFully(received);
+      socket.setSoTimeout(0);
+      if (!MessageDigest.isEqual(token, received)) {
+        Log.w("Rejected a client without the token");
+        err.println("Not authorized: the token of the server does not match");
+        exit(response, 2);
+        return;
+      }
+
+      File dir = new File(request.readUTF());
+      String[] args = new String[request.readInt()];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = request.readUTF();
+      }
+
+      int status;
+      try {
+        status = Main.run(args, dir, out, err);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        err.println(ex);
+        status = 1;
+      } catch (IOException ex) {
+        // an uncaught exception exits the command line tool with status 1
+        err.println(ex);
+        status = 1;
+      } catch (RuntimeException | Error ex) {
+        // such as running out of memory, which fails this client rather than the server
+        Log.w(ex);
+        err.println(ex);
+        status = 1;
+      }
+      out.flush();
+      err.flush();
+      exit(response, status);
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static void exit(DataOutputStream response, int status) throws IOException {
+    synchronized (response) {
+      response.writeByte(EXIT);
+      response.writeInt(status);
+      response.flush();
+    }
+  }
+
+  /**
+   * Writes everything written to it as frames of one channel.
+   */
+  private static class Channel extends OutputStream {
+
+    private final DataOutputStream response;
+    private final int channel;
+
+    Channel(DataOutputStream response, int channel) {
+      this.response = response;
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      synchronized (response) {
+        response.writeByte(channel);
+        response.writeInt(len);
+        response.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      synchronized (response) {
+        response.flush();
+      }
+    }
+  }
+}
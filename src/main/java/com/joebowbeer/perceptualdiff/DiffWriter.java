@@ -0,0 +1,254 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes difference images as 1-bit indexed PNG files, straight from a {@link FailureMap}, in the
+ * colors of the difference images of {@link PerceptualDiff}: blue where pixels pass and red where
+ * they fail.
+ * <p>
+ * The rows are packed and deflated in chunks by concurrent tasks. Each chunk is compressed on its
+ * own and ends on a byte boundary with a sync flush, so the chunks concatenate into one zlib
+ * stream, whose checksum is combined from the checksums of the chunks.
+ * <p>
+ * An overview is a difference image reduced by a power of two, in which a pixel fails if any of
+ * the pixels it covers fail, so that small failures stay visible. It is written with a JSON
+ * sidecar that holds the size of the full image and the bounds of its failing regions.
+ */
+final class DiffWriter {
+
+  private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+  /** Palette: pass, then fail. */
+  private static final byte[] PALETTE = {0, 0, (byte) 0xff, (byte) 0xff, 0, 0};
+
+  /** Approximate number of packed bytes deflated by each task. */
+  static final int CHUNK_BYTES = 1 << 17;
+
+  private DiffWriter() {
+  }
+
+  /**
+   * Returns whether the file is to be written as PNG, which is also the default for names without
+   * an extension.
+   */
+  static boolean isPng(File file) {
+    String name = file.getName();
+    int extIndex = name.lastIndexOf('.');
+    return extIndex == -1 || name.substring(extIndex + 1).equalsIgnoreCase("png");
+  }
+
+  /**
+   * Writes the difference image, or, if <code>overview</code> is positive, an overview reduced by
+   * <code>2^overview</code> and its sidecar, named after the image with <code>.json</code>
+   * appended.
+   */
+  static void write(FailureMap map, File file, int overview, ForkJoinPool pool)
+      throws IOException {
+    if (overview <= 0) {
+      write(map.bits(), map.getWidth(), map.getHeight(), file, pool, CHUNK_BYTES);
+      return;
+    }
+    int scale = 1 << overview;
+    int width = (map.getWidth() + scale - 1) / scale;
+    int height = (map.getHeight() + scale - 1) / scale;
+    BitSet failed = map.bits();
+    BitSet reduced = new BitSet(width * height);
+    for (int index = failed.nextSetBit(0); index >= 0; index = failed.nextSetBit(index + 1)) {
+      int x = index % map.getWidth();
+      int y = index / map.getWidth();
+      reduced.set((y / scale) * width + x / scale);
+    }
+    write(reduced, width, height, file, pool, CHUNK_BYTES);
+    writeSidecar(map, scale, new File(file.getPath() + ".json"));
+  }
+
+  /**
+   * Writes failure bits as a PNG image.
+   *
+   * @param failed bit <code>y * width + x</code> is set if the pixel at (x, y) failed
+   * @param chunkBytes approximate number of packed bytes deflated by each task
+   */
+  static void write(BitSet failed, int width, int height, File file, ForkJoinPool pool,
+      int chunkBytes) throws IOException {
+    int rowBytes = 1 + (width + 7) / 8;
+    int rowsPerChunk = Math.max(1, chunkBytes / rowBytes);
+    List<ForkJoinTask<Chunk>> tasks = new ArrayList<ForkJoinTask<Chunk>>();
+    for (int y = 0; y < height; y += rowsPerChunk) {
+      int end = Math.min(y + rowsPerChunk, height);
+      tasks.add(pool.submit(new Chunk(failed, width, y, end, end == height)));
+    }
+
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.write(SIGNATURE);
+      ByteBuffer header = ByteBuffer.allocate(13)
+          .putInt(width)
+          .putInt(height)
+          .put((byte) 1) // bit depth
+          .put((byte) 3) // indexed color
+          .put((byte) 0) // deflate
+          .put((byte) 0) // adaptive filtering
+          .put((byte) 0); // not interlaced
+      writeChunk(out, "IHDR", header.array(), 0, header.capacity());
+      writeChunk(out, "PLTE", PALETTE, 0, PALETTE.length);
+
+      // zlib header for a 32K window, followed by the deflated chunks and the combined checksum
+      long adler = 1;
+      byte[] zlibHeader = {0x78, (byte) 0x9c};
+      writeChunk(out, "IDAT", zlibHeader, 0, zlibHeader.length);
+      for (ForkJoinTask<Chunk> task : tasks) {
+        Chunk chunk = task.join();
+        writeChunk(out, "IDAT", chunk.deflated, 0, chunk.deflatedLength);
+        adler = combine(adler, chunk.adler, chunk.length);
+      }
+      byte[] trailer = ByteBuffer.allocate(4).putInt((int) adler).array();
+      writeChunk(out, "IDAT", trailer, 0, trailer.length);
+      writeChunk(out, "IEND", new byte[0], 0, 0);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void writeSidecar(FailureMap map, int scale, File file) throws IOException {
+    StringBuilder sb = new StringBuilder("{");
+    sb.append(String.format(Locale.ROOT, "\"width\":%d,\"height\":%d,\"scale\":%d,\"failed\":%d",
+        map.getWidth(), map.getHeight(), scale, map.getFailedCount()));
+    sb.append(",\"regions\":");
+    Batch.appendRegions(sb, map.getRegions());
+    sb.append("}\n");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    try {
+      writer.write(sb.toString());
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset,
+      int length) throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, offset, length);
+    out.writeInt(length);
+    out.write(typeBytes);
+    out.write(data, offset, length);
+    out.writeInt((int) crc.getValue());
+  }
+
+  /**
+   * Returns the Adler-32 checksum of two sequences, given the checksum of each and the length of
+   * the second, as does zlib's <code>adler32_combine</code>.
+   */
+  static long combine(long adler1, long adler2, long length2) {
+    final long base = 65521;
+    long remainder = length2 % base;
+    long sum1 = adler1 & 0xffff;
+    long sum2 = (remainder * sum1) % base;
+    sum1 += (adler2 & 0xffff) + base - 1;
+    sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - remainder;
+    if (sum1 >= base) {
+      sum1 -= base;
+    }
+    if (sum1 >= base) {
+      sum1 -= base;
+    }
+    if (sum2 >= base << 1) {
+      sum2 -= base << 1;
+    }
+    if (sum2 >= base) {
+      sum2 -= base;
+    }
+    return sum1 | (sum2 << 16);
+  }
+
+  /**
+   * Packs and deflates a range of rows.
+   */
+  private static class Chunk implements Callable<Chunk> {
+
+    private final BitSet failed;
+    private final int width;
+    private final int beginRow;
+    private final int endRow;
+    private final boolean last;
+
+    /* results */
+    byte[] deflated;
+    int deflatedLength;
+    long adler;
+    int length;
+
+    Chunk(BitSet failed, int width, int beginRow, int endRow, boolean last) {
+      this.failed = failed;
+      this.width = width;
+      this.beginRow = beginRow;
+      this.endRow = endRow;
+      this.last = last;
+    }
+
+    @Override
+    public Chunk call() {
+      int rowBytes = 1 + (width + 7) / 8;
+      byte[] raw = new byte[(endRow - beginRow) * rowBytes];
+      // each row is a filter type byte of zero followed by the packed bits
+      for (int y = beginRow, offset = 0; y < endRow; y++, offset += rowBytes) {
+        int begin = y * width;
+        int end = begin + width;
+        for (int index = failed.nextSetBit(begin); index >= 0 && index < end;
+            index = failed.nextSetBit(index + 1)) {
+          int x = index - begin;
+          raw[offset + 1 + (x >> 3)] |= 0x80 >>> (x & 7);
+        }
+      }
+      Adler32 checksum = new Adler32();
+      checksum.update(raw, 0, raw.length);
+      adler = checksum.getValue();
+      length = raw.length;
+
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      try {
+        deflater.setInput(raw);
+        if (last) {
+          deflater.finish();
+        }
+        deflated = new byte[raw.length / 8 + 64];
+        while (true) {
+          if (deflatedLength == deflated.length) {
+            deflated = Arrays.copyOf(deflated, deflated.length * 2);
+          }
+          int count = deflater.deflate(deflated, deflatedLength,
+              deflated.length - deflatedLength, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+          deflatedLength += count;
+          if (last ? deflater.finished() : deflatedLength < deflated.length) {
+            break;
+          }
+        }
+      } finally {
+        deflater.end();
+      }
+      return this;
+    }
+  }
+}
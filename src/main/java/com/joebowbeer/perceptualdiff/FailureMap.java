@@ -0,0 +1,210 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where two images differ: one bit for each pixel that failed, the number of failures in each
+ * tile of {@link #TILE_SIZE} pixels square, and the bounds of the regions that fail.
+ * <p>
+ * A region is a group of failing tiles that touch, including at their corners, and its bounds
+ * are those of the failing pixels within it. If the comparison failed fast, only the pixels
+ * evaluated before it stopped are recorded.
+ */
+public final class FailureMap {
+
+  public static final int TILE_SIZE = 64;
+
+  private final int width;
+  private final int height;
+  private final BitSet failed;
+  private final int columns;
+  private final int rows;
+  private final int[] tileCounts;
+  private final List<Rectangle> regions;
+
+  FailureMap(int width, int height, BitSet failed) {
+    this.width = width;
+    this.height = height;
+    this.failed = failed;
+    columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+    rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+    tileCounts = new int[columns * rows];
+    for (int index = failed.nextSetBit(0); index >= 0; index = failed.nextSetBit(index + 1)) {
+      tileCounts[tile(index % width, index / width)]++;
+    }
+    regions = findRegions();
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns whether the pixel failed.
+   */
+  public boolean isFailed(int x, int y) {
+    return failed.get(y * width + x);
+  }
+
+  /**
+   * Returns the number of pixels that failed.
+   */
+  public int getFailedCount() {
+    return failed.cardinality();
+  }
+
+  /**
+   * Returns a copy of the failure bits, in which the pixel at (x, y) is bit
+   * <code>y * width + x</code>.
+   */
+  public BitSet getFailedPixels() {
+    return (BitSet) failed.clone();
+  }
+
+  /**
+   * Returns the failure bits themselves, which are not to be modified.
+   */
+  BitSet bits() {
+    return failed;
+  }
+
+  public int getTileColumns() {
+    return columns;
+  }
+
+  public int getTileRows() {
+    return rows;
+  }
+
+  /**
+   * Returns the number of pixels that failed in a tile.
+   */
+  public int getTileFailures(int column, int row) {
+    return tileCounts[row * columns + column];
+  }
+
+  /**
+   * Returns the bounds of the failing regions, from top to bottom by their first tile.
+   */
+  public List<Rectangle> getRegions() {
+    List<Rectangle> copy = new ArrayList<Rectangle>(regions.size());
+    for (Rectangle region : regions) {
+      copy.add(new Rectangle(region));
+    }
+    return copy;
+  }
+
+  private int tile(int x, int y) {
+    return (y / TILE_SIZE) * columns + x / TILE_SIZE;
+  }
+
+  /**
+   * Labels the groups of failing tiles, and bounds the failing pixels of each group.
+   */
+  private List<Rectangle> findRegions() {
+    int[] label = new int[tileCounts.length];
+    int labels = 0;
+    int[] stack = new int[tileCounts.length];
+    for (int start = 0; start < tileCounts.length; start++) {
+      if (tileCounts[start] == 0 || label[start] != 0) {
+        continue;
+      }
+      label[start] = ++labels;
+      int top = 0;
+      stack[top++] = start;
+      while (top > 0) {
+        int tile = stack[--top];
+        int column = tile % columns;
+        int row = tile / columns;
+        for (int r = Math.max(row - 1, 0); r <= Math.min(row + 1, rows - 1); r++) {
+          for (int c = Math.max(column - 1, 0); c <= Math.min(column + 1, columns - 1); c++) {
+            int neighbor = r * columns + c;
+            if (tileCounts[neighbor] != 0 && label[neighbor] == 0) {
+              label[neighbor] = labels;
+              stack[top++] = neighbor;
+            }
+          }
+        }
+      }
+    }
+    Rectangle[] bounds = new Rectangle[labels];
+    for (int index = failed.nextSetBit(0); index >= 0; index = failed.nextSetBit(index + 1)) {
+      int x = index % width;
+      int y = index / width;
+      int region = label[tile(x, y)] - 1;
+      if (bounds[region] == null) {
+        bounds[region] = new Rectangle(x, y, 1, 1);
+      } else {
+        bounds[region].add(new Rectangle(x, y, 1, 1));
+      }
+    }
+    List<Rectangle> list = new ArrayList<Rectangle>(labels);
+    for (Rectangle rect : bounds) {
+      list.add(rect);
+    }
+    return list;
+  }
+
+  /**
+   * Collects the failures of a comparison from concurrent tasks, one bit per pixel.
+   */
+  static class Recorder {
+
+    final int width;
+    final int height;
+    private final AtomicLongArray bits;
+
+    Recorder(int width, int height) {
+      this.width = width;
+      this.height = height;
+      bits = new AtomicLongArray((width * height + 63) >>> 6);
+    }
+
+    private Recorder(Recorder image) {
+      width = image.width;
+      height = image.height;
+      bits = image.bits;
+    }
+
+    /**
+     * Records the failure of the pixel at the given index of the compared range.
+     */
+    void set(int index) {
+      int word = index >>> 6;
+      long mask = 1L << index;
+      long old;
+      do {
+        old = bits.get(word);
+      } while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask));
+    }
+
+    /**
+     * Returns a recorder for a comparison of the given region, whose indices are relative to the
+     * region.
+     */
+    Recorder region(final int x0, final int y0, final int regionWidth) {
+      return new Recorder(this) {
+        @Override
+        void set(int index) {
+          super.set((y0 + index / regionWidth) * width + x0 + index % regionWidth);
+        }
+      };
+    }
+
+    FailureMap toMap() {
+      long[] words = new long[bits.length()];
+      for (int i = 0; i < words.length; i++) {
+        words[i] = bits.get(i);
+      }
+      return new FailureMap(width, height, BitSet.valueOf(words));
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Compares the frames of an animation, either each frame with the next, or each frame with the
+ * frame at the same position in a reference sequence. Upcoming frames are decoded by the
+ * executor while earlier frames are compared, and the result of each frame is reported to a
+ * listener as soon as it is known.
+ * <p>
+ * When comparing consecutive frames, the pyramid of each frame is constructed once: the pyramid
+ * of the second image of one comparison is kept in the workspace and reused for the first image
+ * of the next. To that end, consecutive frames with {@linkplain PerceptualDiff.PyramidType#FULL
+ * full} pyramids are compared as whole images, even when only their changed regions or a cascade
+ * would be compared otherwise. Tiled and off-heap comparisons construct their own pyramids.
+ * <p>
+ * A sequence may only compare one sequence of frames at a time.
+ */
+public final class FrameSequence {
+
+  /**
+   * Receives the result of each frame, in order.
+   */
+  public interface Listener {
+
+    /**
+     * Called when a frame has been compared.
+     *
+     * @param frame index of the second image in its sequence
+     * @param fileA first image compared
+     * @param fileB second image compared
+     * @param result outcome of the comparison, with its metrics
+     */
+    void compared(int frame, File fileA, File fileB, CompareResult result);
+  }
+
+  private final PerceptualDiff pd;
+  private final ForkJoinPool pool;
+  private final Executor executor;
+  private final int prefetch;
+  private final ComparisonWorkspace workspace = new ComparisonWorkspace();
+
+  /**
+   * Creates a frame sequence comparison.
+   *
+   * @param pd comparison parameters
+   * @param pool fork-join pool for comparison tasks
+   * @param executor decodes upcoming frames
+   * @param prefetch number of frames of each sequence decoded ahead, at least 1
+   */
+  public FrameSequence(PerceptualDiff pd, ForkJoinPool pool, Executor executor, int prefetch) {
+    if (prefetch < 1) {
+      throw new IllegalArgumentException("prefetch < 1");
+    }
+    this.pd = pd;
+    this.pool = pool;
+    this.executor = executor;
+    this.prefetch = prefetch;
+  }
+
+  /**
+   * Returns the image files in the directory, sorted by name.
+   */
+  public static List<File> list(File dir) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Cannot list directory: " + dir);
+    }
+    Arrays.sort(files);
+    Set<String> suffixes = Batch.imageSuffixes();
+    List<File> frames = new ArrayList<File>(files.length);
+    for (File file : files) {
+      if (file.isFile() && Batch.isImage(file.getName(), suffixes)) {
+        frames.add(file);
+      }
+    }
+    return frames;
+  }
+
+  /**
+   * Compares each frame with the next.
+   *
+   * @param frames image files of the sequence, in order
+   * @param listener receives the result of each frame after the first
+   * @return number of frames that did not pass
+   * @throws IOException if a frame cannot be decoded
+   */
+  public int compareConsecutive(List<File> frames, Listener listener) throws IOException {
+    Frames decoder = new Frames(frames);
+    workspace.retain = true;
+    try {
+      int failures = 0;
+      BufferedImage previous = (frames.size() > 0) ? decoder.take() : null;
+      for (int i = 1; i < frames.size(); i++) {
+        BufferedImage current = decoder.take();
+        CompareResult result = pd.compare(pool, workspace, previous, current, null);
+        // the planes of this frame become the planes of the first image of the next comparison
+        workspace.swap();
+        if (!result.isPassed()) {
+          failures++;
+        }
+        listener.compared(i, frames.get(i - 1), frames.get(i), result);
+        previous = current;
+      }
+      return failures;
+    } finally {
+      decoder.cancel();
+    }
+  }
+
+  /**
+   * Compares each frame with the frame at the same position in a reference sequence, which is
+   * the first image of each comparison.
+   *
+   * @param reference image files of the reference sequence, in order
+   * @param frames image files of the sequence, in order
+   * @param listener receives the result of each frame
+   * @return number of frames that did not pass, including the frames that either sequence lacks
+   * @throws IOException if a frame cannot be decoded
+   */
+  public int compareToReference(List<File> reference, List<File> frames, Listener listener)
+      throws IOException {
+    int count = Math.min(reference.size(), frames.size());
+    Frames referenceDecoder = new Frames(reference.subList(0, count));
+    Frames decoder = new Frames(frames.subList(0, count));
+    // each reference frame is compared once, so no pyramid is reused
+    workspace.retain = false;
+    try {
+      int failures = Math.max(reference.size(), frames.size()) - count;
+      for (int i = 0; i < count; i++) {
+        CompareResult result =
+            pd.compare(pool, workspace, referenceDecoder.take(), decoder.take(), null);
+        if (!result.isPassed()) {
+          failures++;
+        }
+        listener.compared(i, reference.get(i), frames.get(i), result);
+      }
+      return failures;
+    } finally {
+      referenceDecoder.cancel();
+      decoder.cancel();
+    }
+  }
+
+  /**
+   * Decodes the frames of a sequence in order, keeping as many frames as are prefetched decoding
+   * or decoded ahead of the frame being compared.
+   */
+  private class Frames {
+
+    private final List<File> files;
+    private final Deque<Future<BufferedImage>> pending = new ArrayDeque<Future<BufferedImage>>();
+    private int next;
+
+    Frames(List<File> files) {
+      this.files = files;
+      fill();
+    }
+
+    /**
+     * Waits for the next frame, and starts decoding another.
+     */
+    BufferedImage take() throws IOException {
+      Future<BufferedImage> task = pending.poll();
+      fill();
+      return PerceptualDiff.decoded(task);
+    }
+
+    void cancel() {
+      for (Future<BufferedImage> task : pending) {
+        task.cancel(false);
+      }
+      pending.clear();
+    }
+
+    private void fill() {
+      while (pending.size() < prefetch && next < files.size()) {
+        final File file = files.get(next++);
+        FutureTask<BufferedImage> task = new FutureTask<BufferedImage>(
+            new Callable<BufferedImage>() {
+              @Override
+              public BufferedImage call() throws IOException {
+                return Batch.read(file);
+              }
+            });
+        executor.execute(task);
+        pending.add(task);
+      }
+    }
+  }
+}
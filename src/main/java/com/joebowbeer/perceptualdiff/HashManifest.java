@@ -0,0 +1,177 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Hashes of baseline images, kept in a file across runs, with which a batch recognizes
+ * candidates that are identical to their baselines without decoding both of them.
+ * <p>
+ * Each line holds the absolute path of a baseline, its length and modification time, the
+ * {@linkplain ContentHash hash} of its file, its width and height, and the hash of its pixels,
+ * separated by tabs. An entry is used only while the length and modification time of its file
+ * are unchanged. New entries are appended when the manifest is saved, and a later line for a
+ * path replaces an earlier one, until superseded lines outnumber the entries and the file is
+ * rewritten.
+ */
+final class HashManifest {
+
+  /**
+   * Hashes of one baseline.
+   */
+  static final class Entry {
+
+    final long length;
+    final long lastModified;
+    final long fileHash;
+    final int width;
+    final int height;
+    final long pixelHash;
+
+    Entry(long length, long lastModified, long fileHash, int width, int height,
+        long pixelHash) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.fileHash = fileHash;
+      this.width = width;
+      this.height = height;
+      this.pixelHash = pixelHash;
+    }
+  }
+
+  private final File file;
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  private final Map<String, Entry> added = new LinkedHashMap<String, Entry>();
+  private int lines;
+
+  private HashManifest(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Reads the manifest, which is empty if the file does not exist yet.
+   */
+  static HashManifest load(File file) throws IOException {
+    HashManifest manifest = new HashManifest(file);
+    if (!file.isFile()) {
+      return manifest;
+    }
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        String[] fields = line.split("\t");
+        if (fields.length != 7) {
+          throw new IOException(String.format("%s:%d: expected 7 tab-separated fields",
+              file, lineNumber));
+        }
+        try {
+          manifest.entries.put(fields[0], new Entry(Long.parseLong(fields[1]),
+              Long.parseLong(fields[2]), parseHash(fields[3]),
+              Integer.parseInt(fields[4]), Integer.parseInt(fields[5]),
+              parseHash(fields[6])));
+        } catch (NumberFormatException ex) {
+          throw new IOException(String.format("%s:%d: %s", file, lineNumber, ex.getMessage()));
+        }
+        manifest.lines++;
+      }
+    } finally {
+      reader.close();
+    }
+    return manifest;
+  }
+
+  /**
+   * Parses a hash written as 16 hex digits.
+   */
+  private static long parseHash(String hex) {
+    if (hex.length() != 16) {
+      throw new NumberFormatException("Invalid hash: " + hex);
+    }
+    return (Long.parseLong(hex.substring(0, 8), 16) << 32)
+        | Long.parseLong(hex.substring(8), 16);
+  }
+
+  /**
+   * Returns the hashes of the baseline, or <code>null</code> if there are none or its file has
+   * changed since they were recorded.
+   */
+  synchronized Entry get(File baseline) {
+    Entry entry = entries.get(baseline.getAbsolutePath());
+    return (entry != null && entry.length == baseline.length()
+        && entry.lastModified == baseline.lastModified()) ? entry : null;
+  }
+
+  /**
+   * Hashes the file of a baseline and its decoded image, and records the hashes.
+   */
+  Entry put(File baseline, BufferedImage img) throws IOException {
+    // the file is checked for changes by its state before it was hashed
+    long length = baseline.length();
+    long lastModified = baseline.lastModified();
+    Entry entry = new Entry(length, lastModified, ContentHash.file(baseline), img.getWidth(),
+        img.getHeight(), ContentHash.pixels(img));
+    synchronized (this) {
+      entries.put(baseline.getAbsolutePath(), entry);
+      added.put(baseline.getAbsolutePath(), entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Appends the entries recorded since the manifest was loaded or last saved, or rewrites the
+   * file if most of its lines have been superseded.
+   */
+  synchronized void save() throws IOException {
+    if (added.isEmpty()) {
+      return;
+    }
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Cannot create directory: " + parent);
+    }
+    if (lines + added.size() > 2 * entries.size()) {
+      File tmp = new File(parent, file.getName() + ".tmp");
+      write(tmp, entries, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      lines = entries.size();
+    } else {
+      write(file, added, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      lines += added.size();
+    }
+    added.clear();
+  }
+
+  private static void write(File file, Map<String, Entry> entries, StandardOpenOption... options)
+      throws IOException {
+    Writer writer = new OutputStreamWriter(Files.newOutputStream(file.toPath(), options),
+        StandardCharsets.UTF_8);
+    try {
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        Entry entry = e.getValue();
+        writer.write(String.format(Locale.ROOT, "%s\t%d\t%d\t%016x\t%d\t%d\t%016x\n", e.getKey(),
+            entry.length, entry.lastModified, entry.fileHash, entry.width, entry.height,
+            entry.pixelHash));
+      }
+    } finally {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes an image file into an array of pixels, in the form returned by {@link Pixels#getRGB},
+ * reporting bands of rows to a listener as the decoder completes them, so that they can be
+ * processed while the rest of the image is decoded.
+ * <p>
+ * Bands are copied and reported as they are decoded only for non-interlaced PNG images, whose
+ * rows are decoded once, in order. Other images are copied and reported once they are complete.
+ * The image is decoded into the reader's default destination type, which the PNG reader fills
+ * much faster than a packed int destination.
+ */
+final class ImageInput {
+
+  /**
+   * Receives bands of rows as they are decoded.
+   */
+  interface RowListener {
+
+    /**
+     * Called when the pixels of the given rows are complete.
+     *
+     * @param begin first row, inclusive
+     * @param end last row, exclusive
+     */
+    void rowsDecoded(int begin, int end);
+  }
+
+  private final File file;
+  private final ImageInputStream stream;
+  private final ImageReader reader;
+
+  /**
+   * Opens the file and reads the image header.
+   */
+  ImageInput(File file) throws IOException {
+    if (!file.isFile()) {
+      throw new IOException("No such file: " + file);
+    }
+    this.file = file;
+    stream = ImageIO.createImageInputStream(file);
+    if (stream == null) {
+      throw new IOException("Cannot open: " + file);
+    }
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+    if (!readers.hasNext()) {
+      stream.close();
+      throw new IOException("Unsupported image format: " + file);
+    }
+    reader = readers.next();
+    reader.setInput(stream, true, true);
+  }
+
+  int getWidth() throws IOException {
+    return reader.getWidth(0);
+  }
+
+  int getHeight() throws IOException {
+    return reader.getHeight(0);
+  }
+
+  /**
+   * Decodes the image and copies its pixels into <code>rgb</code>, reporting bands of about
+   * <code>bandRows</code> rows to the listener, if any, as they are copied.
+   *
+   * @return the decoded image
+   */
+  BufferedImage read(final int[] rgb, final int bandRows, final RowListener listener)
+      throws IOException {
+    final int width = getWidth();
+    final int height = getHeight();
+    final int[] done = new int[1];
+    if (listener != null && reader.getFormatName().equalsIgnoreCase("png")) {
+      reader.addIIOReadUpdateListener(new IIOReadUpdateListener() {
+        private int decoded;
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage theImage, int pass,
+            int minPass, int maxPass, int minX, int minY, int periodX, int periodY,
+            int[] bands) {
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY,
+            int updateWidth, int updateHeight, int periodX, int periodY, int[] bands) {
+          // interlaced passes skip rows
+          if (periodY != 1) {
+            return;
+          }
+          decoded = Math.max(decoded, minY + updateHeight);
+          if (decoded - done[0] >= bandRows) {
+            rowsDecoded(theImage, rgb, width, done[0], decoded, listener);
+            done[0] = decoded;
+          }
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage theImage) {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail,
+            int pass, int minPass, int maxPass, int minX, int minY, int periodX, int periodY,
+            int[] bands) {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX,
+            int minY, int width, int height, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {
+        }
+      });
+    }
+    BufferedImage img = reader.read(0);
+    if (img == null) {
+      throw new IOException("Unsupported image format: " + file);
+    }
+    rowsDecoded(img, rgb, width, done[0], height, listener);
+    return img;
+  }
+
+  /**
+   * Closes the file.
+   */
+  void close() throws IOException {
+    reader.dispose();
+    stream.close();
+  }
+
+  /**
+   * Copies a band of rows, and reports it to the listener, if any.
+   */
+  private static void rowsDecoded(BufferedImage img, int[] rgb, int width, int begin, int end,
+      RowListener listener) {
+    if (begin >= end) {
+      return;
+    }
+    Pixels.getRGB(img, 0, begin, width, end - begin, rgb, begin * width);
+    if (listener != null) {
+      listener.rowsDecoded(begin, end);
+    }
+  }
+}
@@ -0,0 +1,339 @@
+/*
+ * Adapted from http://pdiff.sourceforge.net/
+ *
+ * Copyright (C) 2006 Yangli Hector Yee
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package com.joebowbeer.perceptualdiff;
+
+import static com.joebowbeer.perceptualdiff.PerceptualDiff.KERNEL;
+import static com.joebowbeer.perceptualdiff.PerceptualDiff.pow;
+import static com.joebowbeer.perceptualdiff.PerceptualDiff.wrap;
+import static java.lang.Math.abs;
+
+/**
+ * The simple float loops of a comparison: color conversion, blurring, contrast and the storage of
+ * compact pyramids.
+ * <p>
+ * This class is the scalar implementation. On Java 17 and later, the multi-release jar also holds
+ * <code>VectorKernels</code>, which computes the same loops with the incubating Vector API. It is
+ * selected at runtime when the <code>jdk.incubator.vector</code> module is present, as it is when
+ * running with <code>--add-modules jdk.incubator.vector</code>. Setting the system property
+ * <code>perceptualdiff.scalar</code> to <code>true</code> selects this implementation regardless.
+ * <p>
+ * Every implementation performs the same floating point operations in the same order for each
+ * pixel, so the results are identical whichever is selected.
+ */
+class Kernels {
+
+  private static final String VECTOR_KERNELS = "com.joebowbeer.perceptualdiff.VectorKernels";
+
+  /** The selected implementation. */
+  static final Kernels INSTANCE = select();
+
+  /**
+   * Number of rows and columns in the tiles of {@link #convolveAndTransposeBlocked}. A tile of
+   * source floats fills about 16 KB, and each of its columns is stored as a run of 256 bytes.
+   */
+  static final int TILE = 64;
+
+  /**
+   * Whether to convolve and transpose in tiles. Setting the system property
+   * <code>perceptualdiff.unblocked</code> to <code>true</code> selects the row at a time loops.
+   */
+  static final boolean BLOCKED = !Boolean.getBoolean("perceptualdiff.unblocked");
+
+  /* Reference white */
+  static final double XW = 0.5767309 + 0.1855540 + 0.1881852;
+  static final double YW = 0.2973769 + 0.6273491 + 0.0752741;
+  static final double ZW = 0.0270343 + 0.0706872 + 0.9911085;
+
+  /* Constants for XYZ to LAB conversion. */
+  static final double EPSILON = 216.0 / 24389.0;
+  static final double KAPPA = 24389.0 / 27.0;
+
+  private static Kernels select() {
+    if (Boolean.getBoolean("perceptualdiff.scalar")) {
+      return new Kernels();
+    }
+    Kernels kernels = vector();
+    return (kernels != null) ? kernels : new Kernels();
+  }
+
+  /**
+   * Returns the vector implementation, or <code>null</code> if it is not available on this JVM.
+   */
+  static Kernels vector() {
+    try {
+      Kernels kernels =
+          (Kernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+      Log.v("Using " + kernels);
+      return kernels;
+    } catch (ReflectiveOperationException | LinkageError | UnsupportedOperationException ex) {
+      Log.v("Vector kernels not available: " + ex);
+      return null;
+    }
+  }
+
+  /**
+   * Converts RGB to AB and luminance in the specified range of indices.
+   *
+   * @param lut linear value of each 8-bit channel value
+   * @param luminance white luminance
+   * @param rgb pixel values
+   * @param a A
+   * @param b B
+   * @param lum Y * luminance
+   * @param begin beginning index, inclusive
+   * @param end ending index, exclusive
+   */
+  void convert(double[] lut, double luminance, int[] rgb, float[] a, float[] b, float[] lum,
+      int begin, int end) {
+    for (int index = begin; index < end; index++) {
+      int color = rgb[index];
+      double red = lut[(color >> 16) & 0xff];
+      double grn = lut[(color >> 8) & 0xff];
+      double blu = lut[color & 0xff];
+
+      /*
+       * Convert from Adobe RGB (1998) with reference white D65 to XYZ.
+       * Matrix is from http://www.brucelindbloom.com/
+       */
+      double x = red * 0.5767309 + grn * 0.1855540 + blu * 0.1881852;
+      double y = red * 0.2973769 + grn * 0.6273491 + blu * 0.0752741;
+      double z = red * 0.0270343 + grn * 0.0706872 + blu * 0.9911085;
+
+      /*
+       * Convert XYZ to LAB
+       */
+      double fx = labf(x / XW);
+      double fy = labf(y / YW);
+      double fz = labf(z / ZW);
+
+      // L = 116.0 * fy - 16.0; // unused
+      a[index] = (float) (500.0 * (fx - fy));
+      b[index] = (float) (200.0 * (fy - fz));
+
+      lum[index] = (float) (y * luminance);
+    }
+  }
+
+  static double labf(double r) {
+    return (r > EPSILON) ? pow(r, 1.0 / 3.0) : (KAPPA * r + 16.0) / 116.0;
+  }
+
+  /**
+   * Convolves the specified range of rows of <code>src</code> with the filter kernel and stores
+   * them transposed in <code>dst</code>, in tiles unless {@link #BLOCKED} is false.
+   */
+  void convolveAndTranspose(float[] src, float[] dst, int width, int height, int beginRow,
+      int endRow) {
+    if (BLOCKED) {
+      convolveAndTransposeBlocked(src, dst, width, height, beginRow, endRow);
+    } else {
+      convolveAndTransposeRows(src, dst, width, height, beginRow, endRow);
+    }
+  }
+
+  /**
+   * Convolves and transposes a row at a time. Each row is stored as a column of
+   * <code>dst</code>, whose values are <code>height</code> floats apart, so wide images miss the
+   * cache, and the TLB, on nearly every store.
+   */
+  void convolveAndTransposeRows(float[] src, float[] dst, int width, int height, int beginRow,
+      int endRow) {
+    for (int offset = beginRow * width, y = beginRow; y < endRow; y++, offset += width) {
+      for (int index = y, x = 0; x < width; x++, index += height) {
+        float f = 0;
+        for (int i = -2; i <= 2; i++) {
+          f += KERNEL[i + 2] * src[offset + wrap(x + i, width)];
+        }
+        dst[index] = f;
+      }
+    }
+  }
+
+  /**
+   * Convolves and transposes in tiles of {@link #TILE} rows and columns. The source of a tile
+   * stays in the L1 cache while each of its columns is stored as a contiguous run of
+   * <code>dst</code>, and each page of <code>dst</code> is visited once per tile rather than once
+   * per row.
+   */
+  void convolveAndTransposeBlocked(float[] src, float[] dst, int width, int height,
+      int beginRow, int endRow) {
+    float k0 = KERNEL[0];
+    float k1 = KERNEL[1];
+    float k2 = KERNEL[2];
+    float k3 = KERNEL[3];
+    float k4 = KERNEL[4];
+    for (int y0 = beginRow; y0 < endRow; y0 += TILE) {
+      int y1 = Math.min(y0 + TILE, endRow);
+      for (int x0 = 0; x0 < width; x0 += TILE) {
+        int x1 = Math.min(x0 + TILE, width);
+        for (int x = x0; x < x1; x++) {
+          int index = x * height;
+          if (x < 2 || x >= width - 2) {
+            // the two pixels at each edge wrap
+            for (int y = y0, offset = y0 * width; y < y1; y++, offset += width) {
+              float f = 0;
+              for (int i = -2; i <= 2; i++) {
+                f += KERNEL[i + 2] * src[offset + wrap(x + i, width)];
+              }
+              dst[index + y] = f;
+            }
+            continue;
+          }
+          for (int y = y0, i = y0 * width + x; y < y1; y++, i += width) {
+            float f = 0;
+            f += k0 * src[i - 2];
+            f += k1 * src[i - 1];
+            f += k2 * src[i];
+            f += k3 * src[i + 1];
+            f += k4 * src[i + 2];
+            dst[index + y] = f;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes the contrast at each level for a block of pixels, given the pyramid values of both
+   * images, and the sum of the contrasts of each pixel.
+   *
+   * @param va values of first pyramid, by level and then pixel
+   * @param vb values of second pyramid, by level and then pixel
+   * @param n number of pixels
+   * @param contrast receives contrast, by level and then pixel
+   * @param sumContrast receives sum of contrasts of each pixel, at least 1e-5
+   */
+  void contrast(float[][] va, float[][] vb, int n, float[][] contrast, float[] sumContrast) {
+    for (int k = 0; k < n; k++) {
+      sumContrast[k] = 0;
+    }
+    for (int i = 0; i < contrast.length; i++) {
+      float[] a0 = va[i];
+      float[] a1 = va[i + 1];
+      float[] a2 = va[i + 2];
+      float[] b0 = vb[i];
+      float[] b1 = vb[i + 1];
+      float[] b2 = vb[i + 2];
+      float[] c = contrast[i];
+      for (int k = 0; k < n; k++) {
+        float n1 = abs(a0[k] - a1[k]);
+        float n2 = abs(b0[k] - b1[k]);
+        float numerator = (n1 > n2) ? n1 : n2;
+        float d1 = abs(a2[k]);
+        float d2 = abs(b2[k]);
+        float denominator = (d1 > d2) ? d1 : d2;
+        if (denominator < 1e-5f) {
+          denominator = 1e-5f;
+        }
+        c[k] = numerator / denominator;
+        sumContrast[k] += c[k];
+      }
+    }
+    for (int k = 0; k < n; k++) {
+      if (sumContrast[k] < 1e-5f) {
+        sumContrast[k] = 1e-5f;
+      }
+    }
+  }
+
+  /**
+   * Rounds a range of pyramid level values to half floats. Level 0 is stored as is, and each
+   * following level as its difference from the previous level as stored.
+   *
+   * @param src level values
+   * @param stored holds the previous level as stored, unless this is level 0, and receives this
+   *     level as stored
+   * @param first whether this is level 0
+   * @param scale factor applied before rounding
+   * @param unscale factor that converts the result of {@link #fromHalf} back to level values
+   * @param dst receives the half floats
+   * @param begin beginning index, inclusive
+   * @param end ending index, exclusive
+   */
+  void toHalf(float[] src, float[] stored, boolean first, float scale, float unscale,
+      short[] dst, int begin, int end) {
+    if (first) {
+      for (int index = begin; index < end; index++) {
+        dst[index] = toHalf(src[index] * scale);
+        stored[index] = fromHalf(dst[index]) * unscale;
+      }
+    } else {
+      for (int index = begin; index < end; index++) {
+        dst[index] = toHalf((stored[index] - src[index]) * scale);
+        stored[index] -= fromHalf(dst[index]) * unscale;
+      }
+    }
+  }
+
+  /**
+   * Reads back a run of a pyramid level stored by {@link #toHalf(float[], float[], boolean,
+   * float, float, short[], int, int) toHalf}.
+   *
+   * @param src half floats
+   * @param offset index of first value
+   * @param prev the previous level, or <code>null</code> for level 0
+   * @param unscale factor that converts the result of {@link #fromHalf} back to level values
+   * @param dst receives the level values
+   * @param n number of values
+   */
+  void fromHalf(short[] src, int offset, float[] prev, float unscale, float[] dst, int n) {
+    if (prev == null) {
+      for (int k = 0; k < n; k++) {
+        dst[k] = fromHalf(src[offset + k]) * unscale;
+      }
+    } else {
+      for (int k = 0; k < n; k++) {
+        dst[k] = prev[k] - fromHalf(src[offset + k]) * unscale;
+      }
+    }
+  }
+
+  /**
+   * Rounds a float to the nearest half float, ties to even. Values too large for a half float
+   * become infinite.
+   */
+  static short toHalf(float f) {
+    int bits = Float.floatToRawIntBits(f);
+    int sign = (bits >>> 16) & 0x8000;
+    float magnitude = Math.abs(f);
+    if (!(magnitude < 65520f)) {
+      return (short) (sign | 0x7c00);
+    }
+    if (magnitude < 0x1p-14f) {
+      // denormalized, in units of 2^-24, which is the precision of floats near 0.5; rounding up
+      // to 1024 gives the smallest normal
+      return (short) (sign | (Float.floatToRawIntBits(magnitude + 0.5f) - 0x3f000000));
+    }
+    bits &= 0x7fffffff;
+    bits += 0xfff + ((bits >> 13) & 1);
+    return (short) (sign | ((bits >> 13) - (112 << 10)));
+  }
+
+  /**
+   * Returns the float whose bits are those of a half float shifted into place. This is the value
+   * of the half float divided by 2<sup>112</sup>, the difference between their exponent biases.
+   */
+  static float fromHalf(short h) {
+    return Float.intBitsToFloat(((h & 0x8000) << 16) | ((h & 0x7fff) << 13));
+  }
+
+  @Override
+  public String toString() {
+    return "scalar kernels";
+  }
+}
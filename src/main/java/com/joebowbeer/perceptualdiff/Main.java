@@ -24,11 +24,17 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 
 import javax.imageio.ImageIO;
@@ -38,39 +44,101 @@ import javax.imageio.ImageIO;
  */
 public class Main {
 
+  public static final String CACHE = "cache";
+  public static final String CACHESIZE = "cachesize";
+  public static final String CASCADE = "cascade";
+  public static final String CASCADEMARGIN = "cascademargin";
   public static final String COLORFACTOR = "colorfactor";
+  public static final String CONNECT = "connect";
   public static final String FAILFAST = "failfast";
   public static final String FOV = "fov";
   public static final String GAMMA = "gamma";
+  public static final String HASHES = "hashes";
   public static final String LUMINANCE = "luminance";
   public static final String LUMINANCEONLY = "luminanceonly";
   public static final String DOWNSAMPLE = "downsample";
+  public static final String MANIFEST = "manifest";
+  public static final String OFFHEAP = "offheap";
   public static final String OUTPUT = "output";
+  public static final String OVERVIEW = "overview";
+  public static final String PYRAMID = "pyramid";
+  public static final String REGIONS = "regions";
+  public static final String SCRATCH = "scratch";
+  public static final String SEQUENCE = "sequence";
+  public static final String SERVE = "serve";
+  public static final String SUMMARY = "summary";
+  public static final String TABLES = "tables";
   public static final String THRESHOLD = "threshold";
+  public static final String TILESIZE = "tilesize";
   public static final String VERBOSE = "verbose";
 
   private static final ForkJoinPool pool = new ForkJoinPool();
 
   /**
-   * Parses command line options and compares the selected image files.
+   * Parses command line options and compares the selected image files. If a manifest or two
+   * directories are given instead, compares all of the pairs and prints a JSON summary line for
+   * each. Exits with 0 if everything passed, 1 if anything failed, and 2 if the command line
+   * could not be parsed.
    *
    * @param args command line options
    */
-  public static void main(String[] args) throws IOException {
+  public static void main(String[] args) throws IOException, InterruptedException {
+    System.exit(run(args, null, System.out, System.err));
+  }
+
+  /**
+   * Runs a command line, on behalf of this process or of a client of a {@link Daemon}.
+   *
+   * @param args command line options
+   * @param dir directory against which relative paths are resolved, or <code>null</code> to run
+   *     on behalf of this process
+   * @param out receives the results
+   * @param err receives command line errors
+   * @return exit status
+   */
+  static int run(String[] args, File dir, PrintStream out, PrintStream err)
+      throws IOException, InterruptedException {
     Options options = createCommandLineOptions();
     try {
       // Parse the command line.
       CommandLine line = new GnuParser().parse(options, args);
 
+      // requests to a daemon have already been forwarded
+      boolean local = dir == null;
+      if (local && line.hasOption(CONNECT)) {
+        int port = getIntValue(line, CONNECT);
+        try {
+          return Daemon.request(port, new File("").getAbsoluteFile(), args, out, err);
+        } catch (ConnectException ex) {
+          Log.w(String.format("No server on port %d, comparing locally", port));
+        }
+      }
+      if (line.hasOption(SERVE)) {
+        if (!local) {
+          throw new ParseException("A server cannot be started by a client");
+        }
+        if (line.hasOption(VERBOSE)) {
+          Log.setLevel(Log.Level.VERBOSE);
+        }
+        Daemon.serve(getIntValue(line, SERVE));
+        return 0;
+      }
+
+      // a daemon logs at its own level
       boolean verbose = line.hasOption(VERBOSE);
-      if (verbose) {
+      if (verbose && local) {
         Log.setLevel(Log.Level.VERBOSE);
       }
 
       PerceptualDiff.Builder builder = new PerceptualDiff.Builder();
+      // the metrics logged in verbose mode include allocation
+      builder.setMeasureAllocation(Log.isLoggable(Log.Level.VERBOSE));
       if (line.hasOption(COLORFACTOR)) {
         builder.setColorFactor(getDoubleValue(line, COLORFACTOR));
       }
+      if (line.hasOption(TABLES)) {
+        builder.setExactModel(false);
+      }
       if (line.hasOption(FAILFAST)) {
         builder.setFailFast(true);
       }
@@ -89,64 +157,258 @@ public class Main {
       if (line.hasOption(THRESHOLD)) {
         builder.setThresholdPixels(getIntValue(line, THRESHOLD));
       }
+      if (line.hasOption(PYRAMID)) {
+        try {
+          builder.setPyramidType(PerceptualDiff.PyramidType.valueOf(
+              line.getOptionValue(PYRAMID).toUpperCase()));
+        } catch (IllegalArgumentException ex) {
+          throw new ParseException("Unknown pyramid type: " + line.getOptionValue(PYRAMID));
+        }
+      }
+      if (line.hasOption(TILESIZE)) {
+        builder.setTileSize(getIntValue(line, TILESIZE));
+      }
+      if (line.hasOption(CASCADE)) {
+        builder.setCascade(true);
+      }
+      if (line.hasOption(REGIONS)) {
+        builder.setFailureMap(true);
+      }
+      if (line.hasOption(OFFHEAP) || line.hasOption(SCRATCH)) {
+        builder.setOffHeap(true);
+      }
+      if (line.hasOption(SCRATCH)) {
+        builder.setScratchDirectory(resolve(dir, line.getOptionValue(SCRATCH)));
+      }
+      if (line.hasOption(CASCADEMARGIN)) {
+        double cascadeMargin = getDoubleValue(line, CASCADEMARGIN);
+        if (!(cascadeMargin >= 1)) {
+          throw new ParseException("Cascade margin must be at least 1: " + cascadeMargin);
+        }
+        builder.setCascadeMargin(cascadeMargin);
+      }
+      if (line.hasOption(CACHE)) {
+        long cacheSize = line.hasOption(CACHESIZE) ? getIntValue(line, CACHESIZE) : 1024;
+        builder.setBaselineCache(
+            new PyramidCache(resolve(dir, line.getOptionValue(CACHE)), cacheSize << 20));
+      }
 
-      int downSample = line.hasOption(DOWNSAMPLE) ? getIntValue(line, DOWNSAMPLE) : 0;
+      if (line.hasOption(DOWNSAMPLE)) {
+        int downSample = getIntValue(line, DOWNSAMPLE);
+        if (downSample < 0 || downSample > PerceptualDiff.MAX_DOWN_SAMPLE) {
+          throw new ParseException(String.format("Down sample must be between 0 and %d: %d",
+              PerceptualDiff.MAX_DOWN_SAMPLE, downSample));
+        }
+        builder.setDownSample(downSample);
+      }
       String output = line.getOptionValue(OUTPUT, null);
+      int overview = line.hasOption(OVERVIEW) ? getIntValue(line, OVERVIEW) : 0;
 
       String[] inputs = line.getArgs();
-      if (inputs.length < 2) {
+      List<Batch.Pair> pairs = null;
+      if (line.hasOption(MANIFEST)) {
+        if (inputs.length != 0) {
+          throw new ParseException("Image files cannot be combined with a manifest");
+        }
+        pairs = Batch.readManifest(resolve(dir, line.getOptionValue(MANIFEST)), dir);
+      } else if (line.hasOption(SEQUENCE)) {
+        if (inputs.length < 1 || inputs.length > 2) {
+          throw new ParseException("A sequence is one directory of frames, or two directories"
+              + " to compare frame by frame");
+        }
+        for (String input : inputs) {
+          if (!resolve(dir, input).isDirectory()) {
+            throw new ParseException("Not a directory: " + input);
+          }
+        }
+      } else if (inputs.length < 2) {
         throw new ParseException("Not enough image files specified");
       } else if (inputs.length > 2) {
         throw new ParseException("Too many image files specified");
+      } else if (resolve(dir, inputs[0]).isDirectory() && resolve(dir, inputs[1]).isDirectory()) {
+        pairs = Batch.walk(resolve(dir, inputs[0]), resolve(dir, inputs[1]),
+            (output != null) ? resolve(dir, output) : null);
       }
-      BufferedImage imgA = ImageIO.read(new File(inputs[0]));
-      BufferedImage imgB = ImageIO.read(new File(inputs[1]));
-
-      if (downSample != 0) {
-        double scale = 1.0 / (1 << downSample);
-        Log.v(String.format("Scaling by %s", scale));
-        imgA = resize(imgA, scale);
-        imgB = resize(imgB, scale);
+      if (pairs == null && line.hasOption(HASHES)) {
+        throw new ParseException("Hashes are only kept for a manifest or directories");
       }
 
-      BufferedImage imgDiff = (output != null)
-          ? new BufferedImage(imgA.getWidth(), imgA.getHeight(), BufferedImage.TYPE_INT_ARGB)
-          : null;
+      // PNG difference images are written from the failure map
+      boolean pngDiff = false;
+      if (pairs != null) {
+        for (Batch.Pair pair : pairs) {
+          pngDiff |= pair.fileDiff != null && DiffWriter.isPng(pair.fileDiff);
+        }
+      } else if (line.hasOption(SEQUENCE)) {
+        pngDiff = output != null;
+      } else {
+        pngDiff = output != null && DiffWriter.isPng(resolve(dir, output));
+        if (output != null && !pngDiff && overview > 0) {
+          throw new ParseException("Overviews are written as PNG");
+        }
+      }
+      if (pngDiff) {
+        builder.setFailureMap(true);
+      }
 
       PerceptualDiff pd = builder.build();
       if (verbose) {
         pd.dump();
       }
-      boolean passed = pd.compare(pool, imgA, imgB, imgDiff);
+
+      if (pairs != null) {
+        String summary = line.getOptionValue(SUMMARY, null);
+        PrintStream summaryOut = (summary != null)
+            ? new PrintStream(new FileOutputStream(resolve(dir, summary)), false, "UTF-8")
+            : out;
+        int failures;
+        try {
+          HashManifest hashes = line.hasOption(HASHES)
+              ? HashManifest.load(resolve(dir, line.getOptionValue(HASHES))) : null;
+          failures = new Batch(pd, pool, overview, hashes).run(pairs, summaryOut);
+          if (hashes != null) {
+            hashes.save();
+          }
+        } finally {
+          if (summary != null) {
+            summaryOut.close();
+          }
+        }
+        Log.i(String.format("%d of %d comparisons failed", failures, pairs.size()));
+        return failures == 0 ? 0 : 1;
+      }
+
+      if (line.hasOption(SEQUENCE)) {
+        String summary = line.getOptionValue(SUMMARY, null);
+        PrintStream summaryOut = (summary != null)
+            ? new PrintStream(new FileOutputStream(resolve(dir, summary)), false, "UTF-8")
+            : out;
+        File outputDir = (output != null) ? resolve(dir, output) : null;
+        int failures;
+        try {
+          failures = sequence(pd, resolve(dir, inputs[0]),
+              (inputs.length == 2) ? resolve(dir, inputs[1]) : null, outputDir, overview,
+              summaryOut);
+        } finally {
+          if (summary != null) {
+            summaryOut.close();
+          }
+        }
+        Log.i(String.format("%d frames failed", failures));
+        return failures == 0 ? 0 : 1;
+      }
+
+      // decode both files at once, straight into the comparison, which creates the difference
+      // image once it knows their size
+      File fileA = resolve(dir, inputs[0]);
+      File fileB = resolve(dir, inputs[1]);
+      CompareResult result = (output != null && !pngDiff)
+          ? pd.compareWithDiff(pool, new ComparisonWorkspace(), fileA, fileB)
+          : pd.compare(pool, new ComparisonWorkspace(), fileA, fileB, null);
+      BufferedImage imgDiff = result.getDiffImage();
 
       // Always output image difference if requested.
-      if (output != null) {
+      if (imgDiff != null) {
+        Log.i("Writing difference image to " + output);
+        write(imgDiff, resolve(dir, output));
+      } else if (pngDiff && result.getFailureMap() != null) {
         Log.i("Writing difference image to " + output);
-        int extIndex = output.lastIndexOf('.');
-        String formatName = (extIndex != -1)
-            ? output.substring(extIndex + 1)
-            : "png"; // TODO: Reconsider png as default?
-        ImageIO.write(imgDiff, formatName, new File(output));
+        DiffWriter.write(result.getFailureMap(), resolve(dir, output), overview, pool);
+      } else if (output != null) {
+        Log.w("No difference image: " + result.getMessage());
       }
 
-      System.out.println(passed ? "PASS" : "FAIL");
-      System.exit(passed ? 0 : 1);
+      if (line.hasOption(REGIONS) && result.getFailureMap() != null) {
+        for (Rectangle region : result.getFailureMap().getRegions()) {
+          out.println(String.format("%d %d %d %d",
+              region.x, region.y, region.width, region.height));
+        }
+      }
+
+      out.println(result.isPassed() ? "PASS" : "FAIL");
+      return result.isPassed() ? 0 : 1;
 
     } catch (ParseException ex) {
-      Log.e("Command parsing failed: " + ex.getMessage());
+      err.println("Command parsing failed: " + ex.getMessage());
       HelpFormatter formatter = new HelpFormatter();
-      formatter.setWidth(80);
-      formatter.printHelp(
+      PrintWriter writer = new PrintWriter(out);
+      formatter.printHelp(writer, 80,
           "java -jar perceptualdiff.jar image1.png image2.png [options]",
           "\n\nCompares image1.png and image2.png using a perceptually based image metric."
-          + "\nOptions:", options,
+          + " If two directories are given, compares each image in the first directory tree"
+          + " with the image at the same path in the second."
+          + "\nOptions:", options, formatter.getLeftPadding(), formatter.getDescPadding(),
           "\nNote: Input or Output files can be in any format that ImageIO supports.");
-      System.exit(2);
+      writer.flush();
+      return 2;
+    }
+  }
+
+  /**
+   * Compares the frames of a sequence, writing a JSON summary line for each frame as it is
+   * compared, and a PNG difference image named after its second image if there is an output
+   * directory.
+   *
+   * @param first directory of the frames, or of the reference frames if there is a second
+   * @param second directory of the frames to compare with the reference frames, or
+   *     <code>null</code> to compare consecutive frames of the first
+   * @return number of frames that did not pass
+   */
+  private static int sequence(PerceptualDiff pd, File first, File second, final File outputDir,
+      final int overview, final PrintStream summary) throws IOException {
+    ExecutorService decoders = Executors.newFixedThreadPool(2);
+    try {
+      FrameSequence sequence = new FrameSequence(pd, pool, decoders, 4);
+      FrameSequence.Listener listener = new FrameSequence.Listener() {
+        @Override
+        public void compared(int frame, File fileA, File fileB, CompareResult result) {
+          File fileDiff = null;
+          if (outputDir != null) {
+            String name = fileB.getName();
+            fileDiff = new File(outputDir, name.substring(0, name.lastIndexOf('.')) + ".png");
+          }
+          Batch.Pair pair = new Batch.Pair(fileA, fileB, fileDiff);
+          pair.result = result;
+          pair.compareNanos = result.getMetrics().getTotalNanos();
+          if (fileDiff != null && result.getFailureMap() != null) {
+            long start = System.nanoTime();
+            try {
+              if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+                throw new IOException("Cannot create directory: " + outputDir);
+              }
+              DiffWriter.write(result.getFailureMap(), fileDiff, overview, pool);
+            } catch (IOException ex) {
+              pair.error = ex.toString();
+            }
+            pair.encodeNanos = System.nanoTime() - start;
+          }
+          summary.println(Batch.toJson(pair));
+          summary.flush();
+        }
+      };
+      List<File> frames = FrameSequence.list(first);
+      return (second != null)
+          ? sequence.compareToReference(frames, FrameSequence.list(second), listener)
+          : sequence.compareConsecutive(frames, listener);
+    } finally {
+      decoders.shutdownNow();
     }
   }
 
+  /**
+   * Resolves a path against the directory of a client, if any.
+   */
+  static File resolve(File dir, String path) {
+    File file = new File(path);
+    return (dir == null || file.isAbsolute()) ? file : new File(dir, path);
+  }
+
+  /**
+   * Creates the command line options. OptionBuilder keeps its settings in static fields, so the
+   * options of concurrent clients of a daemon are created one at a time.
+   */
   @SuppressWarnings("static-access")
-  private static Options createCommandLineOptions() {
+  private static synchronized Options createCommandLineOptions() {
     Options options = new Options();
     options.addOption(OptionBuilder
         .withDescription("Turns on verbose mode")
@@ -182,16 +444,103 @@ public class Main {
         .hasArgs(1).withType(Number.class)
         .withDescription("How much of color to use, 0.0 to 1.0, 0.0 = ignore color.")
         .create(COLORFACTOR));
+    options.addOption(OptionBuilder
+        .withDescription("Interpolate the visual model from lookup tables: faster, with slightly"
+            + " different results")
+        .create(TABLES));
     options.addOption(OptionBuilder
         .withArgName("n")
         .hasArgs(1).withType(Number.class)
-        .withDescription("How many powers of two to down sample the image.")
+        .withDescription("How many powers of two to down sample the image, 0 to 30.")
         .create(DOWNSAMPLE));
+    options.addOption(OptionBuilder
+        .withArgName("t")
+        .hasArgs(1).withType(Number.class)
+        .withDescription("Compare in t x t pixel tiles to bound memory use (default 0 = whole image)")
+        .create(TILESIZE));
+    options.addOption(OptionBuilder
+        .withArgName("type")
+        .hasArgs(1)
+        .withDescription("Pyramid storage: full (default), decimated or compact")
+        .create(PYRAMID));
+    options.addOption(OptionBuilder
+        .withDescription("Store the pyramids outside the heap, for images too large for it")
+        .create(OFFHEAP));
+    options.addOption(OptionBuilder
+        .withArgName("dir")
+        .hasArgs(1)
+        .withDescription("Map the pyramids from scratch files in directory dir (implies -offheap)")
+        .create(SCRATCH));
+    options.addOption(OptionBuilder
+        .withDescription("Compare a coarse version first, and then only the regions it leaves"
+            + " in doubt")
+        .create(CASCADE));
+    options.addOption(OptionBuilder
+        .withArgName("m")
+        .hasArgs(1).withType(Number.class)
+        .withDescription("Safety margin of the coarse comparison, at least 1 (default 1.5)")
+        .create(CASCADEMARGIN));
+    options.addOption(OptionBuilder
+        .withDescription("Print the bounds of each failing region as x y width height, or add"
+            + " them to the JSON summary lines")
+        .create(REGIONS));
+    options.addOption(OptionBuilder
+        .withArgName("file")
+        .hasArgs(1)
+        .withDescription("Compare each pair listed in file: image1, image2 and optionally a"
+            + " difference image, separated by tabs")
+        .create(MANIFEST));
+    options.addOption(OptionBuilder
+        .withDescription("Compare each frame in a directory with the next, or each frame in a"
+            + " second directory with the frame at the same position in the first")
+        .create(SEQUENCE));
+    options.addOption(OptionBuilder
+        .withArgName("file")
+        .hasArgs(1)
+        .withDescription("Write JSON summary lines for a manifest, directories or a sequence"
+            + " to file (default stdout)")
+        .create(SUMMARY));
+    options.addOption(OptionBuilder
+        .withArgName("file")
+        .hasArgs(1)
+        .withDescription("Keep hashes of each image1 of a manifest or directories in file, and"
+            + " pass each image2 whose file or pixels hash the same without comparing them")
+        .create(HASHES));
+    options.addOption(OptionBuilder
+        .withArgName("dir")
+        .hasArgs(1)
+        .withDescription("Cache the pyramid of image1 in directory dir for later comparisons")
+        .create(CACHE));
+    options.addOption(OptionBuilder
+        .withArgName("mb")
+        .hasArgs(1).withType(Number.class)
+        .withDescription("Maximum size of the cache in megabytes (default 1024)")
+        .create(CACHESIZE));
     options.addOption(OptionBuilder
         .withArgName("o.png")
         .hasArgs(1)
-        .withDescription("Write difference to the file o.png")
+        .withDescription("Write difference to the file o.png, or under directory o when"
+            + " comparing directories")
         .create(OUTPUT));
+    options.addOption(OptionBuilder
+        .withArgName("n")
+        .hasArgs(1).withType(Number.class)
+        .withDescription("Write PNG difference images reduced by n powers of two, in which a"
+            + " pixel fails if any pixel it covers fails, each with a JSON sidecar holding the"
+            + " bounds of the failing regions")
+        .create(OVERVIEW));
+    options.addOption(OptionBuilder
+        .withArgName("port")
+        .hasArgs(1).withType(Number.class)
+        .withDescription("Serve comparisons to clients of this user on localhost port until"
+            + " killed. Clients authenticate with a token in ~/.perceptualdiff-<port>.token")
+        .create(SERVE));
+    options.addOption(OptionBuilder
+        .withArgName("port")
+        .hasArgs(1).withType(Number.class)
+        .withDescription("Run the command on the server of this user at localhost port, or"
+            + " locally if no server is listening")
+        .create(CONNECT));
     return options;
   }
 
@@ -203,10 +552,15 @@ public class Main {
     return ((Number) line.getParsedOptionValue(opt)).intValue();
   }
 
-  private static BufferedImage resize(BufferedImage src, double scale) {
-    AffineTransform at = new AffineTransform();
-    at.scale(scale, scale);
-    AffineTransformOp scaleOp = new AffineTransformOp(at, AffineTransformOp.TYPE_BILINEAR);
-    return scaleOp.filter(src, null);
+  /**
+   * Writes the image in the format implied by the file extension.
+   */
+  static void write(BufferedImage img, File file) throws IOException {
+    String name = file.getName();
+    int extIndex = name.lastIndexOf('.');
+    String formatName = (extIndex != -1)
+        ? name.substring(extIndex + 1)
+        : "png"; // TODO: Reconsider png as default?
+    ImageIO.write(img, formatName, file);
   }
 }
@@ -0,0 +1,123 @@
+package com.joebowbeer.perceptualdiff;
+
+/**
+ * Lookup tables for the functions of the visual model that are evaluated for every pixel.
+ * <p>
+ * Each table samples a function at 64 points per octave of its argument, and interpolates
+ * linearly between samples. The samples are located by the bits of the argument converted to
+ * <code>float</code>: the exponent and the top 6 bits of the mantissa index the table, and the
+ * remaining mantissa bits are the interpolation weight. No logarithms are needed.
+ * <p>
+ * The tables sample the functions evaluated with {@link Math#pow}. Measured against those over
+ * their tabulated ranges, the maximum relative errors are about 5e-6 for
+ * {@link PerceptualDiff#tvi tvi}, 1.3e-4 for {@link PerceptualDiff#csf csf} and 8e-6 for
+ * {@link PerceptualDiff#mask mask}, except that tvi is discontinuous at its breakpoints, and there
+ * the error within one sample is up to 2e-2. All of these are small compared with the error of
+ * {@link PerceptualDiff#fastpow fastpow}, which is up to 9e-2 for tvi. Arguments above a table's
+ * range are passed to the exact function, and arguments below it use the first sample.
+ */
+final class ModelTables {
+
+  private static final int FRACTION_BITS = 6;
+  private static final int SHIFT = 23 - FRACTION_BITS;
+  private static final int WEIGHT_MASK = (1 << SHIFT) - 1;
+  private static final double WEIGHT_SCALE = 1.0 / (1 << SHIFT);
+
+  /** Adaptation luminance is clamped to at least 1e-5. */
+  private static final float MIN_LUMINANCE = 1e-5f;
+  private static final float MAX_LUMINANCE = 1e6f;
+
+  private static final float MIN_CONTRAST = 1e-7f;
+  private static final float MAX_CONTRAST = 1e5f;
+
+  private static final Table TVI = new Table(MIN_LUMINANCE, MAX_LUMINANCE) {
+    @Override
+    double exact(double x) {
+      return PerceptualDiff.tvi(x, false);
+    }
+  };
+
+  private static final Table MASK = new Table(MIN_CONTRAST, MAX_CONTRAST) {
+    @Override
+    double exact(double x) {
+      return PerceptualDiff.mask(x, false);
+    }
+  };
+
+  /** Image width for which the csf tables were built. */
+  final int width;
+
+  private final Table[] csf;
+
+  /**
+   * Builds tables of the contrast sensitivity function for the given cycles per degree.
+   *
+   * @param width image width, from which the cycles per degree were computed
+   * @param cpd cycles per degree of each pyramid level
+   * @param levels number of levels for which to build tables
+   */
+  ModelTables(int width, double[] cpd, int levels) {
+    this.width = width;
+    csf = new Table[levels];
+    for (int i = 0; i < levels; i++) {
+      final double cyclesPerDegree = cpd[i];
+      csf[i] = new Table(MIN_LUMINANCE, MAX_LUMINANCE) {
+        @Override
+        double exact(double x) {
+          return PerceptualDiff.csf(cyclesPerDegree, x, false);
+        }
+      };
+    }
+  }
+
+  static double tvi(double adaptationLuminance) {
+    return TVI.get(adaptationLuminance);
+  }
+
+  static double mask(double contrast) {
+    return MASK.get(contrast);
+  }
+
+  double csf(int level, double adaptationLuminance) {
+    return csf[level].get(adaptationLuminance);
+  }
+
+  /**
+   * Piecewise linear table of a positive function.
+   */
+  abstract static class Table {
+
+    private final int base;
+    private final double[] values;
+
+    Table(float min, float max) {
+      base = Float.floatToRawIntBits(min) >> SHIFT;
+      int n = (Float.floatToRawIntBits(max) >> SHIFT) - base + 2;
+      values = new double[n];
+      for (int i = 0; i < n; i++) {
+        values[i] = exact(Float.intBitsToFloat((base + i) << SHIFT));
+      }
+    }
+
+    /**
+     * Evaluates the function exactly.
+     */
+    abstract double exact(double x);
+
+    /**
+     * Evaluates the function by interpolating between samples.
+     */
+    double get(double x) {
+      int bits = Float.floatToRawIntBits((float) x);
+      int i = (bits >> SHIFT) - base;
+      if (i < 0) {
+        return values[0];
+      }
+      if (i >= values.length - 1) {
+        return exact(x);
+      }
+      double weight = (bits & WEIGHT_MASK) * WEIGHT_SCALE;
+      return values[i] + weight * (values[i + 1] - values[i]);
+    }
+  }
+}
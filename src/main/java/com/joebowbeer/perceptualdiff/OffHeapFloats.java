@@ -0,0 +1,138 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Floats held outside the heap, indexed by longs. The values are split into chunks of up to
+ * 2^28 floats (1 GiB), each a direct buffer or a memory-mapped region of a scratch file, so
+ * that their number is limited neither by the heap nor by the int indexing of buffers. Floats
+ * stored in an existing file can also be mapped read-only.
+ * <p>
+ * Scratch files are deleted as soon as they are mapped where the platform allows, and otherwise
+ * when the JVM exits. The memory of both kinds of chunks is released when they are garbage
+ * collected. Absolute reads and writes may be made by concurrent threads, provided that they
+ * write different ranges.
+ */
+final class OffHeapFloats {
+
+  private static final int CHUNK_SHIFT = 28;
+
+  private final long length;
+  private final int chunkShift;
+  private final int chunkFloats;
+  private final FloatBuffer[] chunks;
+
+  /**
+   * Allocates zeroed floats.
+   *
+   * @param length number of floats
+   * @param scratchDir directory in which to create a scratch file to map, or <code>null</code>
+   *     for direct buffers
+   */
+  OffHeapFloats(long length, File scratchDir) throws IOException {
+    this(length, scratchDir, CHUNK_SHIFT);
+  }
+
+  /**
+   * Allocates zeroed floats in chunks of <code>2^chunkShift</code> floats.
+   */
+  OffHeapFloats(long length, File scratchDir, int chunkShift) throws IOException {
+    this(length, chunkShift);
+    if (scratchDir == null) {
+      for (int i = 0; i < chunks.length; i++) {
+        chunks[i] = ByteBuffer.allocateDirect(4 * chunkLength(i)).order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+      }
+      return;
+    }
+    File file = File.createTempFile("pyramid", ".tmp", scratchDir);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(4 * length);
+      FileChannel channel = raf.getChannel();
+      for (int i = 0; i < chunks.length; i++) {
+        chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, 4L * i * chunkFloats,
+            4L * chunkLength(i)).order(ByteOrder.nativeOrder()).asFloatBuffer();
+      }
+    } finally {
+      raf.close();
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+  }
+
+  private OffHeapFloats(long length, int chunkShift) {
+    this.length = length;
+    this.chunkShift = chunkShift;
+    chunkFloats = 1 << chunkShift;
+    chunks = new FloatBuffer[(int) ((length + chunkFloats - 1) >>> chunkShift)];
+  }
+
+  /**
+   * Maps floats stored in a file, read-only. The mapping remains valid after the channel is
+   * closed.
+   *
+   * @param channel file holding the floats
+   * @param position offset in bytes of the first float
+   * @param length number of floats
+   * @param order byte order of the floats in the file
+   */
+  static OffHeapFloats map(FileChannel channel, long position, long length, ByteOrder order)
+      throws IOException {
+    OffHeapFloats floats = new OffHeapFloats(length, CHUNK_SHIFT);
+    for (int i = 0; i < floats.chunks.length; i++) {
+      floats.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+          position + 4L * i * floats.chunkFloats, 4L * floats.chunkLength(i)).order(order)
+          .asFloatBuffer();
+    }
+    return floats;
+  }
+
+  private int chunkLength(int chunk) {
+    return (int) Math.min(chunkFloats, length - ((long) chunk << chunkShift));
+  }
+
+  long length() {
+    return length;
+  }
+
+  /**
+   * Reads <code>n</code> values starting at <code>index</code>.
+   */
+  void get(long index, float[] dst, int offset, int n) {
+    while (n > 0) {
+      FloatBuffer chunk = chunks[(int) (index >>> chunkShift)];
+      int i = (int) (index & (chunkFloats - 1));
+      int count = Math.min(n, chunkFloats - i);
+      FloatBuffer src = chunk.duplicate();
+      src.position(i);
+      src.get(dst, offset, count);
+      offset += count;
+      index += count;
+      n -= count;
+    }
+  }
+
+  /**
+   * Writes <code>n</code> values starting at <code>index</code>.
+   */
+  void put(long index, float[] src, int offset, int n) {
+    while (n > 0) {
+      FloatBuffer chunk = chunks[(int) (index >>> chunkShift)];
+      int i = (int) (index & (chunkFloats - 1));
+      int count = Math.min(n, chunkFloats - i);
+      for (int end = i + count; i < end; i++) {
+        chunk.put(i, src[offset++]);
+      }
+      index += count;
+      n -= count;
+    }
+  }
+}
@@ -25,11 +25,26 @@ import static java.lang.Math.log10;
 import static java.lang.Math.sqrt;
 import static java.lang.Math.tan;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -37,7 +52,25 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class PerceptualDiff {
 
-  private static final int MAX_PYR_LEVELS = 8;
+  static final int MAX_PYR_LEVELS = 8;
+
+  /** Largest number of powers of two by which images can be down sampled. */
+  static final int MAX_DOWN_SAMPLE = 30;
+
+  /**
+   * How the levels of the Laplacian pyramid are stored.
+   */
+  public enum PyramidType {
+    /** Every level at full resolution, as in the original pdiff. */
+    FULL,
+    /** Each level at half the resolution of the previous one, upsampled on lookup. */
+    DECIMATED,
+    /**
+     * Every level at full resolution in half-precision floats, and the color planes in 16-bit
+     * fixed point.
+     */
+    COMPACT
+  }
 
   private final double colorFactor;
   private final double fieldOfView;
@@ -46,17 +79,46 @@ public class PerceptualDiff {
   private final boolean luminanceOnly;
   private final int thresholdPixels;
   private final boolean failFast;
+  private final int tileSize;
+  private final PyramidType pyramidType;
+  private final PyramidCache baselineCache;
+  private final int bandSize;
+  private final boolean exactModel;
+  private final boolean skipUnchanged;
+  private final boolean cascade;
+  private final double cascadeMargin;
+  private final boolean failureMap;
+  private final boolean measureAllocation;
+  private final boolean offHeap;
+  private final File scratchDirectory;
+  private final int downSample;
 
   private final double numOneDegreePixels;
-  private final int adaptationLevel;
+  final int adaptationLevel;
 
   private final double[] lut = new double[256];
 
+  /** Lookup tables for the most recent image width, or null. */
+  private volatile ModelTables tables;
+
   private static final int ALPHA_MASK = 0xff000000;
 
   /**
-   * Builds parameter list for the PerceptualDiff {@linkplain
-   * PerceptualDiff#PerceptualDiff(double, int, boolean, double, double, boolean, double)
+   * Decodes the first file of each blocking comparison of files while the calling thread decodes
+   * the second. Decoding blocks on input, so it stays out of the fork-join pool.
+   */
+  private static final Executor DECODER = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "perceptualdiff-decoder");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * Builds a PerceptualDiff instance. Parameters not specified default to the values used by the
+   * {@linkplain PerceptualDiff#PerceptualDiff(double, int, boolean, double, double, boolean, double)
    * constructor}.
    */
   public static class Builder {
@@ -68,6 +130,19 @@ public class PerceptualDiff {
     private double luminance = 100.0;
     private boolean luminanceOnly = false;
     private int thresholdPixels = 100;
+    private int tileSize = 0;
+    private PyramidType pyramidType = PyramidType.FULL;
+    private PyramidCache baselineCache = null;
+    private int bandSize = 1 << 16;
+    private boolean exactModel = true;
+    private boolean skipUnchanged = true;
+    private boolean cascade = false;
+    private double cascadeMargin = 1.5;
+    private boolean failureMap = false;
+    private boolean measureAllocation = false;
+    private boolean offHeap = false;
+    private File scratchDirectory = null;
+    private int downSample = 0;
 
     public Builder setColorFactor(double colorFactor) {
       this.colorFactor = colorFactor;
@@ -104,9 +179,165 @@ public class PerceptualDiff {
       return this;
     }
 
+    /**
+     * Compares images tile by tile, so that peak memory depends on the tile size rather than the
+     * image size. Zero (the default) compares the whole image at once. Only applies to the
+     * {@linkplain PyramidType#FULL full} pyramid.
+     */
+    public Builder setTileSize(int tileSize) {
+      this.tileSize = tileSize;
+      return this;
+    }
+
+    /**
+     * Selects how the pyramid is stored. {@link PyramidType#DECIMATED} uses much less memory and
+     * blurring, at the cost of results that differ slightly from the original pdiff.
+     * {@link PyramidType#COMPACT} halves the memory read while comparing, and rounds the values
+     * compared to 16 bits.
+     */
+    public Builder setPyramidType(PyramidType pyramidType) {
+      this.pyramidType = pyramidType;
+      return this;
+    }
+
+    /**
+     * Caches the converted planes and pyramid of the first image of each comparison, so that
+     * comparisons against the same baseline only construct the pyramid of the second image. The
+     * cache is used only when whole images are compared: not by tiled or off-heap comparison, nor
+     * by {@linkplain PyramidType#COMPACT compact} pyramids, nor when the regions left by
+     * {@linkplain #setSkipUnchanged skipping unchanged pixels}, which is the default, or by a
+     * {@linkplain #setCascade cascade} are small enough to be compared by themselves.
+     */
+    public Builder setBaselineCache(PyramidCache baselineCache) {
+      this.baselineCache = baselineCache;
+      return this;
+    }
+
+    /**
+     * Sets the approximate number of pixels converted or blurred by each fork-join subtask when
+     * constructing a full pyramid. Zero constructs each pyramid in a single task.
+     */
+    public Builder setBandSize(int bandSize) {
+      this.bandSize = bandSize;
+      return this;
+    }
+
+    /**
+     * Evaluates the contrast sensitivity, threshold versus intensity and masking functions for
+     * every pixel, which is the default, or interpolates them from lookup tables. The tables are
+     * faster and, because the exact functions use {@link PerceptualDiff#fastpow fastpow}, closer
+     * to the published model, so they change the results slightly: for example, 70561 instead of
+     * 71213 pixels of fish1.png and fish2.png fail.
+     */
+    public Builder setExactModel(boolean exactModel) {
+      this.exactModel = exactModel;
+      return this;
+    }
+
+    /**
+     * Skips the areas in which the images are identical, which always pass, and compares only the
+     * tiles that changed, each with enough surrounding pixels to construct its pyramid exactly.
+     * Whole images are compared this way when the changed tiles are a small part of the image.
+     * Only applies to the {@linkplain PyramidType#FULL full} pyramid. On by default.
+     */
+    public Builder setSkipUnchanged(boolean skipUnchanged) {
+      this.skipUnchanged = skipUnchanged;
+      return this;
+    }
+
+    /**
+     * Compares a coarse version of the images first, which holds the extremes of each 8 x 8 cell
+     * of pixels, and then compares at full resolution only the tiles in which it finds cells
+     * whose outcome is in doubt. Cells that surely pass are skipped, and if the cells that surely
+     * fail already reach the threshold, the images fail without further comparison. Only applies
+     * to the {@linkplain PyramidType#FULL full} pyramid, and not to tiled comparison.
+     */
+    public Builder setCascade(boolean cascade) {
+      this.cascade = cascade;
+      return this;
+    }
+
+    /**
+     * Sets the factor by which the coarse stage of a {@linkplain #setCascade cascade} widens the
+     * threshold of visibility before it decides that cells surely pass or fail. The default of
+     * 1.5 absorbs the error of the approximations in the model, which is below 10%, with room to
+     * spare; 1 skips the most work.
+     *
+     * @throws IllegalArgumentException if <code>cascadeMargin</code> is less than 1
+     */
+    public Builder setCascadeMargin(double cascadeMargin) {
+      if (!(cascadeMargin >= 1)) {
+        throw new IllegalArgumentException("Cascade margin must be at least 1: " + cascadeMargin);
+      }
+      this.cascadeMargin = cascadeMargin;
+      return this;
+    }
+
+    /**
+     * Records which pixels fail, in a {@link FailureMap} returned with each
+     * {@linkplain CompareResult result}, without the full size difference image that would
+     * otherwise be needed. The map costs one bit per pixel. A cascade comparison that records
+     * failures compares every failing cell, rather than failing as soon as the coarse stage
+     * reaches the threshold.
+     */
+    public Builder setFailureMap(boolean failureMap) {
+      this.failureMap = failureMap;
+      return this;
+    }
+
+    /**
+     * Measures the bytes allocated during each comparison, reported by its {@linkplain
+     * CompareMetrics#getBytesAllocated metrics}. The measurement sums the allocation counters of
+     * every thread in the process at the start and end of the comparison, which costs time in
+     * proportion to the number of threads, and is approximate: it includes the allocations of
+     * anything else running meanwhile, such as other comparisons.
+     */
+    public Builder setMeasureAllocation(boolean measureAllocation) {
+      this.measureAllocation = measureAllocation;
+      return this;
+    }
+
+    /**
+     * Stores the pyramids and color planes outside the heap, so that whole images can be compared
+     * whose pyramids, about 80 bytes per pixel, would not fit in the heap. The pyramids are
+     * constructed in tiles, each with a halo that makes it match the whole-image pyramid exactly.
+     * Only applies to the {@linkplain PyramidType#FULL full} pyramid, and not to tiled or cascade
+     * comparison.
+     */
+    public Builder setOffHeap(boolean offHeap) {
+      this.offHeap = offHeap;
+      return this;
+    }
+
+    /**
+     * Maps the pyramids stored {@linkplain #setOffHeap outside the heap} from scratch files in the
+     * given directory, so that they can also exceed physical memory. The files are deleted when
+     * they have been mapped. The default of <code>null</code> stores them in direct buffers.
+     */
+    public Builder setScratchDirectory(File scratchDirectory) {
+      this.scratchDirectory = scratchDirectory;
+      return this;
+    }
+
+    /**
+     * Compares images reduced by <code>2^downSample</code> in each dimension. Each block of
+     * pixels is averaged as the images are read, so that no full-size copies are made, and the
+     * difference image and failure map are the size of the reduced images. The default of 0
+     * compares images at full size.
+     *
+     * @throws IllegalArgumentException if <code>downSample</code> is not between 0 and 30
+     */
+    public Builder setDownSample(int downSample) {
+      if (downSample < 0 || downSample > MAX_DOWN_SAMPLE) {
+        throw new IllegalArgumentException("Down sample must be between 0 and "
+            + MAX_DOWN_SAMPLE + ": " + downSample);
+      }
+      this.downSample = downSample;
+      return this;
+    }
+
     public PerceptualDiff build() {
-      return new PerceptualDiff(fieldOfView, thresholdPixels, failFast, gamma, luminance,
-          luminanceOnly, colorFactor);
+      return new PerceptualDiff(this);
     }
   }
 
@@ -124,13 +355,37 @@ public class PerceptualDiff {
   public PerceptualDiff(
       double fieldOfView, int thresholdPixels, boolean failFast, double gamma,
       double luminance, boolean luminanceOnly, double colorFactor) {
-    this.colorFactor = colorFactor;
-    this.fieldOfView = fieldOfView;
-    this.gamma = gamma;
-    this.luminance = luminance;
-    this.luminanceOnly = luminanceOnly;
-    this.thresholdPixels = thresholdPixels;
-    this.failFast = failFast;
+    this(new Builder()
+        .setFieldOfView(fieldOfView)
+        .setThresholdPixels(thresholdPixels)
+        .setFailFast(failFast)
+        .setGamma(gamma)
+        .setLuminance(luminance)
+        .setLuminanceOnly(luminanceOnly)
+        .setColorFactor(colorFactor));
+  }
+
+  private PerceptualDiff(Builder builder) {
+    this.colorFactor = builder.colorFactor;
+    this.fieldOfView = builder.fieldOfView;
+    this.gamma = builder.gamma;
+    this.luminance = builder.luminance;
+    this.luminanceOnly = builder.luminanceOnly;
+    this.thresholdPixels = builder.thresholdPixels;
+    this.failFast = builder.failFast;
+    this.tileSize = builder.tileSize;
+    this.pyramidType = builder.pyramidType;
+    this.baselineCache = builder.baselineCache;
+    this.bandSize = builder.bandSize;
+    this.exactModel = builder.exactModel;
+    this.skipUnchanged = builder.skipUnchanged;
+    this.cascade = builder.cascade;
+    this.cascadeMargin = builder.cascadeMargin;
+    this.failureMap = builder.failureMap;
+    this.measureAllocation = builder.measureAllocation;
+    this.offHeap = builder.offHeap;
+    this.scratchDirectory = builder.scratchDirectory;
+    this.downSample = builder.downSample;
 
     numOneDegreePixels = 2 * tan(fieldOfView * 0.5 * PI / 180) * 180 / PI;
 
@@ -152,220 +407,1551 @@ public class PerceptualDiff {
   }
 
   /**
-   * Prints some parameters to the log.
+   * Prints some parameters to the log.
+   */
+  public void dump() {
+    Log.v(String.format("Field of view is %s degrees", fieldOfView));
+    Log.v(String.format("Threshold is %d pixels", thresholdPixels));
+    Log.v(String.format("Gamma is %s", gamma));
+    Log.v(String.format("The display's Luminance is %s candelas per meter squared", luminance));
+    Log.v(String.format("Pyramid type is %s", pyramidType));
+    if (tileSize > 0) {
+      Log.v(String.format("Tile size is %d pixels", tileSize));
+    }
+    if (cascade) {
+      Log.v(String.format("Cascade margin is %s", cascadeMargin));
+    }
+    if (downSample > 0) {
+      Log.v(String.format("Down sampling by %d", 1 << downSample));
+    }
+    if (offHeap) {
+      Log.v((scratchDirectory != null)
+          ? "Pyramids are mapped from scratch files in " + scratchDirectory
+          : "Pyramids are stored outside the heap");
+    }
+  }
+
+  /**
+   * Compares images using Yee's method.
+   *
+   * References: A Perceptual Metric for Production Testing, Hector Yee, Journal of Graphics Tools
+   * 2004.
+   *
+   * @param pool fork-join pool for task execution
+   * @param imgA first of two images to compare
+   * @param imgB second of two images to compare
+   * @param imgDiff accumulates differences (optional)
+   * @return whether images are perceptually indistinguishable
+   * @throws IllegalStateException if the pyramids cannot be mapped in the scratch directory,
+   *     which the other methods report as an {@link IOException}
+   */
+  public boolean compare(ForkJoinPool pool, BufferedImage imgA, BufferedImage imgB,
+      BufferedImage imgDiff) {
+    try {
+      return compare(pool, new ComparisonWorkspace(), imgA, imgB, imgDiff).isPassed();
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Compares images using Yee's method, reusing the arrays held by the given workspace. Once the
+   * workspace has grown to fit the images, comparing whole images allocates no large arrays.
+   *
+   * @param pool fork-join pool for task execution
+   * @param workspace arrays reused between comparisons, not used by tiled comparison
+   * @param imgA first of two images to compare
+   * @param imgB second of two images to compare
+   * @param imgDiff accumulates differences (optional)
+   * @return whether images are perceptually indistinguishable, and how many pixels differ
+   * @throws IOException if the pyramids cannot be mapped in the scratch directory
+   */
+  public CompareResult compare(ForkJoinPool pool, ComparisonWorkspace workspace,
+      BufferedImage imgA, BufferedImage imgB, BufferedImage imgDiff) throws IOException {
+    CompareMetrics metrics = new CompareMetrics(measureAllocation);
+    return finish(compare(pool, workspace, imgA, imgB, imgDiff, false, false, metrics),
+        metrics);
+  }
+
+  /**
+   * Decodes and compares image files. Both files are decoded at once, the first on a decoder
+   * thread, straight into the arrays of the workspace where possible, and unless the images are
+   * tiled, stored outside the heap or down sampled, each band of rows is converted in the pool as
+   * soon as it has been decoded.
+   *
+   * @param pool fork-join pool for task execution
+   * @param workspace arrays reused between comparisons
+   * @param fileA first of two images to compare
+   * @param fileB second of two images to compare
+   * @param imgDiff accumulates differences (optional), the size of the first image once down
+   *     sampled
+   * @return whether images are perceptually indistinguishable, and how many pixels differ
+   * @throws IOException if either file cannot be decoded, or the pyramids cannot be mapped in
+   *     the scratch directory
+   */
+  public CompareResult compare(ForkJoinPool pool, ComparisonWorkspace workspace, File fileA,
+      File fileB, BufferedImage imgDiff) throws IOException {
+    CompareMetrics metrics = new CompareMetrics(measureAllocation);
+    return finish(compare(pool, DECODER, workspace, fileA, fileB, imgDiff, false, metrics),
+        metrics);
+  }
+
+  /**
+   * Decodes and compares image files as {@link #compare(ForkJoinPool, ComparisonWorkspace, File,
+   * File, BufferedImage) compare} does, accumulating differences in an image that is created
+   * once the size of the first image is known, and {@linkplain CompareResult#getDiffImage held}
+   * by the result.
+   */
+  CompareResult compareWithDiff(ForkJoinPool pool, ComparisonWorkspace workspace, File fileA,
+      File fileB) throws IOException {
+    CompareMetrics metrics = new CompareMetrics(measureAllocation);
+    return finish(compare(pool, DECODER, workspace, fileA, fileB, null, true, metrics),
+        metrics);
+  }
+
+  /**
+   * Starts comparing images on the executor, and returns without waiting for the result. The
+   * executor runs the blocking parts of the comparison, while its tasks run in the pool. Pyramids
+   * that cannot be mapped in the scratch directory fail the result with an {@link IOException}.
+   *
+   * @param pool fork-join pool for task execution
+   * @param executor runs the comparison, which waits for the tasks it starts in the pool
+   * @param imgA first of two images to compare
+   * @param imgB second of two images to compare
+   * @param imgDiff accumulates differences (optional)
+   * @return pending result, which can be cancelled
+   */
+  public CompareFuture compareAsync(final ForkJoinPool pool, Executor executor,
+      final BufferedImage imgA, final BufferedImage imgB, final BufferedImage imgDiff) {
+    CompareFuture future = new CompareFuture(measureAllocation, new CompareFuture.Work() {
+      @Override
+      public CompareResult run(CompareMetrics metrics) throws IOException {
+        return finish(compare(pool, new ComparisonWorkspace(), imgA, imgB, imgDiff, false, false,
+            metrics), metrics);
+      }
+    });
+    executor.execute(future.runnable());
+    return future;
+  }
+
+  /**
+   * Starts decoding and comparing image files on the executor, and returns without waiting for
+   * the result. The executor decodes the files, while the comparison tasks run in the pool. A
+   * file that cannot be decoded fails the result with an {@link IOException}.
+   *
+   * @param pool fork-join pool for task execution
+   * @param executor decodes the files, and runs the comparison, which waits for the tasks it
+   *     starts in the pool
+   * @param fileA first of two images to compare
+   * @param fileB second of two images to compare
+   * @param imgDiff accumulates differences (optional), the size of the first image once down
+   *     sampled
+   * @return pending result, which can be cancelled
+   */
+  public CompareFuture compareAsync(final ForkJoinPool pool, final Executor executor,
+      final File fileA, final File fileB, final BufferedImage imgDiff) {
+    CompareFuture future = new CompareFuture(measureAllocation, new CompareFuture.Work() {
+      @Override
+      public CompareResult run(CompareMetrics metrics) throws IOException {
+        return finish(compare(pool, executor, new ComparisonWorkspace(), fileA, fileB, imgDiff,
+            false, metrics), metrics);
+      }
+    });
+    executor.execute(future.runnable());
+    return future;
+  }
+
+  /**
+   * Decodes and compares image files. The first file is decoded by the executor while the
+   * calling thread decodes the second.
+   *
+   * @param createDiff whether to create the difference image, the size of the first image once
+   *     down sampled, instead of using <code>imgDiff</code>
+   */
+  private CompareResult compare(ForkJoinPool pool, Executor executor,
+      ComparisonWorkspace workspace, File fileA, File fileB, BufferedImage imgDiff,
+      boolean createDiff, CompareMetrics metrics) throws IOException {
+    // changed regions are copied from the converted images, but conversion is wasted on tiles,
+    // off the heap, or before the images are reduced
+    boolean convert = pyramidType == PyramidType.FULL && tileSize <= 0 && !offHeap
+        && downSample == 0;
+    workspace.a.release();
+    workspace.b.release();
+    long start = System.nanoTime();
+    FutureTask<BufferedImage> taskA =
+        new FutureTask<BufferedImage>(new DecodeTask(pool, fileA, workspace.a, convert));
+    executor.execute(taskA);
+    BufferedImage imgA;
+    BufferedImage imgB;
+    try {
+      imgB = new DecodeTask(pool, fileB, workspace.b, convert).call();
+    } finally {
+      imgA = decoded(taskA);
+    }
+    metrics.lap(CompareMetrics.Stage.DECODE, start);
+    if (createDiff) {
+      imgDiff = createDiffImage(imgA.getWidth(), imgA.getHeight());
+    }
+    CompareResult result = compare(pool, workspace, imgA, imgB, imgDiff, true, convert, metrics);
+    return createDiff ? result.withDiffImage(imgDiff) : result;
+  }
+
+  /**
+   * Attaches the metrics to the result, and records them in the statistics of this process.
+   */
+  private static CompareResult finish(CompareResult result, CompareMetrics metrics) {
+    if (metrics.isCancelled()) {
+      // the result is incomplete
+      throw new CancellationException();
+    }
+    metrics.finish();
+    result = result.withMetrics(metrics);
+    CompareStats.INSTANCE.record(result, metrics);
+    Log.v(metrics);
+    return result;
+  }
+
+  /**
+   * Waits for the decoded image, rethrowing the exception with which decoding failed, if any.
+   */
+  static BufferedImage decoded(Future<BufferedImage> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      task.cancel(true);
+      throw (IOException) new InterruptedIOException("Interrupted while decoding").initCause(ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /**
+   * Compares images.
+   *
+   * @param decoded whether the pixels of the images are already in the workspace
+   * @param converted whether the color planes and level 0 of the workspace already hold the
+   *     converted images
+   * @param metrics receives the time of each stage
+   * @throws IllegalArgumentException if the images, once down sampled, have more pixels than an
+   *     array can hold
+   */
+  private CompareResult compare(ForkJoinPool pool, ComparisonWorkspace workspace,
+      BufferedImage imgA, BufferedImage imgB, BufferedImage imgDiff, boolean decoded,
+      boolean converted, CompareMetrics metrics) throws IOException {
+
+    int w = imgA.getWidth();
+    int h = imgA.getHeight();
+
+    if (w != imgB.getWidth() || h != imgB.getHeight()) {
+      return result(false, 0, "Image dimensions do not match");
+    }
+
+    // the planes of A may still hold its pyramid from the previous comparison
+    BufferedImage sourceA = imgA;
+    BufferedImage sourceB = imgB;
+    boolean builtA = workspace.a.holds(this, sourceA);
+    if (!builtA) {
+      workspace.a.release();
+    }
+    workspace.b.release();
+
+    long start = System.nanoTime();
+    if (downSample > 0) {
+      // reduce the images as they are read, into the arrays that the comparison reads
+      int reducedDim = pixels(Pixels.reduced(w, downSample), Pixels.reduced(h, downSample));
+      imgA = builtA
+          ? Pixels.reducedView(imgA, downSample, workspace.a.rgb(reducedDim))
+          : Pixels.downSample(imgA, downSample,
+              workspace.a.rgb(decoded ? w * h : reducedDim), decoded);
+      imgB = Pixels.downSample(imgB, downSample,
+          workspace.b.rgb(decoded ? w * h : reducedDim), decoded);
+      decoded = true;
+      w = imgA.getWidth();
+      h = imgA.getHeight();
+      start = metrics.lap(CompareMetrics.Stage.READ, start);
+    }
+
+    int dim = pixels(w, h);
+    metrics.setPixels(dim);
+
+    FailureMap.Recorder failures = failureMap ? new FailureMap.Recorder(w, h) : null;
+
+    if (tileSize > 0 && pyramidType == PyramidType.FULL) {
+      CompareResult result = compareTiled(pool, imgA, imgB, imgDiff, failures, metrics);
+      metrics.lap(CompareMetrics.Stage.COMPARE, start);
+      return result;
+    }
+
+    if (offHeap && pyramidType == PyramidType.FULL) {
+      return compareOffHeap(pool, imgA, imgB, imgDiff, failures, metrics);
+    }
+
+    // assuming colorspaces are in Adobe RGB (1998)
+    int[] aRGB = (decoded || builtA)
+        ? workspace.a.rgb(dim) : Pixels.getRGB(imgA, 0, 0, w, h, workspace.a.rgb(dim));
+    int[] bRGB = decoded
+        ? workspace.b.rgb(dim) : Pixels.getRGB(imgB, 0, 0, w, h, workspace.b.rgb(dim));
+
+    // accept if all pixels are identical
+    boolean identical = rgbEquals(aRGB, bRGB, dim);
+    start = metrics.lap(CompareMetrics.Stage.READ, start);
+    if (identical) {
+      if (builtA) {
+        // the pyramid of A is also the pyramid of B, for the next comparison
+        workspace.swap();
+        workspace.b.hold(this, sourceB);
+      }
+      return result(true, 0, "Images are binary identical", failures);
+    }
+
+    // reject if alpha values are not identical
+    if (imgA.getTransparency() != OPAQUE || imgB.getTransparency() != OPAQUE) {
+      boolean alphaEqual = alphaEquals(aRGB, bRGB, dim);
+      start = metrics.lap(CompareMetrics.Stage.READ, start);
+      if (!alphaEqual) {
+        return result(false, 0, "Images have different alpha values");
+      }
+    }
+
+    // a retaining workspace compares whole images, to leave the pyramid of B for the next
+    if ((cascade || skipUnchanged) && pyramidType == PyramidType.FULL && !workspace.retain) {
+      List<Rectangle> boxes = new ArrayList<Rectangle>();
+      if (cascade) {
+        Cascade coarse = cascade(pool, workspace, w, h, converted);
+        converted = true;
+        int failed = coarse.classify(workspace.a.level(0, dim), workspace.a.a(dim),
+            workspace.a.b(dim), workspace.b.level(0, dim), workspace.b.a(dim),
+            workspace.b.b(dim), 2 * adaptationLevel, cascadeMargin, luminanceOnly, colorFactor);
+        start = metrics.lap(CompareMetrics.Stage.CASCADE, start);
+        if (failed >= thresholdPixels && imgDiff == null && failures == null) {
+          Log.v(String.format("Cascade resolved all %d pixels", dim));
+          Log.d("Images are visibly different");
+          return result(false, failed, 0,
+              String.format("At least %d pixels are different", failed));
+        }
+        coarse.findUnresolvedTiles(CHANGE_TILE_SIZE, CHANGE_TILES_PER_BOX, boxes);
+        long unresolved = 0;
+        for (Rectangle box : boxes) {
+          unresolved += (long) box.width * box.height;
+        }
+        Log.v(String.format("Cascade resolved %d of %d pixels", dim - unresolved, dim));
+        start = metrics.lap(CompareMetrics.Stage.CASCADE, start);
+      } else {
+        for (int y = 0; y < h; y += CHANGE_TILE_SIZE) {
+          findChangedTiles(aRGB, bRGB, y * w, w, y, Math.min(CHANGE_TILE_SIZE, h - y),
+              CHANGE_TILE_SIZE, CHANGE_TILES_PER_BOX, boxes);
+        }
+        start = metrics.lap(CompareMetrics.Stage.READ, start);
+      }
+      // comparing a box also converts and blurs its halo
+      long area = 0;
+      for (Rectangle box : boxes) {
+        area += (long) Math.min(box.width + 2 * TILE_HALO, w)
+            * Math.min(box.height + 2 * TILE_HALO, h);
+      }
+      if (area < dim / 2) {
+        Log.v(String.format("Comparing %d %s regions", boxes.size(),
+            cascade ? "unresolved" : "changed"));
+        CompareResult result = compareBoxes(pool, imgA, imgB, converted ? workspace : null,
+            imgDiff, boxes, failures, metrics);
+        metrics.lap(CompareMetrics.Stage.COMPARE, start);
+        return result;
+      }
+    }
+
+    // compact pyramids hold their own color planes
+    boolean compact = pyramidType == PyramidType.COMPACT;
+    float[] aA = compact ? null : workspace.a.a(dim);
+    float[] bA = compact ? null : workspace.b.a(dim);
+    float[] aB = compact ? null : workspace.a.b(dim);
+    float[] bB = compact ? null : workspace.b.b(dim);
+
+    Log.v("Converting RGB and constructing Laplacian Pyramids");
+
+    ForkJoinTask<Pyramid> taskA = builtA ? null : pool.submit(
+        new PyramidTask(workspace.a, w, h, compact ? null : baselineCache, converted));
+    ForkJoinTask<Pyramid> taskB =
+        pool.submit(new PyramidTask(workspace.b, w, h, null, converted));
+
+    double[] cpd = cyclesPerDegree(w);
+    double[] freq = frequencyWeights(cpd);
+    ModelTables tables = modelTables(w, cpd);
+
+    // Successively blurred versions of the original image.
+    Pyramid la = builtA ? new Pyramid.Full(workspace.a.levels(dim), aA, aB, dim) : taskA.join();
+    Pyramid lb = taskB.join();
+    start = metrics.lap(CompareMetrics.Stage.PYRAMID, start);
+    metrics.pyramidsConstructed = builtA ? 1 : 2;
+    // a cached baseline is read from its mapped entry, color planes included
+    boolean mapped = la instanceof Pyramid.OffHeap;
+    if (mapped) {
+      aA = aB = bA = bB = null;
+    }
+    if (workspace.retain && pyramidType == PyramidType.FULL) {
+      if (!mapped) {
+        workspace.a.hold(this, sourceA);
+      }
+      workspace.b.hold(this, sourceB);
+    }
+
+    Log.v("Performing test");
+
+    AtomicInteger pixelsFailed = new AtomicInteger();
+
+    int[] pixDiff = (imgDiff != null) ? workspace.pixDiff(dim) : null;
+
+    boolean completed = pool.invoke(new Comparison(aA, aB, la, bA, bB, lb, w, h,
+        pixelsFailed, pixDiff, failures, adaptationLevel, cpd, freq, tables, metrics)
+        .rootTask());
+    assert completed | failFast;
+    start = metrics.lap(CompareMetrics.Stage.COMPARE, start);
+
+    if (imgDiff != null) {
+      imgDiff.setRGB(0, 0, w, h, pixDiff, 0, w);
+      metrics.lap(CompareMetrics.Stage.WRITE, start);
+    }
+
+    return verdict(pixelsFailed.get(), dim, failures);
+  }
+
+  /**
+   * Converts both images, unless they have been converted already, and finds the extremes of
+   * each cell of the coarse stage of a cascade.
+   */
+  private Cascade cascade(ForkJoinPool pool, ComparisonWorkspace workspace, int w, int h,
+      boolean converted) {
+    int dim = w * h;
+    float[] aA = workspace.a.a(dim);
+    float[] aB = workspace.a.b(dim);
+    float[] lumA = workspace.a.level(0, dim);
+    float[] bA = workspace.b.a(dim);
+    float[] bB = workspace.b.b(dim);
+    float[] lumB = workspace.b.level(0, dim);
+    Cascade coarse = new Cascade(w, h);
+    if (bandSize > 0) {
+      int rows = Math.max(1, bandSize / w);
+      if (!converted) {
+        pool.invoke(new ConvertTask(workspace.a.rgb(dim), aA, aB, lumA, w, 0, h, rows));
+        pool.invoke(new ConvertTask(workspace.b.rgb(dim), bA, bB, lumB, w, 0, h, rows));
+      }
+      pool.invoke(new CascadeTask(coarse, lumA, aA, aB, lumB, bA, bB, 0, coarse.rows,
+          Math.max(1, rows / Cascade.CELL_SIZE)));
+    } else {
+      if (!converted) {
+        convert(workspace.a.rgb(dim), aA, aB, lumA, dim);
+        convert(workspace.b.rgb(dim), bA, bB, lumB, dim);
+      }
+      coarse.scan(lumA, aA, aB, lumB, bA, bB, 0, coarse.rows);
+    }
+    return coarse;
+  }
+
+  /**
+   * Compares images one tile at a time. Each tile is converted and blurred together with a halo
+   * wide enough for every level of the pyramid, so the results match the whole-image comparison
+   * bit for bit, while memory use is bounded by the tile size.
+   */
+  private CompareResult compareTiled(ForkJoinPool pool, BufferedImage imgA, BufferedImage imgB,
+      BufferedImage imgDiff, FailureMap.Recorder failures, CompareMetrics metrics) {
+
+    int w = imgA.getWidth();
+    int h = imgA.getHeight();
+
+    // scan strips of rows for identical pixels and alpha values
+    boolean checkAlpha =
+        imgA.getTransparency() != OPAQUE || imgB.getTransparency() != OPAQUE;
+    boolean identical = true;
+    List<Rectangle> boxes = new ArrayList<Rectangle>();
+    int stripRows = Math.max(1, Math.min(h, tileSize));
+    int[] aRGB = new int[w * stripRows];
+    int[] bRGB = new int[w * stripRows];
+    for (int y = 0; y < h; y += stripRows) {
+      int rows = Math.min(stripRows, h - y);
+      Pixels.getRGB(imgA, 0, y, w, rows, aRGB);
+      Pixels.getRGB(imgB, 0, y, w, rows, bRGB);
+      if (identical && !rgbEquals(aRGB, bRGB, w * rows)) {
+        identical = false;
+      }
+      if (checkAlpha && !alphaEquals(aRGB, bRGB, w * rows)) {
+        return result(false, 0, "Images have different alpha values");
+      }
+      if (skipUnchanged) {
+        findChangedTiles(aRGB, bRGB, 0, w, y, rows, tileSize, 1, boxes);
+      } else {
+        for (int x = 0; x < w; x += tileSize) {
+          boxes.add(new Rectangle(x, y, Math.min(tileSize, w - x), rows));
+        }
+      }
+    }
+
+    // accept if all pixels are identical
+    if (identical) {
+      return result(true, 0, "Images are binary identical", failures);
+    }
+
+    Log.v(String.format("Comparing %d tiles", boxes.size()));
+
+    return compareBoxes(pool, imgA, imgB, null, imgDiff, boxes, failures, metrics);
+  }
+
+  /**
+   * Compares images whose pyramids are stored outside the heap. The images are read a strip of
+   * rows at a time to check them for identity and changes, and the pyramids are constructed a
+   * tile at a time, so the heap holds only the images and a few tiles.
+   */
+  private CompareResult compareOffHeap(ForkJoinPool pool, BufferedImage imgA,
+      BufferedImage imgB, BufferedImage imgDiff, FailureMap.Recorder failures,
+      CompareMetrics metrics) throws IOException {
+
+    int w = imgA.getWidth();
+    int h = imgA.getHeight();
+    int dim = pixels(w, h);
+    long start = System.nanoTime();
+
+    // scan strips of rows for identical pixels, alpha values and changed tiles
+    boolean checkAlpha =
+        imgA.getTransparency() != OPAQUE || imgB.getTransparency() != OPAQUE;
+    boolean identical = true;
+    List<Rectangle> boxes = new ArrayList<Rectangle>();
+    int stripRows = Math.max(1, Math.min(h, CHANGE_TILE_SIZE));
+    int[] aRGB = new int[w * stripRows];
+    int[] bRGB = new int[w * stripRows];
+    for (int y = 0; y < h; y += stripRows) {
+      int rows = Math.min(stripRows, h - y);
+      Pixels.getRGB(imgA, 0, y, w, rows, aRGB);
+      Pixels.getRGB(imgB, 0, y, w, rows, bRGB);
+      if (identical && !rgbEquals(aRGB, bRGB, w * rows)) {
+        identical = false;
+      }
+      if (checkAlpha && !alphaEquals(aRGB, bRGB, w * rows)) {
+        return result(false, 0, "Images have different alpha values");
+      }
+      if (skipUnchanged) {
+        findChangedTiles(aRGB, bRGB, 0, w, y, rows, CHANGE_TILE_SIZE, CHANGE_TILES_PER_BOX,
+            boxes);
+      }
+    }
+    start = metrics.lap(CompareMetrics.Stage.READ, start);
+
+    // accept if all pixels are identical
+    if (identical) {
+      return result(true, 0, "Images are binary identical", failures);
+    }
+
+    if (skipUnchanged) {
+      long area = 0;
+      for (Rectangle box : boxes) {
+        area += (long) Math.min(box.width + 2 * TILE_HALO, w)
+            * Math.min(box.height + 2 * TILE_HALO, h);
+      }
+      if (area < dim / 2) {
+        Log.v(String.format("Comparing %d changed regions", boxes.size()));
+        CompareResult result =
+            compareBoxes(pool, imgA, imgB, null, imgDiff, boxes, failures, metrics);
+        metrics.lap(CompareMetrics.Stage.COMPARE, start);
+        return result;
+      }
+    }
+
+    Log.v("Constructing Laplacian Pyramids outside the heap");
+
+    Pyramid.OffHeap la = new Pyramid.OffHeap(w, h, MAX_PYR_LEVELS, scratchDirectory);
+    Pyramid.OffHeap lb = new Pyramid.OffHeap(w, h, MAX_PYR_LEVELS, scratchDirectory);
+    int tileRows = (h + OFF_HEAP_TILE_SIZE - 1) / OFF_HEAP_TILE_SIZE;
+    pool.invoke(new OffHeapTask(imgA, imgB, la, lb, 0, tileRows, 1));
+    metrics.pyramidsConstructed = 2;
+
+    double[] cpd = cyclesPerDegree(w);
+    double[] freq = frequencyWeights(cpd);
+    ModelTables tables = modelTables(w, cpd);
+    start = metrics.lap(CompareMetrics.Stage.PYRAMID, start);
+
+    Log.v("Performing test");
+
+    AtomicInteger pixelsFailed = new AtomicInteger();
+
+    int[] pixDiff = (imgDiff != null) ? new int[dim] : null;
+
+    // the pyramids hold the color planes
+    boolean completed = pool.invoke(new Comparison(null, null, la, null, null, lb, w, h,
+        pixelsFailed, pixDiff, failures, adaptationLevel, cpd, freq, tables, metrics)
+        .rootTask());
+    assert completed | failFast;
+    start = metrics.lap(CompareMetrics.Stage.COMPARE, start);
+
+    if (imgDiff != null) {
+      imgDiff.setRGB(0, 0, w, h, pixDiff, 0, w);
+      metrics.lap(CompareMetrics.Stage.WRITE, start);
+    }
+
+    return verdict(pixelsFailed.get(), dim, failures);
+  }
+
+  /**
+   * Compares the given regions, treating all pixels outside them as identical.
+   *
+   * @param converted workspace whose color planes and level 0 hold the converted images, from
+   *     which the regions are copied rather than converted, or <code>null</code>
+   */
+  private CompareResult compareBoxes(ForkJoinPool pool, BufferedImage imgA, BufferedImage imgB,
+      ComparisonWorkspace converted, BufferedImage imgDiff, List<Rectangle> boxes,
+      FailureMap.Recorder failures, CompareMetrics metrics) {
+
+    int w = imgA.getWidth();
+    int h = imgA.getHeight();
+
+    if (imgDiff != null) {
+      // identical pixels pass
+      int stripRows = Math.max(1, Math.min(h, CHANGE_TILE_SIZE));
+      int[] pass = new int[w * stripRows];
+      Arrays.fill(pass, Comparison.COLOR_PASS);
+      for (int y = 0; y < h; y += stripRows) {
+        imgDiff.setRGB(0, y, w, Math.min(stripRows, h - y), pass, 0, w);
+      }
+    }
+
+    double[] cpd = cyclesPerDegree(w);
+    double[] freq = frequencyWeights(cpd);
+    ModelTables tables = modelTables(w, cpd);
+
+    AtomicInteger pixelsFailed = new AtomicInteger();
+
+    boolean completed = pool.invoke(new TileTask(imgA, imgB, converted, imgDiff,
+        boxes.toArray(new Rectangle[boxes.size()]), pixelsFailed, failures, cpd, freq, tables,
+        metrics, 0, boxes.size(), null));
+    assert completed | failFast;
+
+    long area = 0;
+    for (Rectangle box : boxes) {
+      area += (long) box.width * box.height;
+    }
+    return verdict(pixelsFailed.get(), area, failures);
+  }
+
+  /**
+   * Returns whether the first <code>length</code> pixels are identical.
+   */
+  private static boolean rgbEquals(int[] aRGB, int[] bRGB, int length) {
+    for (int index = 0; index < length; index++) {
+      if (aRGB[index] != bRGB[index]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the bounds of the tiles in a strip of rows in which any pixels differ. Up to
+   * <code>maxRun</code> adjacent changed tiles are merged into one box.
+   *
+   * @param aRGB pixels of first image
+   * @param bRGB pixels of second image
+   * @param offset index of the first pixel of the strip in the pixel arrays
+   * @param width image width
+   * @param top image row of the strip
+   * @param rows number of rows in the strip
+   * @param tileSize tile width
+   * @param maxRun maximum number of tiles in one box
+   * @param boxes receives the bounds of the changed tiles
+   */
+  private static void findChangedTiles(int[] aRGB, int[] bRGB, int offset, int width, int top,
+      int rows, int tileSize, int maxRun, List<Rectangle> boxes) {
+    Rectangle run = null;
+    int runLength = 0;
+    for (int x0 = 0; x0 < width; x0 += tileSize) {
+      int x1 = Math.min(x0 + tileSize, width);
+      boolean changed = false;
+      for (int y = 0; !changed && y < rows; y++) {
+        for (int index = offset + y * width + x0, end = index + x1 - x0; index < end; index++) {
+          if (aRGB[index] != bRGB[index]) {
+            changed = true;
+            break;
+          }
+        }
+      }
+      if (!changed) {
+        run = null;
+      } else if (run != null && runLength < maxRun) {
+        run.width = x1 - run.x;
+        runLength++;
+      } else {
+        run = new Rectangle(x0, top, x1 - x0, rows);
+        runLength = 1;
+        boxes.add(run);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the alpha values of the first <code>length</code> pixels are identical.
+   */
+  private static boolean alphaEquals(int[] aRGB, int[] bRGB, int length) {
+    for (int index = 0; index < length; index++) {
+      if ((aRGB[index] & ALPHA_MASK) != (bRGB[index] & ALPHA_MASK)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the cycles per degree represented by each level of the pyramid.
+   */
+  double[] cyclesPerDegree(int width) {
+    double pixelsPerDegree = width / numOneDegreePixels;
+    double[] cpd = new double[MAX_PYR_LEVELS];
+    cpd[0] = 0.5 * pixelsPerDegree;
+    for (int i = 1; i < MAX_PYR_LEVELS; i++) {
+      cpd[i] = 0.5 * cpd[i - 1];
+    }
+    return cpd;
+  }
+
+  /**
+   * Returns the contrast sensitivity weights for each level of the pyramid.
+   */
+  static double[] frequencyWeights(double[] cpd) {
+    double csfMax = csf(3.248, 100.0);
+    double[] freq = new double[MAX_PYR_LEVELS - 2];
+    for (int i = 0; i < MAX_PYR_LEVELS - 2; i++) {
+      freq[i] = csfMax / csf(cpd[i], 100.0);
+    }
+    return freq;
+  }
+
+  /**
+   * Returns the lookup tables for images of the given width, or <code>null</code> if the model is
+   * to be evaluated exactly. Tables are kept for the most recent width, which is usually the same
+   * from one comparison to the next.
+   */
+  ModelTables modelTables(int width, double[] cpd) {
+    if (exactModel) {
+      return null;
+    }
+    ModelTables t = tables;
+    if (t == null || t.width != width) {
+      tables = t = new ModelTables(width, cpd, MAX_PYR_LEVELS - 2);
+    }
+    return t;
+  }
+
+  /**
+   * Logs and returns the verdict for the given number of failed pixels.
+   *
+   * @param failures the failures of each pixel, if recorded
+   */
+  private CompareResult verdict(int pixelsFailed, long pixelsCompared,
+      FailureMap.Recorder failures) {
+    String difference = String.format("%d pixels are different", pixelsFailed);
+
+    if (pixelsFailed >= thresholdPixels) {
+      Log.d("Images are visibly different");
+      if (failFast) {
+        difference = "At least " + difference;
+      }
+      return result(false, pixelsFailed, pixelsCompared, difference, failures);
+    }
+
+    Log.d("Images are perceptually indistinguishable");
+    return result(true, pixelsFailed, pixelsCompared, difference, failures);
+  }
+
+  /**
+   * Returns the result of comparing images of the given size that are known to be identical
+   * without comparing them, with an empty failure map, the size of the down sampled images, if
+   * failures are recorded.
+   */
+  CompareResult identical(int width, int height, String message) {
+    return result(true, 0, message, failureMap ? new FailureMap.Recorder(
+        Pixels.reduced(width, downSample), Pixels.reduced(height, downSample)) : null);
+  }
+
+  /**
+   * Creates a difference image for images of the given size, once they are down sampled.
+   */
+  BufferedImage createDiffImage(int width, int height) {
+    return new BufferedImage(Pixels.reduced(width, downSample),
+        Pixels.reduced(height, downSample), BufferedImage.TYPE_INT_ARGB);
+  }
+
+  /**
+   * Logs the message and returns the result of a comparison that compared no pixels.
+   */
+  private static CompareResult result(boolean passed, int pixelsFailed, String message) {
+    return result(passed, pixelsFailed, 0, message);
+  }
+
+  /**
+   * Logs the message and returns the result of a comparison that found no differences, with an
+   * empty failure map if failures are recorded.
+   */
+  private static CompareResult result(boolean passed, int pixelsFailed, String message,
+      FailureMap.Recorder failures) {
+    return result(passed, pixelsFailed, 0, message, failures);
+  }
+
+  /**
+   * Logs the message and returns the result.
+   */
+  private static CompareResult result(boolean passed, int pixelsFailed, long pixelsCompared,
+      String message) {
+    return result(passed, pixelsFailed, pixelsCompared, message, null);
+  }
+
+  /**
+   * Logs the message and returns the result, with the recorded failures, if any.
+   */
+  private static CompareResult result(boolean passed, int pixelsFailed, long pixelsCompared,
+      String message, FailureMap.Recorder failures) {
+    Log.d(message);
+    return new CompareResult(passed, pixelsFailed, pixelsCompared, message,
+        (failures != null) ? failures.toMap() : null, null);
+  }
+
+  /**
+   * Compares a range of tiles, recursively splitting the range as in {@link Comparison}. The tiles
+   * may be of any size.
+   */
+  private class TileTask extends RecursiveTask<Boolean> {
+
+    private final BufferedImage imgA;
+    private final BufferedImage imgB;
+    private final ComparisonWorkspace converted;
+    private final BufferedImage imgDiff;
+    private final Rectangle[] tiles;
+    private final AtomicInteger pixelsFailed;
+    private final FailureMap.Recorder failures;
+    private final double[] cpd;
+    private final double[] freq;
+    private final ModelTables tables;
+    private final CompareMetrics metrics;
+    private final int beginTile;
+    private final int endTile;
+    private final TileTask next; // keeps track of forked tasks
+
+    /**
+     * @param converted workspace whose color planes and level 0 hold the converted images, or
+     *     <code>null</code> to convert each tile from the images
+     */
+    protected TileTask(BufferedImage imgA, BufferedImage imgB, ComparisonWorkspace converted,
+        BufferedImage imgDiff, Rectangle[] tiles, AtomicInteger pixelsFailed,
+        FailureMap.Recorder failures, double[] cpd, double[] freq, ModelTables tables,
+        CompareMetrics metrics, int beginTile, int endTile, TileTask next) {
+      this.imgA = imgA;
+      this.imgB = imgB;
+      this.converted = converted;
+      this.imgDiff = imgDiff;
+      this.tiles = tiles;
+      this.pixelsFailed = pixelsFailed;
+      this.failures = failures;
+      this.cpd = cpd;
+      this.freq = freq;
+      this.tables = tables;
+      this.metrics = metrics;
+      this.beginTile = beginTile;
+      this.endTile = endTile;
+      this.next = next;
+    }
+
+    @Override
+    protected Boolean compute() {
+      int lo = beginTile;
+      int hi = endTile;
+      TileTask right = null;
+      while (!isCancelled() && hi - lo > 1 && getSurplusQueuedTaskCount() <= 3) {
+        int mid = (lo + hi) >>> 1;
+        right = new TileTask(imgA, imgB, converted, imgDiff, tiles, pixelsFailed, failures, cpd,
+            freq, tables, metrics, mid, hi, right);
+        right.fork();
+        metrics.tasksForked.incrementAndGet();
+        hi = mid;
+      }
+      boolean running = true;
+      for (int tile = lo; running && tile < hi; tile++) {
+        running = atTile(tiles[tile]);
+      }
+      while (right != null) {
+        if (running) {
+          running &= right.join();
+        } else {
+          right.cancel(false);
+        }
+        right = right.next;
+      }
+      return running;
+    }
+
+    /**
+     * Converts, blurs and compares a single tile.
+     *
+     * @return <code>true</code> if all pixels in the tile were compared
+     */
+    private boolean atTile(Rectangle tile) {
+      if (isCancelled() || metrics.isCancelled()) {
+        return false;
+      }
+      int width = imgA.getWidth();
+      int height = imgA.getHeight();
+
+      // tile bounds
+      int x0 = tile.x;
+      int y0 = tile.y;
+      int x1 = x0 + tile.width;
+      int y1 = y0 + tile.height;
+
+      // bounds of tile plus halo
+      int left = Math.max(x0 - TILE_HALO, 0);
+      int top = Math.max(y0 - TILE_HALO, 0);
+      int stride = Math.min(x1 + TILE_HALO, width) - left;
+      int rows = Math.min(y1 + TILE_HALO, height) - top;
+      int dim = stride * rows;
+
+      float[] aA;
+      float[] bA;
+      float[] aB;
+      float[] bB;
+      float[][] la = new float[MAX_PYR_LEVELS][];
+      float[][] lb = new float[MAX_PYR_LEVELS][];
+      if (converted != null) {
+        int size = width * height;
+        int corner = top * width + left;
+        aA = crop(converted.a.a(size), corner, width, stride, rows);
+        aB = crop(converted.a.b(size), corner, width, stride, rows);
+        la[0] = crop(converted.a.level(0, size), corner, width, stride, rows);
+        bA = crop(converted.b.a(size), corner, width, stride, rows);
+        bB = crop(converted.b.b(size), corner, width, stride, rows);
+        lb[0] = crop(converted.b.level(0, size), corner, width, stride, rows);
+      } else {
+        aA = new float[dim];
+        aB = new float[dim];
+        la[0] = new float[dim];
+        bA = new float[dim];
+        bB = new float[dim];
+        lb[0] = new float[dim];
+        convert(Pixels.getRGB(imgA, left, top, stride, rows, null), aA, aB, la[0], dim);
+        convert(Pixels.getRGB(imgB, left, top, stride, rows, null), bA, bB, lb[0], dim);
+      }
+      for (int i = 1; i < MAX_PYR_LEVELS; i++) {
+        la[i] = new float[dim];
+        lb[i] = new float[dim];
+      }
+      float[] tmp = new float[dim];
+
+      constructTile(la, tmp, left, top, stride, x0, y0, x1, y1, width, height);
+      constructTile(lb, tmp, left, top, stride, x0, y0, x1, y1, width, height);
+
+      // crop to tile bounds and compare
+      int tw = x1 - x0;
+      int th = y1 - y0;
+      int offset = (y0 - top) * stride + (x0 - left);
+      int[] pixDiff = (imgDiff != null) ? new int[tw * th] : null;
+      aA = crop(aA, offset, stride, tw, th);
+      aB = crop(aB, offset, stride, tw, th);
+      bA = crop(bA, offset, stride, tw, th);
+      bB = crop(bB, offset, stride, tw, th);
+      boolean completed = new Comparison(aA, aB,
+          new Pyramid.Full(crop(la, offset, stride, tw, th), aA, aB, tw * th), bA, bB,
+          new Pyramid.Full(crop(lb, offset, stride, tw, th), bA, bB, tw * th), tw, th,
+          pixelsFailed, pixDiff, (failures != null) ? failures.region(x0, y0, tw) : null,
+          adaptationLevel, cpd, freq, tables, metrics).rootTask().invoke();
+
+      if (imgDiff != null) {
+        imgDiff.setRGB(x0, y0, tw, th, pixDiff, 0, tw);
+      }
+      return completed;
+    }
+  }
+
+  private static float[] crop(float[] src, int offset, int stride, int width, int height) {
+    float[] dst = new float[width * height];
+    for (int y = 0; y < height; y++) {
+      System.arraycopy(src, offset + y * stride, dst, y * width, width);
+    }
+    return dst;
+  }
+
+  private static float[][] crop(float[][] src, int offset, int stride, int width, int height) {
+    float[][] dst = new float[src.length][];
+    for (int i = 0; i < src.length; i++) {
+      dst[i] = crop(src[i], offset, stride, width, height);
+    }
+    return dst;
+  }
+
+  /**
+   * Decodes an image file into the planes of a workspace, optionally converting each band of rows
+   * as it is decoded.
+   */
+  private class DecodeTask implements Callable<BufferedImage> {
+
+    private final ForkJoinPool pool;
+    private final File file;
+    private final ComparisonWorkspace.Planes planes;
+    private final boolean convert;
+
+    protected DecodeTask(ForkJoinPool pool, File file, ComparisonWorkspace.Planes planes,
+        boolean convert) {
+      this.pool = pool;
+      this.file = file;
+      this.planes = planes;
+      this.convert = convert;
+    }
+
+    @Override
+    public BufferedImage call() throws IOException {
+      ImageInput input = new ImageInput(file);
+      try {
+        final int width = input.getWidth();
+        int dim;
+        try {
+          dim = pixels(width, input.getHeight());
+        } catch (IllegalArgumentException ex) {
+          throw new IOException(file + ": " + ex.getMessage());
+        }
+        final int[] rgb = planes.rgb(dim);
+        final int rows = Math.max(1, bandSize / width);
+        if (!convert) {
+          return input.read(rgb, rows, null);
+        }
+        final float[] a = planes.a(dim);
+        final float[] b = planes.b(dim);
+        final float[] lum = planes.level(0, dim);
+        final List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+        BufferedImage img = input.read(rgb, rows, new ImageInput.RowListener() {
+          @Override
+          public void rowsDecoded(int begin, int end) {
+            if (bandSize > 0) {
+              tasks.add(pool.submit(new ConvertTask(rgb, a, b, lum, width, begin, end, rows)));
+            } else {
+              convert(rgb, a, b, lum, begin * width, end * width);
+            }
+          }
+        });
+        for (ForkJoinTask<Void> task : tasks) {
+          task.join();
+        }
+        return img;
+      } finally {
+        input.close();
+      }
+    }
+  }
+
+  /**
+   * Converts color values and constructs Laplacian pyramids.
+   */
+  private class PyramidTask implements Callable<Pyramid> {
+
+    private final ComparisonWorkspace.Planes planes;
+    private final int width;
+    private final int height;
+    private final PyramidCache cache;
+    private final boolean converted;
+
+    /**
+     * @param converted whether the color planes and level 0 of a full pyramid already hold the
+     *     converted image
+     */
+    protected PyramidTask(ComparisonWorkspace.Planes planes, int width, int height,
+        PyramidCache cache, boolean converted) {
+      this.planes = planes;
+      this.width = width;
+      this.height = height;
+      this.cache = cache;
+      this.converted = converted;
+    }
+
+    @Override
+    public Pyramid call() {
+      int dim = width * height;
+      int[] rgb = planes.rgb(dim);
+      if (pyramidType == PyramidType.COMPACT) {
+        return constructCompact(rgb);
+      }
+      float[] a = planes.a(dim);
+      float[] b = planes.b(dim);
+      Pyramid pyramid = (pyramidType == PyramidType.DECIMATED)
+          ? new Pyramid.Decimated(planes, width, height, MAX_PYR_LEVELS)
+          : new Pyramid.Full(planes.levels(dim), a, b, dim);
+      String key = null;
+      if (cache != null) {
+        key = PyramidCache.key(rgb, width, height, gamma, luminance, pyramidType);
+        if (pyramidType == PyramidType.DECIMATED) {
+          if (cache.load(key, a, b, (Pyramid.FloatLevels) pyramid)) {
+            return pyramid;
+          }
+        } else {
+          Pyramid mapped = cache.map(key, width, height, MAX_PYR_LEVELS);
+          if (mapped != null) {
+            return mapped;
+          }
+        }
+      }
+      float[] lum = planes.level(0, dim);
+      if (pyramidType == PyramidType.DECIMATED) {
+        convert(rgb, a, b, lum, dim);
+        ((Pyramid.Decimated) pyramid).construct(planes.tmp((width + 1) / 2 * height));
+      } else if (bandSize > 0 && ForkJoinTask.inForkJoinPool()) {
+        int rows = Math.max(1, bandSize / width);
+        if (!converted) {
+          new ConvertTask(rgb, a, b, lum, width, 0, height, rows).invoke();
+        }
+        construct(planes.levels(dim), planes.tmp(dim), width, height, bandSize);
+      } else {
+        if (!converted) {
+          convert(rgb, a, b, lum, dim);
+        }
+        construct(planes.levels(dim), planes.tmp(dim), width, height);
+      }
+      if (cache != null) {
+        cache.store(key, a, b, (Pyramid.FloatLevels) pyramid);
+      }
+      return pyramid;
+    }
+
+    /**
+     * Constructs a compact pyramid in three float planes, rounding each level as it is completed.
+     * The planes first receive the color values, and are then reused to blur the levels and to
+     * hold the previous level as stored.
+     */
+    private Pyramid constructCompact(int[] rgb) {
+      int dim = width * height;
+      Pyramid.Compact pyramid = new Pyramid.Compact(planes, dim, MAX_PYR_LEVELS, luminance);
+      float[] a = planes.a(dim);
+      float[] lum = planes.level(0, dim);
+      float[] tmp = planes.tmp(dim);
+      if (bandSize > 0 && ForkJoinTask.inForkJoinPool()) {
+        int rows = Math.max(1, bandSize / width);
+        int columns = Math.max(1, bandSize / height);
+        new ConvertTask(rgb, a, tmp, lum, width, 0, height, rows).invoke();
+        new StoreTask(pyramid, -1, a, tmp, width, 0, height, rows).invoke();
+        new StoreTask(pyramid, 0, lum, a, width, 0, height, rows).invoke();
+        for (int i = 1; i < MAX_PYR_LEVELS; i++) {
+          new ConvolveTask(lum, tmp, width, height, 0, height, rows).invoke();
+          new ConvolveTask(tmp, lum, height, width, 0, width, columns).invoke();
+          new StoreTask(pyramid, i, lum, a, width, 0, height, rows).invoke();
+        }
+      } else {
+        convert(rgb, a, tmp, lum, dim);
+        pyramid.storeColor(a, tmp, 0, dim);
+        pyramid.storeLevel(0, lum, a, 0, dim);
+        for (int i = 1; i < MAX_PYR_LEVELS; i++) {
+          convolveAndTranspose(lum, tmp, width, height);
+          convolveAndTranspose(tmp, lum, height, width);
+          pyramid.storeLevel(i, lum, a, 0, dim);
+        }
+      }
+      return pyramid;
+    }
+  }
+
+  /**
+   * Converts RGB to AB and luminance.
+   *
+   * @param rgb pixel values
+   * @param a A
+   * @param b B
+   * @param lum Y * luminance
+   * @param length number of pixels to convert
    */
-  public void dump() {
-    Log.v(String.format("Field of view is %s degrees", fieldOfView));
-    Log.v(String.format("Threshold is %d pixels", thresholdPixels));
-    Log.v(String.format("Gamma is %s", gamma));
-    Log.v(String.format("The display's Luminance is %s candelas per meter squared", luminance));
+  protected void convert(int[] rgb, float[] a, float[] b, float[] lum, int length) {
+    convert(rgb, a, b, lum, 0, length);
   }
 
   /**
-   * Compares images using Yee's method.
-   *
-   * References: A Perceptual Metric for Production Testing, Hector Yee, Journal of Graphics Tools
-   * 2004.
-   *
-   * @param pool fork-join pool for task execution
-   * @param imgA first of two images to compare
-   * @param imgB second of two images to compare
-   * @param imgDiff accumulates differences (optional)
-   * @return whether images are perceptually indistinguishable
+   * Converts RGB to AB and luminance in the specified range of indices.
    */
-  public boolean compare(ForkJoinPool pool, BufferedImage imgA, BufferedImage imgB,
-      BufferedImage imgDiff) {
+  private void convert(int[] rgb, float[] a, float[] b, float[] lum, int begin, int end) {
+    Kernels.INSTANCE.convert(lut, luminance, rgb, a, b, lum, begin, end);
+  }
 
-    int w = imgA.getWidth();
-    int h = imgA.getHeight();
+  /**
+   * Filter kernel for Laplacian convolution.
+   */
+  static final float[] KERNEL = {0.05f, 0.25f, 0.4f, 0.25f, 0.05f};
 
-    if (w != imgB.getWidth() || h != imgB.getHeight()) {
-      Log.d("Image dimensions do not match");
-      return false;
+  /**
+   * Constructs the Laplacian pyramid by successively copying earlier levels and blurring them.
+   */
+  protected static void construct(float[][] levels, float[] tmp, int width, int height) {
+    // tmp is transposed
+    for (int i = 1, n = levels.length; i < n; i++) {
+      // apply filter kernel horizontally and then vertically
+      convolveAndTranspose(levels[i - 1], tmp, width, height);
+      convolveAndTranspose(tmp, levels[i], height, width);
     }
+  }
 
-    // assuming colorspaces are in Adobe RGB (1998)
-    int[] aRGB = imgA.getRGB(0, 0, w, h, null, 0, w);
-    int[] bRGB = imgB.getRGB(0, 0, w, h, null, 0, w);
-
-    // accept if all pixels are identical
-    if (Arrays.equals(aRGB, bRGB)) {
-      Log.d("Images are binary identical");
-      return true;
+  /**
+   * Constructs the Laplacian pyramid, running each blur pass as fork-join subtasks of about
+   * <code>bandSize</code> pixels. Must be called from a fork-join pool.
+   */
+  protected static void construct(float[][] levels, float[] tmp, int width, int height,
+      int bandSize) {
+    int rows = Math.max(1, bandSize / width);
+    int columns = Math.max(1, bandSize / height);
+    for (int i = 1, n = levels.length; i < n; i++) {
+      new ConvolveTask(levels[i - 1], tmp, width, height, 0, height, rows).invoke();
+      new ConvolveTask(tmp, levels[i], height, width, 0, width, columns).invoke();
     }
+  }
+
+  /**
+   * Applies an operation to a range of rows, splitting the range in half until it is no larger
+   * than the band size.
+   */
+  private abstract static class BandTask extends RecursiveAction {
 
-    int dim = aRGB.length;
+    protected final int beginRow;
+    protected final int endRow;
+    protected final int bandRows;
 
-    // reject if alpha values are not identical
-    if (imgA.getTransparency() != OPAQUE || imgB.getTransparency() != OPAQUE) {
-      for (int index = 0; index < dim; index++) {
-        if ((aRGB[index] & ALPHA_MASK) != (bRGB[index] & ALPHA_MASK)) {
-          Log.d("Images have different alpha values");
-          return false;
-        }
+    protected BandTask(int beginRow, int endRow, int bandRows) {
+      this.beginRow = beginRow;
+      this.endRow = endRow;
+      this.bandRows = bandRows;
+    }
+
+    @Override
+    protected void compute() {
+      if (endRow - beginRow <= bandRows) {
+        atBand();
+      } else {
+        int mid = (beginRow + endRow) >>> 1;
+        invokeAll(split(beginRow, mid), split(mid, endRow));
       }
     }
 
-    float[] aA = new float[dim];
-    float[] bA = new float[dim];
-    float[] aB = new float[dim];
-    float[] bB = new float[dim];
+    /**
+     * Returns a task for the specified range of rows.
+     */
+    protected abstract BandTask split(int begin, int end);
 
-    // Successively blurred versions of the original image.
-    float[][] la = new float[MAX_PYR_LEVELS][dim];
-    float[][] lb = new float[MAX_PYR_LEVELS][dim];
+    /**
+     * Applies the operation to this task's rows.
+     */
+    protected abstract void atBand();
+  }
 
-    Log.v("Converting RGB and constructing Laplacian Pyramids");
+  /**
+   * Converts a band of rows.
+   */
+  private class ConvertTask extends BandTask {
 
-    ForkJoinTask<?> taskA = pool.submit(new PyramidTask(aRGB, aA, aB, la, w, h));
-    ForkJoinTask<?> taskB = pool.submit(new PyramidTask(bRGB, bA, bB, lb, w, h));
+    private final int[] rgb;
+    private final float[] a;
+    private final float[] b;
+    private final float[] lum;
+    private final int width;
 
-    double pixelsPerDegree = w / numOneDegreePixels;
+    protected ConvertTask(int[] rgb, float[] a, float[] b, float[] lum, int width,
+        int beginRow, int endRow, int bandRows) {
+      super(beginRow, endRow, bandRows);
+      this.rgb = rgb;
+      this.a = a;
+      this.b = b;
+      this.lum = lum;
+      this.width = width;
+    }
 
-    double[] cpd = new double[MAX_PYR_LEVELS];
-    cpd[0] = 0.5 * pixelsPerDegree;
-    for (int i = 1; i < MAX_PYR_LEVELS; i++) {
-      cpd[i] = 0.5 * cpd[i - 1];
+    @Override
+    protected BandTask split(int begin, int end) {
+      return new ConvertTask(rgb, a, b, lum, width, begin, end, bandRows);
     }
-    double csfMax = csf(3.248, 100.0);
 
-    double[] freq = new double[MAX_PYR_LEVELS - 2];
-    for (int i = 0; i < MAX_PYR_LEVELS - 2; i++) {
-      freq[i] = csfMax / csf(cpd[i], 100.0);
+    @Override
+    protected void atBand() {
+      convert(rgb, a, b, lum, beginRow * width, endRow * width);
     }
+  }
 
-    taskA.join();
-    taskB.join();
+  /**
+   * Convolves and transposes a band of rows.
+   */
+  private static class ConvolveTask extends BandTask {
 
-    Log.v("Performing test");
+    private final float[] src;
+    private final float[] dst;
+    private final int width;
+    private final int height;
 
-    AtomicInteger pixelsFailed = new AtomicInteger();
+    protected ConvolveTask(float[] src, float[] dst, int width, int height,
+        int beginRow, int endRow, int bandRows) {
+      super(beginRow, endRow, bandRows);
+      this.src = src;
+      this.dst = dst;
+      this.width = width;
+      this.height = height;
+    }
 
-    int[] pixDiff = (imgDiff != null) ? new int[dim] : null;
+    @Override
+    protected BandTask split(int begin, int end) {
+      return new ConvolveTask(src, dst, width, height, begin, end, bandRows);
+    }
 
-    boolean completed = pool.invoke(new Comparison(aA, aB, la, bA, bB, lb,
-        pixelsFailed, pixDiff, adaptationLevel, cpd, freq).rootTask());
-    assert completed | failFast;
+    @Override
+    protected void atBand() {
+      convolveAndTranspose(src, dst, width, height, beginRow, endRow);
+    }
+  }
 
-    if (imgDiff != null) {
-      imgDiff.setRGB(0, 0, w, h, pixDiff, 0, w);
+  /**
+   * Rounds and stores a band of rows of a compact pyramid level, or of its color planes.
+   */
+  private static class StoreTask extends BandTask {
+
+    private final Pyramid.Compact pyramid;
+    private final int level;
+    private final float[] src;
+    private final float[] aux;
+    private final int width;
+
+    /**
+     * @param level level to store, or -1 to store the color planes
+     * @param src level values, or A values
+     * @param aux previous level as stored, or B values
+     */
+    protected StoreTask(Pyramid.Compact pyramid, int level, float[] src, float[] aux, int width,
+        int beginRow, int endRow, int bandRows) {
+      super(beginRow, endRow, bandRows);
+      this.pyramid = pyramid;
+      this.level = level;
+      this.src = src;
+      this.aux = aux;
+      this.width = width;
     }
 
-    String difference = String.format("%d pixels are different", pixelsFailed.get());
+    @Override
+    protected BandTask split(int begin, int end) {
+      return new StoreTask(pyramid, level, src, aux, width, begin, end, bandRows);
+    }
 
-    if (pixelsFailed.get() >= thresholdPixels) {
-      Log.d("Images are visibly different");
-      if (failFast) {
-        difference = "At least " + difference;
+    @Override
+    protected void atBand() {
+      if (level < 0) {
+        pyramid.storeColor(src, aux, beginRow * width, endRow * width);
+      } else {
+        pyramid.storeLevel(level, src, aux, beginRow * width, endRow * width);
       }
-      Log.d(difference);
-      return false;
     }
-
-    Log.d("Images are perceptually indistinguishable");
-    Log.d(difference);
-    return true;
   }
 
   /**
-   * Converts color values and constructs Laplacian pyramids.
+   * Finds the extremes of a band of rows of cells of a cascade.
    */
-  private class PyramidTask implements Runnable {
+  private static class CascadeTask extends BandTask {
 
-    private final int[] rgb;
-    private final float[] a;
-    private final float[] b;
-    private final float[][] levels;
-    private final int width;
-    private final int height;
+    private final Cascade cascade;
+    private final float[] lumA;
+    private final float[] aA;
+    private final float[] aB;
+    private final float[] lumB;
+    private final float[] bA;
+    private final float[] bB;
 
-    protected PyramidTask(int[] rgb, float[] a, float[] b, float[][] levels,
-        int width, int height) {
-      this.rgb = rgb;
-      this.a = a;
-      this.b = b;
-      this.levels = levels;
-      this.width = width;
-      this.height = height;
+    protected CascadeTask(Cascade cascade, float[] lumA, float[] aA, float[] aB, float[] lumB,
+        float[] bA, float[] bB, int beginRow, int endRow, int bandRows) {
+      super(beginRow, endRow, bandRows);
+      this.cascade = cascade;
+      this.lumA = lumA;
+      this.aA = aA;
+      this.aB = aB;
+      this.lumB = lumB;
+      this.bA = bA;
+      this.bB = bB;
+    }
+
+    @Override
+    protected BandTask split(int begin, int end) {
+      return new CascadeTask(cascade, lumA, aA, aB, lumB, bA, bB, begin, end, bandRows);
     }
 
     @Override
-    public void run() {
-      convert(rgb, a, b, levels[0]);
-      construct(levels, width, height);
+    protected void atBand() {
+      cascade.scan(lumA, aA, aB, lumB, bA, bB, beginRow, endRow);
     }
   }
 
   /**
-   * Converts RGB to AB and luminance.
-   *
-   * @param rgb pixel values
-   * @param a A
-   * @param b B
-   * @param lum Y * luminance
+   * Converts and blurs rows of tiles of both images, and stores the results in pyramids outside
+   * the heap. Each tile is constructed together with a halo, as in tiled comparison, in arrays
+   * that are reused for every tile of the task.
    */
-  protected void convert(int[] rgb, float[] a, float[] b, float[] lum) {
-    for (int index = 0; index < rgb.length; index++) {
-      int color = rgb[index];
-      double red = lut[(color >> 16) & 0xff];
-      double grn = lut[(color >> 8) & 0xff];
-      double blu = lut[color & 0xff];
+  private class OffHeapTask extends BandTask {
 
-      /*
-       * Convert from Adobe RGB (1998) with reference white D65 to XYZ.
-       * Matrix is from http://www.brucelindbloom.com/
-       */
-      double x = red * 0.5767309 + grn * 0.1855540 + blu * 0.1881852;
-      double y = red * 0.2973769 + grn * 0.6273491 + blu * 0.0752741;
-      double z = red * 0.0270343 + grn * 0.0706872 + blu * 0.9911085;
+    private final BufferedImage imgA;
+    private final BufferedImage imgB;
+    private final Pyramid.OffHeap la;
+    private final Pyramid.OffHeap lb;
 
-      /*
-       * Convert XYZ to LAB
-       */
-      double[] f = new double[3];
-      double[] r = {
-        x / XW, y / YW, z / ZW
-      };
-      for (int i = 0; i < 3; i++) {
-        if (r[i] > EPSILON) {
-          f[i] = pow(r[i], 1.0 / 3.0);
-        } else {
-          f[i] = (KAPPA * r[i] + 16.0) / 116.0;
-        }
-      }
+    /**
+     * @param beginRow first row of tiles, inclusive
+     * @param endRow last row of tiles, exclusive
+     */
+    protected OffHeapTask(BufferedImage imgA, BufferedImage imgB, Pyramid.OffHeap la,
+        Pyramid.OffHeap lb, int beginRow, int endRow, int bandRows) {
+      super(beginRow, endRow, bandRows);
+      this.imgA = imgA;
+      this.imgB = imgB;
+      this.la = la;
+      this.lb = lb;
+    }
 
-      // L = 116.0 * f[1] - 16.0; // unused
-      a[index] = (float) (500.0 * (f[0] - f[1]));
-      b[index] = (float) (200.0 * (f[1] - f[2]));
+    @Override
+    protected BandTask split(int begin, int end) {
+      return new OffHeapTask(imgA, imgB, la, lb, begin, end, bandRows);
+    }
 
-      lum[index] = (float) (y * luminance);
+    @Override
+    protected void atBand() {
+      int width = imgA.getWidth();
+      int height = imgA.getHeight();
+      int size = OFF_HEAP_TILE_SIZE + 2 * TILE_HALO;
+      int[] rgb = new int[size * size];
+      float[] a = new float[size * size];
+      float[] b = new float[size * size];
+      float[][] levels = new float[MAX_PYR_LEVELS][size * size];
+      float[] tmp = new float[size * size];
+      for (int row = beginRow; row < endRow; row++) {
+        int y0 = row * OFF_HEAP_TILE_SIZE;
+        int y1 = Math.min(y0 + OFF_HEAP_TILE_SIZE, height);
+        for (int x0 = 0; x0 < width; x0 += OFF_HEAP_TILE_SIZE) {
+          int x1 = Math.min(x0 + OFF_HEAP_TILE_SIZE, width);
+
+          // bounds of tile plus halo
+          int left = Math.max(x0 - TILE_HALO, 0);
+          int top = Math.max(y0 - TILE_HALO, 0);
+          int stride = Math.min(x1 + TILE_HALO, width) - left;
+          int rows = Math.min(y1 + TILE_HALO, height) - top;
+          int dim = stride * rows;
+
+          for (int image = 0; image < 2; image++) {
+            Pixels.getRGB((image == 0) ? imgA : imgB, left, top, stride, rows, rgb);
+            convert(rgb, a, b, levels[0], dim);
+            constructTile(levels, tmp, left, top, stride, x0, y0, x1, y1, width, height);
+            Pyramid.OffHeap pyramid = (image == 0) ? la : lb;
+            for (int y = y0; y < y1; y++) {
+              int offset = (y - top) * stride + (x0 - left);
+              pyramid.storeColor(x0, y, a, b, offset, x1 - x0);
+              for (int i = 0; i < MAX_PYR_LEVELS; i++) {
+                pyramid.store(i, x0, y, levels[i], offset, x1 - x0);
+              }
+            }
+          }
+        }
+      }
     }
   }
 
-  /* Reference white */
-  private static final double XW = 0.5767309 + 0.1855540 + 0.1881852;
-  private static final double YW = 0.2973769 + 0.6273491 + 0.0752741;
-  private static final double ZW = 0.0270343 + 0.0706872 + 0.9911085;
+  /** Size of the tiles in which pyramids are constructed outside the heap. */
+  private static final int OFF_HEAP_TILE_SIZE = 256;
 
-  /* Constants for XYZ to LAB conversion. */
-  private static final double EPSILON = 216.0 / 24389.0;
-  private static final double KAPPA = 24389.0 / 27.0;
+  /** Size of the tiles in which whole images are checked for changes. */
+  private static final int CHANGE_TILE_SIZE = 64;
+
+  /** Maximum number of adjacent changed tiles that are compared together. */
+  private static final int CHANGE_TILES_PER_BOX = 8;
 
   /**
-   * Filter kernel for Laplacian convolution.
+   * Number of pixels around a tile that influence the top level of its pyramid: each blur reaches
+   * two pixels further.
    */
-  private static final float[] KERNEL = {0.05f, 0.25f, 0.4f, 0.25f, 0.05f};
+  private static final int TILE_HALO = 2 * (MAX_PYR_LEVELS - 1);
 
   /**
-   * Constructs the Laplacian pyramid by successively copying earlier levels and blurring them.
+   * Constructs the Laplacian pyramid for one tile of a larger image.
+   * <p>
+   * The level arrays hold the region at (<code>left</code>, <code>top</code>) with the given
+   * <code>stride</code>, and level 0 must be filled in for the tile plus a halo of {@link #TILE_HALO}
+   * pixels, clipped to the image. Each successive level is valid on a region that is two pixels
+   * smaller on each side, so that the top level covers exactly the tile. Edges are wrapped in image
+   * coordinates, and the kernel is applied in the same order as {@link #construct}, so the tile
+   * matches the corresponding region of the whole-image pyramid exactly.
+   *
+   * @param levels pyramid levels, in tile coordinates
+   * @param tmp scratch array the same size as each level
+   * @param left left edge of the region held in the level arrays
+   * @param top top edge of the region held in the level arrays
+   * @param stride width of the region held in the level arrays
+   * @param x0 left edge of tile, inclusive
+   * @param y0 top edge of tile, inclusive
+   * @param x1 right edge of tile, exclusive
+   * @param y1 bottom edge of tile, exclusive
+   * @param width image width
+   * @param height image height
    */
-  protected static void construct(float[][] levels, int width, int height) {
-    float[] tmp = new float[height * width]; // transposed
-    for (int i = 1, n = levels.length; i < n; i++) {
-      // apply filter kernel horizontally and then vertically
-      convolveAndTranspose(levels[i - 1], tmp, width, height);
-      convolveAndTranspose(tmp, levels[i], height, width);
+  protected static void constructTile(float[][] levels, float[] tmp, int left, int top,
+      int stride, int x0, int y0, int x1, int y1, int width, int height) {
+    int n = levels.length;
+    for (int level = 1; level < n; level++) {
+      float[] src = levels[level - 1];
+      float[] dst = levels[level];
+      int halo = 2 * (n - 1 - level);
+      int xBegin = Math.max(x0 - halo, 0);
+      int xEnd = Math.min(x1 + halo, width);
+      // apply filter kernel horizontally, including the rows needed by the vertical pass
+      int yBegin = Math.max(y0 - halo - 2, 0);
+      int yEnd = Math.min(y1 + halo + 2, height);
+      for (int y = yBegin; y < yEnd; y++) {
+        int offset = (y - top) * stride - left;
+        for (int x = xBegin; x < xEnd; x++) {
+          float f = 0;
+          for (int i = -2; i <= 2; i++) {
+            f += KERNEL[i + 2] * src[offset + wrap(x + i, width)];
+          }
+          tmp[offset + x] = f;
+        }
+      }
+      // and then vertically
+      yBegin = Math.max(y0 - halo, 0);
+      yEnd = Math.min(y1 + halo, height);
+      for (int y = yBegin; y < yEnd; y++) {
+        int offset = (y - top) * stride - left;
+        for (int x = xBegin; x < xEnd; x++) {
+          float f = 0;
+          for (int i = -2; i <= 2; i++) {
+            f += KERNEL[i + 2] * tmp[(wrap(y + i, height) - top) * stride - left + x];
+          }
+          dst[offset + x] = f;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of pixels of an image, which the comparison indexes with an int.
+   *
+   * @throws IllegalArgumentException if the image has more pixels than an array can hold
+   */
+  static int pixels(int width, int height) {
+    long dim = (long) width * height;
+    if (dim > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(String.format(
+          "Image of %dx%d pixels exceeds the limit of %d pixels", width, height,
+          Integer.MAX_VALUE));
+    }
+    return (int) dim;
+  }
+
+  /**
+   * Wraps index <code>i</code> at the edges of the range [0, n).
+   */
+  static int wrap(int i, int n) {
+    if (i < 0) {
+      return -i;
+    } else if (i >= n) {
+      return (n - i) + n - 1;
     }
+    return i;
   }
 
   /**
@@ -376,23 +1962,16 @@ public class PerceptualDiff {
    * Adapted from
    * <a href="http://www.jhlabs.com/ip/GaussianFilter.java">Jerry Huxtable's Gaussian Filter</a>
    */
-  private static void convolveAndTranspose(float[] src, float[] dst, int width, int height) {
-    for (int offset = 0, y = 0; y < height; y++, offset += width) {
-      for (int index = y, x = 0; x < width; x++, index += height) {
-        float f = 0;
-        for (int i = -2; i <= 2; i++) {
-          int ix = x + i;
-          // wrap edges
-          if (ix < 0) {
-            ix = -ix;
-          } else if (ix >= width) {
-            ix = (width - ix) + width - 1;
-          }
-          f += KERNEL[i + 2] * src[offset + ix];
-        }
-        dst[index] = f;
-      }
-    }
+  static void convolveAndTranspose(float[] src, float[] dst, int width, int height) {
+    convolveAndTranspose(src, dst, width, height, 0, height);
+  }
+
+  /**
+   * Convolves and transposes the specified range of rows.
+   */
+  static void convolveAndTranspose(float[] src, float[] dst, int width, int height,
+      int beginRow, int endRow) {
+    Kernels.INSTANCE.convolveAndTranspose(src, dst, width, height, beginRow, endRow);
   }
 
   /**
@@ -402,80 +1981,139 @@ public class PerceptualDiff {
 
     private static final int LEAF_SIZE = 512;
 
+    /** Widest tile that is split only between rows. */
+    private static final int TILE_WIDTH = 256;
+
+    /** Number of pixels whose contrasts are computed together by the kernels. */
+    private static final int BLOCK_SIZE = 64;
+
+    /** Color planes, or null if the pyramids hold them. */
     private final float[] aA;
     private final float[] aB;
-    private final float[][] la;
+    private final Pyramid la;
 
     private final float[] bA;
     private final float[] bB;
-    private final float[][] lb;
+    private final Pyramid lb;
+
+    private final int width;
+    private final int height;
 
     private final AtomicInteger pixelsFailed;
 
     private final int[] pixDiff;
 
+    private final FailureMap.Recorder failures;
+
     private final int adaptationLevel;
 
     private final double[] cpd;
     private final double[] freq;
+    private final ModelTables tables;
 
-    private static final int COLOR_PASS = 0xff0000ff;
+    private final CompareMetrics metrics;
+
+    static final int COLOR_PASS = 0xff0000ff;
     private static final int COLOR_FAIL = 0xffff0000;
 
     protected Comparison(
-        float[] aA, float[] aB, float[][] la,
-        float[] bA, float[] bB, float[][] lb,
-        AtomicInteger pixelsFailed, int[] pixDiff,
-        int adaptationLevel, double[] cpd, double[] freq) {
+        float[] aA, float[] aB, Pyramid la,
+        float[] bA, float[] bB, Pyramid lb, int width, int height,
+        AtomicInteger pixelsFailed, int[] pixDiff, FailureMap.Recorder failures,
+        int adaptationLevel, double[] cpd, double[] freq, ModelTables tables,
+        CompareMetrics metrics) {
       this.aA = aA;
       this.aB = aB;
       this.la = la;
       this.bA = bA;
       this.bB = bB;
       this.lb = lb;
+      this.width = width;
+      this.height = height;
       this.pixelsFailed = pixelsFailed;
       this.pixDiff = pixDiff;
+      this.failures = failures;
       this.adaptationLevel = adaptationLevel;
       this.cpd = cpd;
       this.freq = freq;
+      this.tables = tables;
+      this.metrics = metrics;
     }
 
     /**
      * Returns root task for recursive comparison.
      */
     protected RecursiveTask<Boolean> rootTask() {
-      return new CompareTask(0, aA.length, null);
+      return new CompareTask(0, 0, width, height, null);
+    }
+
+    /**
+     * Arrays of per-pixel values for a block of pixels, used while comparing leaves.
+     */
+    private class Scratch {
+      final float[][] va = new float[MAX_PYR_LEVELS][BLOCK_SIZE];
+      final float[][] vb = new float[MAX_PYR_LEVELS][BLOCK_SIZE];
+      final float[][] contrast = new float[MAX_PYR_LEVELS - 2][BLOCK_SIZE];
+      final float[] sumContrast = new float[BLOCK_SIZE];
+      final double[] mask = new double[MAX_PYR_LEVELS - 2];
+      /** A and B of each image, when the pyramids hold the color planes. */
+      final float[][] ca = new float[2][BLOCK_SIZE];
+      final float[][] cb = new float[2][BLOCK_SIZE];
+      /** Number of pixels evaluated with these arrays. */
+      long evaluated;
+      /** Number of failed pixels last seen in the shared count. */
+      int published;
     }
 
+    /**
+     * Compares a tile, splitting it into tiles of at most {@link #TILE_WIDTH} columns and
+     * {@link #LEAF_SIZE} pixels, so that each leaf reads whole blocks from short runs of rows.
+     */
     private class CompareTask extends RecursiveTask<Boolean> {
 
-      private final int beginIndex;
-      private final int endIndex;
+      private final int x0;
+      private final int y0;
+      private final int x1;
+      private final int y1;
       private final CompareTask next; // keeps track of forked tasks
 
-      protected CompareTask(int beginIndex, int endIndex, CompareTask next) {
-        this.beginIndex = beginIndex;
-        this.endIndex = endIndex;
+      protected CompareTask(int x0, int y0, int x1, int y1, CompareTask next) {
+        this.x0 = x0;
+        this.y0 = y0;
+        this.x1 = x1;
+        this.y1 = y1;
         this.next = next;
       }
 
       @Override
       protected Boolean compute() {
-        int lo = beginIndex;
-        int hi = endIndex;
+        int right0 = x1;
+        int bottom = y1;
         CompareTask right = null;
-        while (!isCancelled() && hi - lo > LEAF_SIZE && getSurplusQueuedTaskCount() <= 3) {
-          int mid = (lo + hi) >>> 1;
-          right = new CompareTask(mid, hi, right);
+        int forked = 0;
+        while (!isCancelled() && (right0 - x0) * (bottom - y0) > LEAF_SIZE
+            && getSurplusQueuedTaskCount() <= 3) {
+          if (right0 - x0 > TILE_WIDTH) {
+            // split columns on a block boundary
+            int mid = x0 + (((right0 - x0) >>> 1) + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            right = new CompareTask(mid, y0, right0, bottom, right);
+            right0 = mid;
+          } else {
+            int mid = (y0 + bottom) >>> 1;
+            right = new CompareTask(x0, mid, right0, bottom, right);
+            bottom = mid;
+          }
           right.fork();
-          hi = mid;
+          forked++;
         }
-        boolean running = atLeaf(lo, hi);
+        Scratch scratch = new Scratch();
+        scratch.published = pixelsFailed.get();
+        boolean running = atLeaf(x0, y0, right0, bottom, scratch);
         while (right != null) {
           if (running) {
             if (right.tryUnfork()) {
               // directly calculate if not stolen
-              running &= right.atLeaf(right.beginIndex, right.endIndex);
+              running &= right.atLeaf(right.x0, right.y0, right.x1, right.y1, scratch);
             } else {
               running &= right.join();
             }
@@ -484,88 +2122,138 @@ public class PerceptualDiff {
           }
           right = right.next;
         }
+        metrics.pixelsEvaluated.addAndGet(scratch.evaluated);
+        metrics.tasksForked.addAndGet(forked);
         return running;
       }
 
       /**
-       * Compares pixels in specified range of indices.
+       * Compares the pixels of a tile. Failures are counted locally and added to the shared count
+       * after each block, or as soon as they reach the threshold when failing fast.
        *
-       * @param begin beginning index, inclusive
-       * @param end ending index, exclusive
-       * @return <code>true</code> if all pixels in specified range were compared
+       * @param left first column, inclusive
+       * @param top first row, inclusive
+       * @param right last column, exclusive
+       * @param bottom last row, exclusive
+       * @param scratch per-pixel arrays, reused from leaf to leaf
+       * @return <code>true</code> if all pixels in the tile were compared
        */
-      protected boolean atLeaf(int begin, int end) {
+      protected boolean atLeaf(int left, int top, int right, int bottom, Scratch scratch) {
 
-        float[] contrast = new float[MAX_PYR_LEVELS - 2];
-        double[] mask = new double[MAX_PYR_LEVELS - 2];
+        float[][] va = scratch.va;
+        float[][] vb = scratch.vb;
+        float[][] contrast = scratch.contrast;
+        float[] sumContrast = scratch.sumContrast;
 
-        for (int index = begin; index < end; index++) {
-          if (isCancelled()) {
-            return false;
-          }
-          float sumContrast = 0;
-          for (int i = 0; i < MAX_PYR_LEVELS - 2; i++) {
-            float n1 = abs(la[i][index] - la[i + 1][index]);
-            float n2 = abs(lb[i][index] - lb[i + 1][index]);
-            float numerator = (n1 > n2) ? n1 : n2;
-            float d1 = abs(la[i + 2][index]);
-            float d2 = abs(lb[i + 2][index]);
-            float denominator = (d1 > d2) ? d1 : d2;
-            if (denominator < 1e-5f) {
-              denominator = 1e-5f;
+        for (int y = top; y < bottom; y++) {
+          for (int x = left; x < right; x += BLOCK_SIZE) {
+            if (isCancelled() || metrics.isCancelled()) {
+              return false;
+            }
+            int n = Math.min(BLOCK_SIZE, right - x);
+            int block = y * width + x;
+            la.gather(x, y, block, n, va);
+            lb.gather(x, y, block, n, vb);
+            if (aA == null) {
+              la.gatherColor(x, y, block, n, scratch.ca[0], scratch.ca[1]);
+              lb.gatherColor(x, y, block, n, scratch.cb[0], scratch.cb[1]);
+            }
+            Kernels.INSTANCE.contrast(va, vb, n, contrast, sumContrast);
+            scratch.evaluated += n;
+            int failed = 0;
+            for (int k = 0, index = block; k < n; k++, index++) {
+              if (!atPixel(index, k, scratch)) {
+                failed++;
+                if (failFast && scratch.published + failed >= thresholdPixels) {
+                  pixelsFailed.addAndGet(failed);
+                  return false;
+                }
+              }
+            }
+            if (failed != 0) {
+              scratch.published = pixelsFailed.addAndGet(failed);
+              if (failFast && scratch.published >= thresholdPixels) {
+                return false;
+              }
             }
-            contrast[i] = numerator / denominator;
-            sumContrast += contrast[i];
-          }
-          if (sumContrast < 1e-5f) {
-            sumContrast = 1e-5f;
           }
+        }
+        return true;
+      }
 
-          double adapt = 0.5 * (la[adaptationLevel][index] + lb[adaptationLevel][index]);
-          if (adapt < 1e-5f) {
-            adapt = 1e-5f;
-          }
+      /**
+       * Compares one pixel of the block whose values and contrasts are held in the scratch arrays.
+       *
+       * @param index pixel index
+       * @param k index within block
+       * @param scratch per-pixel arrays
+       * @return <code>true</code> if the pixel passed
+       */
+      private boolean atPixel(int index, int k, Scratch scratch) {
+        float[][] va = scratch.va;
+        float[][] vb = scratch.vb;
+        float[][] contrast = scratch.contrast;
+        float sumContrast = scratch.sumContrast[k];
+        double[] mask = scratch.mask;
+
+        double adapt = 0.5 * (va[adaptationLevel][k] + vb[adaptationLevel][k]);
+        if (adapt < 1e-5f) {
+          adapt = 1e-5f;
+        }
+        if (tables != null) {
           for (int i = 0; i < MAX_PYR_LEVELS - 2; i++) {
-            mask[i] = mask(contrast[i] * csf(cpd[i], adapt));
+            mask[i] = ModelTables.mask(contrast[i][k] * tables.csf(i, adapt));
           }
-          double factor = 0;
+        } else {
           for (int i = 0; i < MAX_PYR_LEVELS - 2; i++) {
-            factor += contrast[i] * freq[i] * mask[i] / sumContrast;
-          }
-          if (factor < 1) {
-            factor = 1;
-          }
-          if (factor > 10) {
-            factor = 10;
+            mask[i] = mask(contrast[i][k] * csf(cpd[i], adapt));
           }
-          double delta = abs(la[0][index] - lb[0][index]);
-
-          boolean pass = true;
-          // pure luminance test
-          if (delta > factor * tvi(adapt)) {
-            pass = false;
-          } else if (!luminanceOnly) {
-            // CIE delta E test with modifications
-            // skip color test in scotopic regions
-            if (adapt >= 10.0) {
-              float da = aA[index] - bA[index];
-              float db = aB[index] - bB[index];
-              double deltaE = (da * da + db * db) * colorFactor;
-              if (deltaE > factor) {
-                pass = false;
-              }
+        }
+        double factor = 0;
+        for (int i = 0; i < MAX_PYR_LEVELS - 2; i++) {
+          factor += contrast[i][k] * freq[i] * mask[i] / sumContrast;
+        }
+        if (factor < 1) {
+          factor = 1;
+        }
+        if (factor > 10) {
+          factor = 10;
+        }
+        double delta = abs(va[0][k] - vb[0][k]);
+
+        boolean pass = true;
+        // pure luminance test
+        double threshold = (tables != null) ? ModelTables.tvi(adapt) : tvi(adapt);
+        if (delta > factor * threshold) {
+          pass = false;
+        } else if (!luminanceOnly) {
+          // CIE delta E test with modifications
+          // skip color test in scotopic regions
+          if (adapt >= 10.0) {
+            float da;
+            float db;
+            if (aA != null) {
+              da = aA[index] - bA[index];
+              db = aB[index] - bB[index];
+            } else {
+              da = scratch.ca[0][k] - scratch.cb[0][k];
+              db = scratch.ca[1][k] - scratch.cb[1][k];
+            }
+            double deltaE = (da * da + db * db) * colorFactor;
+            if (deltaE > factor) {
+              pass = false;
             }
           }
+        }
 
-          if (pixDiff != null) {
-            pixDiff[index] = pass ? COLOR_PASS : COLOR_FAIL;
-          }
+        if (pixDiff != null) {
+          pixDiff[index] = pass ? COLOR_PASS : COLOR_FAIL;
+        }
 
-          if (!pass && pixelsFailed.incrementAndGet() >= thresholdPixels && failFast) {
-            return false;
-          }
+        if (!pass && failures != null) {
+          failures.set(index);
         }
-        return true;
+        return pass;
       }
     }
   }
@@ -577,45 +2265,61 @@ public class PerceptualDiff {
    *
    * This version comes from Ward Larson Siggraph 1997
    */
-  private static double tvi(double adaptationLuminance) {
+  static double tvi(double adaptationLuminance) {
+    return tvi(adaptationLuminance, FAST_POW);
+  }
+
+  static double tvi(double adaptationLuminance, boolean fast) {
     double logA = log10(adaptationLuminance);
     double r;
     if (logA < -3.94) {
       r = -2.86;
     } else if (logA < -1.44) {
-      r = pow(0.405 * logA + 1.6, 2.18) - 2.86;
+      r = pow(0.405 * logA + 1.6, 2.18, fast) - 2.86;
     } else if (logA < -0.0184) {
       r = logA - 0.395;
     } else if (logA < 1.9) {
-      r = pow(0.249 * logA + 0.65, 2.7) - 0.72;
+      r = pow(0.249 * logA + 0.65, 2.7, fast) - 0.72;
     } else {
       r = logA - 1.255;
     }
-    return pow(10.0, r);
+    return pow(10.0, r, fast);
   }
 
   /**
    * Computes the contrast sensitivity function (Barten SPIE 1989) given the cycles per degree (cpd)
    * and luminance (lum).
    */
-  private static double csf(double cpd, double lum) {
-    double a = 440.0 * pow((1.0 + 0.7 / lum), -0.2);
-    double b = 0.3 * pow((1.0 + 100.0 / lum), 0.15);
+  static double csf(double cpd, double lum) {
+    return csf(cpd, lum, FAST_POW);
+  }
+
+  static double csf(double cpd, double lum, boolean fast) {
+    double a = 440.0 * pow((1.0 + 0.7 / lum), -0.2, fast);
+    double b = 0.3 * pow((1.0 + 100.0 / lum), 0.15, fast);
     return a * cpd * exp(-b * cpd) * sqrt(1.0 + 0.06 * exp(b * cpd));
   }
 
   /**
    * Visual Masking Function from Daly 1993
    */
-  private static double mask(double contrast) {
-    double a = pow(392.498 * contrast, 0.7);
-    double b = pow(0.0153 * a, 4.0);
-    return pow(1.0 + b, 0.25);
+  static double mask(double contrast) {
+    return mask(contrast, FAST_POW);
+  }
+
+  static double mask(double contrast, boolean fast) {
+    double a = pow(392.498 * contrast, 0.7, fast);
+    double b = pow(0.0153 * a, 4.0, fast);
+    return pow(1.0 + b, 0.25, fast);
   }
   private static final boolean FAST_POW = true;
 
-  private static double pow(double a, double b) {
-    return FAST_POW ? fastpow(a, b) : Math.pow(a, b);
+  static double pow(double a, double b) {
+    return pow(a, b, FAST_POW);
+  }
+
+  private static double pow(double a, double b, boolean fast) {
+    return fast ? fastpow(a, b) : Math.pow(a, b);
   }
 
   /**
@@ -633,7 +2337,7 @@ public class PerceptualDiff {
    * @param b the exponent
    * @return the value a<sup>b</sup>
    */
-  private static double fastpow(double a, double b) {
+  static double fastpow(double a, double b) {
     // if b < 0, compute 1.0/pow(a, -b)
     boolean negative = b < 0;
     if (negative) {
@@ -0,0 +1,460 @@
+package com.joebowbeer.perceptualdiff;
+
+import static java.awt.Transparency.OPAQUE;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads ARGB pixels directly from the data buffers of common raster layouts, giving the same
+ * values as {@link BufferedImage#getRGB(int, int, int, int, int[], int, int) getRGB} without
+ * converting each pixel through the color model.
+ * <p>
+ * Each sample is mapped to its contribution to the ARGB value by a table per channel, and the
+ * tables are built by asking the color model to convert every possible sample value. This is
+ * exact whenever each channel of the result depends on only one sample, which holds for palette
+ * images and for non-premultiplied sRGB and grayscale images. Other images are read with
+ * <code>getRGB</code>.
+ */
+final class Pixels {
+
+  /** Channel tables of sRGB and gray color models, by the properties that define them. */
+  private static final Map<List<Object>, int[][]> TABLES = new HashMap<List<Object>, int[][]>();
+
+  /** Marks a color model that does not support direct reading. */
+  private static final int[][] UNSUPPORTED = new int[0][];
+
+  private Pixels() {
+  }
+
+  /**
+   * Returns the ARGB values of a rectangle of pixels, in row order.
+   *
+   * @param img image to read
+   * @param x left edge of rectangle
+   * @param y top edge of rectangle
+   * @param w width of rectangle
+   * @param h height of rectangle
+   * @param rgb receives the pixels, or <code>null</code> to allocate a new array
+   * @return array holding the pixels
+   */
+  static int[] getRGB(BufferedImage img, int x, int y, int w, int h, int[] rgb) {
+    if (rgb == null) {
+      rgb = new int[w * h];
+    }
+    return getRGB(img, x, y, w, h, rgb, 0);
+  }
+
+  /**
+   * Stores the ARGB values of a rectangle of pixels, in row order, starting at the given index.
+   *
+   * @param start index of the first pixel in <code>rgb</code>
+   * @return array holding the pixels
+   */
+  static int[] getRGB(BufferedImage img, int x, int y, int w, int h, int[] rgb, int start) {
+    if (!read(img, x, y, w, h, rgb, start)) {
+      img.getRGB(x, y, w, h, rgb, start, w);
+    }
+    return rgb;
+  }
+
+  private static boolean read(BufferedImage img, int x, int y, int w, int h, int[] rgb,
+      int start) {
+    ColorModel cm = img.getColorModel();
+    int[][] tables = tables(cm);
+    if (tables == UNSUPPORTED) {
+      return false;
+    }
+    Raster raster = img.getRaster();
+    SampleModel sm = raster.getSampleModel();
+    DataBuffer db = raster.getDataBuffer();
+    if (db.getNumBanks() != 1) {
+      return false;
+    }
+    // sample model coordinates
+    int sx = x - raster.getSampleModelTranslateX();
+    int sy = y - raster.getSampleModelTranslateY();
+    int opaque = cm.hasAlpha() ? 0 : 0xff000000;
+
+    if (sm instanceof ComponentSampleModel && !(cm instanceof DirectColorModel)) {
+      ComponentSampleModel csm = (ComponentSampleModel) sm;
+      if (csm.getNumBands() != tables.length) {
+        return false;
+      }
+      int[] bandOffsets = csm.getBandOffsets();
+      int[] bankIndices = csm.getBankIndices();
+      for (int bank : bankIndices) {
+        if (bank != 0) {
+          return false;
+        }
+      }
+      int offset = db.getOffset() + csm.getOffset(sx, sy, 0) - bandOffsets[0];
+      int pixelStride = csm.getPixelStride();
+      int scanlineStride = csm.getScanlineStride();
+      if (db instanceof DataBufferByte) {
+        readComponents(((DataBufferByte) db).getData(), 0xff, offset, pixelStride,
+            scanlineStride, bandOffsets, tables, opaque, w, h, rgb, start);
+        return true;
+      }
+      if (db instanceof DataBufferUShort) {
+        readComponents(((DataBufferUShort) db).getData(), offset, pixelStride, scanlineStride,
+            bandOffsets, tables, opaque, w, h, rgb, start);
+        return true;
+      }
+      return false;
+    }
+
+    if (sm instanceof MultiPixelPackedSampleModel && db instanceof DataBufferByte) {
+      MultiPixelPackedSampleModel mpp = (MultiPixelPackedSampleModel) sm;
+      int bits = mpp.getPixelBitStride();
+      int mask = (1 << bits) - 1;
+      byte[] data = ((DataBufferByte) db).getData();
+      int[] table = tables[0];
+      int offset = db.getOffset() + sy * mpp.getScanlineStride();
+      for (int row = 0, i = start; row < h; row++, offset += mpp.getScanlineStride()) {
+        // pixels are packed from the most significant bit
+        for (int col = 0, bit = sx * bits + mpp.getDataBitOffset(); col < w; col++, bit += bits) {
+          int sample = (data[offset + (bit >> 3)] >> (8 - (bit & 7) - bits)) & mask;
+          rgb[i++] = opaque | table[sample];
+        }
+      }
+      return true;
+    }
+
+    if (sm instanceof SinglePixelPackedSampleModel && cm instanceof DirectColorModel) {
+      SinglePixelPackedSampleModel spp = (SinglePixelPackedSampleModel) sm;
+      int offset = db.getOffset() + spp.getOffset(sx, sy);
+      int scanlineStride = spp.getScanlineStride();
+      // pixels are interpreted by the masks of the color model
+      int[] masks = masks((DirectColorModel) cm);
+      int[] shifts = new int[masks.length];
+      for (int b = 0; b < masks.length; b++) {
+        shifts[b] = Integer.numberOfTrailingZeros(masks[b]);
+      }
+      if (db instanceof DataBufferInt) {
+        int[] data = ((DataBufferInt) db).getData();
+        if (isIdentity(cm)) {
+          // INT_RGB and INT_ARGB
+          int keep = cm.hasAlpha() ? 0xffffffff : 0xffffff;
+          for (int row = 0, i = start; row < h; row++, offset += scanlineStride) {
+            for (int col = 0; col < w; col++) {
+              rgb[i++] = opaque | (data[offset + col] & keep);
+            }
+          }
+        } else {
+          readPacked(data, offset, scanlineStride, masks, shifts, tables, opaque, w, h, rgb,
+              start);
+        }
+        return true;
+      }
+      if (db instanceof DataBufferUShort) {
+        short[] data = ((DataBufferUShort) db).getData();
+        int[] values = new int[w];
+        for (int row = 0, i = start; row < h; row++, offset += scanlineStride) {
+          for (int col = 0; col < w; col++) {
+            values[col] = data[offset + col] & 0xffff;
+          }
+          readPacked(values, 0, 0, masks, shifts, tables, opaque, w, 1, rgb, i);
+          i += w;
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void readComponents(byte[] data, int mask, int offset, int pixelStride,
+      int scanlineStride, int[] bandOffsets, int[][] tables, int opaque, int w, int h,
+      int[] rgb, int i) {
+    int bands = tables.length;
+    for (int row = 0; row < h; row++, offset += scanlineStride) {
+      for (int col = 0, p = offset; col < w; col++, p += pixelStride) {
+        int argb = opaque;
+        for (int b = 0; b < bands; b++) {
+          argb |= tables[b][data[p + bandOffsets[b]] & mask];
+        }
+        rgb[i++] = argb;
+      }
+    }
+  }
+
+  private static void readComponents(short[] data, int offset, int pixelStride,
+      int scanlineStride, int[] bandOffsets, int[][] tables, int opaque, int w, int h,
+      int[] rgb, int i) {
+    int bands = tables.length;
+    for (int row = 0; row < h; row++, offset += scanlineStride) {
+      for (int col = 0, p = offset; col < w; col++, p += pixelStride) {
+        int argb = opaque;
+        for (int b = 0; b < bands; b++) {
+          argb |= tables[b][data[p + bandOffsets[b]] & 0xffff];
+        }
+        rgb[i++] = argb;
+      }
+    }
+  }
+
+  private static void readPacked(int[] data, int offset, int scanlineStride, int[] masks,
+      int[] shifts, int[][] tables, int opaque, int w, int h, int[] rgb, int i) {
+    int bands = tables.length;
+    for (int row = 0; row < h; row++, offset += scanlineStride) {
+      for (int col = 0; col < w; col++) {
+        int pixel = data[offset + col];
+        int argb = opaque;
+        for (int b = 0; b < bands; b++) {
+          argb |= tables[b][(pixel & masks[b]) >>> shifts[b]];
+        }
+        rgb[i++] = argb;
+      }
+    }
+  }
+
+  /**
+   * Returns the size of a dimension reduced by <code>2^n</code>, counting a partial block.
+   */
+  static int reduced(int size, int n) {
+    return (int) ((size + (1L << n) - 1) >> n);
+  }
+
+  /**
+   * Reduces the image by <code>2^n</code> in each dimension, replacing each block of pixels by
+   * the average of each of its channels. The blocks of the last row and column may be partial.
+   * The image is read a strip of blocks at a time, unless its pixels are already in the array.
+   *
+   * @param rgb receives the reduced pixels, or holds the pixels of the image if it has been
+   *     decoded, in which case it is reduced in place
+   * @param decoded whether <code>rgb</code> holds the pixels of the image
+   * @return reduced image, backed by <code>rgb</code>
+   */
+  static BufferedImage downSample(BufferedImage img, int n, int[] rgb, boolean decoded) {
+    int width = img.getWidth();
+    int height = img.getHeight();
+    int scale = 1 << n;
+    int reducedWidth = reduced(width, n);
+    int reducedHeight = reduced(height, n);
+    long[] sums = new long[4 * reducedWidth];
+    int[] strip = decoded ? rgb : new int[width * Math.min(scale, height)];
+    for (int row = 0; row < reducedHeight; row++) {
+      int y = row * scale;
+      int rows = Math.min(scale, height - y);
+      int offset = decoded ? y * width : 0;
+      if (!decoded) {
+        getRGB(img, 0, y, width, rows, strip);
+      }
+      // the reduced row ends before the first pixel of the strip that is still to be read
+      reduceStrip(strip, offset, width, rows, n, sums, rgb, row * reducedWidth);
+    }
+    return reducedView(img, n, rgb);
+  }
+
+  /**
+   * Returns the image reduced by <code>2^n</code> in each dimension, whose reduced pixels are
+   * already in the array.
+   *
+   * @return reduced image, backed by <code>rgb</code>
+   */
+  static BufferedImage reducedView(BufferedImage img, int n, int[] rgb) {
+    int reducedWidth = reduced(img.getWidth(), n);
+    int reducedHeight = reduced(img.getHeight(), n);
+    ColorModel cm = (img.getTransparency() == OPAQUE)
+        ? new DirectColorModel(24, 0xff0000, 0xff00, 0xff) : ColorModel.getRGBdefault();
+    int[] masks = masks((DirectColorModel) cm);
+    return new BufferedImage(cm,
+        Raster.createPackedRaster(new DataBufferInt(rgb, reducedWidth * reducedHeight),
+            reducedWidth, reducedHeight, reducedWidth, masks, null),
+        false, null);
+  }
+
+  /**
+   * Averages the blocks of a strip of rows into one reduced row.
+   *
+   * @param sums scratch for the channel sums of each block
+   */
+  private static void reduceStrip(int[] src, int offset, int width, int rows, int n,
+      long[] sums, int[] dst, int dstOffset) {
+    int scale = 1 << n;
+    int reducedWidth = reduced(width, n);
+    Arrays.fill(sums, 0, 4 * reducedWidth, 0L);
+    for (int y = 0; y < rows; y++) {
+      int index = offset + y * width;
+      for (int x = 0; x < width; x++) {
+        int pixel = src[index + x];
+        int block = 4 * (x >> n);
+        sums[block] += pixel >>> 24;
+        sums[block + 1] += (pixel >> 16) & 0xff;
+        sums[block + 2] += (pixel >> 8) & 0xff;
+        sums[block + 3] += pixel & 0xff;
+      }
+    }
+    for (int i = 0; i < reducedWidth; i++) {
+      long count = (long) rows * Math.min(scale, width - i * scale);
+      long half = count / 2;
+      int block = 4 * i;
+      dst[dstOffset + i] = (int) ((sums[block] + half) / count) << 24
+          | (int) ((sums[block + 1] + half) / count) << 16
+          | (int) ((sums[block + 2] + half) / count) << 8
+          | (int) ((sums[block + 3] + half) / count);
+    }
+  }
+
+  /**
+   * Returns whether the color model is the sRGB model of <code>TYPE_INT_RGB</code> or
+   * <code>TYPE_INT_ARGB</code>, whose pixels are already in ARGB order.
+   */
+  private static boolean isIdentity(ColorModel cm) {
+    if (!(cm instanceof DirectColorModel)) {
+      return false;
+    }
+    DirectColorModel dcm = (DirectColorModel) cm;
+    return dcm.getRedMask() == 0xff0000 && dcm.getGreenMask() == 0xff00
+        && dcm.getBlueMask() == 0xff
+        && dcm.getAlphaMask() == (dcm.hasAlpha() ? 0xff000000 : 0);
+  }
+
+  /**
+   * Returns the masks of the red, green, blue and alpha components, omitting alpha if absent.
+   */
+  private static int[] masks(DirectColorModel dcm) {
+    int[] masks = {dcm.getRedMask(), dcm.getGreenMask(), dcm.getBlueMask(), dcm.getAlphaMask()};
+    return dcm.hasAlpha() ? masks : Arrays.copyOf(masks, 3);
+  }
+
+  /**
+   * Returns the table for each band of the color model, or {@link #UNSUPPORTED}.
+   */
+  private static int[][] tables(ColorModel cm) {
+    if (cm.isAlphaPremultiplied()) {
+      return UNSUPPORTED;
+    }
+    if (cm instanceof IndexColorModel) {
+      // palettes are not worth caching
+      int size = 1 << Math.min(cm.getPixelSize(), 16);
+      int[] table = new int[size];
+      for (int i = 0; i < size; i++) {
+        table[i] = cm.getRGB(i);
+      }
+      return new int[][] {table};
+    }
+    ColorSpace cs = cm.getColorSpace();
+    boolean gray = cs == ColorSpace.getInstance(ColorSpace.CS_GRAY);
+    if (!cs.isCS_sRGB() && !gray) {
+      return UNSUPPORTED;
+    }
+    List<Object> key = Arrays.<Object>asList(cm.getClass(), cs, cm.getTransferType(),
+        cm.hasAlpha(), Arrays.toString(cm.getComponentSize()),
+        (cm instanceof DirectColorModel) ? Arrays.toString(masks((DirectColorModel) cm)) : null);
+    synchronized (TABLES) {
+      int[][] tables = TABLES.get(key);
+      if (tables == null) {
+        tables = createTables(cm, gray);
+        TABLES.put(key, tables);
+      }
+      return tables;
+    }
+  }
+
+  /**
+   * Creates the tables of an sRGB or gray color model by converting each sample value.
+   */
+  private static int[][] createTables(ColorModel cm, boolean gray) {
+    int n = cm.getNumComponents();
+    int[][] tables = new int[n][];
+    if (cm instanceof DirectColorModel) {
+      int[] masks = masks((DirectColorModel) cm);
+      for (int c = 0; c < n; c++) {
+        int shift = Integer.numberOfTrailingZeros(masks[c]);
+        if (Integer.bitCount(masks[c]) > 16) {
+          return UNSUPPORTED;
+        }
+        int size = (masks[c] >>> shift) + 1;
+        tables[c] = new int[size];
+        for (int v = 0; v < size; v++) {
+          tables[c][v] = channel(cm, c, v << shift);
+        }
+      }
+      return tables;
+    }
+    if (cm instanceof ComponentColorModel) {
+      int transferType = cm.getTransferType();
+      if (transferType != DataBuffer.TYPE_BYTE && transferType != DataBuffer.TYPE_USHORT) {
+        return UNSUPPORTED;
+      }
+      int sampleBits = DataBuffer.getDataTypeSize(transferType);
+      for (int c = 0; c < n; c++) {
+        if (cm.getComponentSize(c) != sampleBits) {
+          return UNSUPPORTED;
+        }
+      }
+      int size = 1 << sampleBits;
+      for (int c = 0; c < n; c++) {
+        // the gray component, if any, contributes to red, green and blue
+        int channel = !gray ? c : (c == 0) ? -1 : 3;
+        tables[c] = new int[size];
+        for (int v = 0; v < size; v++) {
+          Object pixel;
+          if (transferType == DataBuffer.TYPE_BYTE) {
+            byte[] bytes = new byte[n];
+            bytes[c] = (byte) v;
+            pixel = bytes;
+          } else {
+            short[] shorts = new short[n];
+            shorts[c] = (short) v;
+            pixel = shorts;
+          }
+          tables[c][v] = channel(cm, channel, pixel);
+        }
+      }
+      return tables;
+    }
+    return UNSUPPORTED;
+  }
+
+  /**
+   * Returns the contribution of a component of the given pixel to its ARGB value.
+   *
+   * @param c 0 to 3 for red, green, blue and alpha, or -1 for gray
+   */
+  private static int channel(ColorModel cm, int c, Object pixel) {
+    switch (c) {
+      case 0:
+        return cm.getRed(pixel) << 16;
+      case 1:
+        return cm.getGreen(pixel) << 8;
+      case 2:
+        return cm.getBlue(pixel);
+      case 3:
+        return cm.getAlpha(pixel) << 24;
+      default:
+        return cm.getRGB(pixel) & 0xffffff;
+    }
+  }
+
+  private static int channel(ColorModel cm, int c, int pixel) {
+    switch (c) {
+      case 0:
+        return cm.getRed(pixel) << 16;
+      case 1:
+        return cm.getGreen(pixel) << 8;
+      case 2:
+        return cm.getBlue(pixel);
+      default:
+        return cm.getAlpha(pixel) << 24;
+    }
+  }
+}
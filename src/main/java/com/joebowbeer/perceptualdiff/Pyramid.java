@@ -0,0 +1,468 @@
+/*
+ * Adapted from http://pdiff.sourceforge.net/
+ *
+ * Copyright (C) 2006 Yangli Hector Yee
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package com.joebowbeer.perceptualdiff;
+
+import static com.joebowbeer.perceptualdiff.PerceptualDiff.KERNEL;
+import static com.joebowbeer.perceptualdiff.PerceptualDiff.wrap;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Successively blurred versions of an image, read back one pixel at a time at full resolution,
+ * together with the color planes of the image.
+ */
+abstract class Pyramid {
+
+  /**
+   * Pyramid whose levels are stored as float arrays, which can be written directly.
+   */
+  interface FloatLevels {
+
+    /**
+     * Returns the number of levels.
+     */
+    int levels();
+
+    /**
+     * Returns the array holding the given level. The array may be larger than the level.
+     */
+    float[] level(int i);
+
+    /**
+     * Returns the number of values in the given level.
+     */
+    int size(int i);
+  }
+
+  /**
+   * Stores the value of each level at a run of pixels, which may continue onto following rows.
+   *
+   * @param x column of first pixel
+   * @param y row of first pixel
+   * @param index <code>y * width + x</code>
+   * @param n number of pixels
+   * @param values receives the values of each level, by level and then pixel
+   */
+  abstract void gather(int x, int y, int index, int n, float[][] values);
+
+  /**
+   * Returns the number of levels.
+   */
+  abstract int levels();
+
+  /**
+   * Returns the number of values in the given level.
+   */
+  abstract int size(int i);
+
+  /**
+   * Stores the A and B values of a run of pixels.
+   *
+   * @param x column of first pixel
+   * @param y row of first pixel
+   * @param index <code>y * width + x</code>
+   * @param n number of pixels
+   * @param a receives A
+   * @param b receives B
+   */
+  abstract void gatherColor(int x, int y, int index, int n, float[] a, float[] b);
+
+  /**
+   * Pyramid in which every level is stored at full resolution.
+   */
+  static class Full extends Pyramid implements FloatLevels {
+
+    private final float[][] levels;
+    private final float[] a;
+    private final float[] b;
+    private final int dim;
+
+    /**
+     * @param levels pyramid levels
+     * @param a A plane
+     * @param b B plane
+     * @param dim number of pixels
+     */
+    Full(float[][] levels, float[] a, float[] b, int dim) {
+      this.levels = levels;
+      this.a = a;
+      this.b = b;
+      this.dim = dim;
+    }
+
+    @Override
+    public int levels() {
+      return levels.length;
+    }
+
+    @Override
+    public float[] level(int i) {
+      return levels[i];
+    }
+
+    @Override
+    public int size(int i) {
+      return dim;
+    }
+
+    @Override
+    void gatherColor(int x, int y, int index, int n, float[] dstA, float[] dstB) {
+      System.arraycopy(a, index, dstA, 0, n);
+      System.arraycopy(b, index, dstB, 0, n);
+    }
+
+    @Override
+    void gather(int x, int y, int index, int n, float[][] values) {
+      for (int i = 0; i < levels.length; i++) {
+        System.arraycopy(levels[i], index, values[i], 0, n);
+      }
+    }
+  }
+
+  /**
+   * Pyramid in which every level is stored at full resolution in 16 bits per value, together with
+   * the color planes, halving the memory read by a comparison.
+   * <p>
+   * Level 0 is stored as half-precision floats, and each following level as the half-precision
+   * difference from the previous level. Contrast is computed from the differences between
+   * adjacent levels, which in smooth areas are far smaller than the levels themselves, so rounding
+   * each level separately would swamp them. Each difference is taken from the previous level as it
+   * will be read back, so rounding errors do not accumulate from level to level. Values are scaled
+   * by a power of two so that the largest luminance is just below 256, which keeps every nonzero
+   * pixel of level 0 above the range of denormalized half floats.
+   * <p>
+   * The color planes are stored in fixed point, in units of 1/128, because the color test depends
+   * on their differences. A and B lie between -147 and 102 for every 8-bit color.
+   * <p>
+   * Levels are constructed in floats and rounded as they are stored.
+   */
+  static class Compact extends Pyramid {
+
+    /** Number of fixed-point color units per unit. */
+    private static final float COLOR_SCALE = 128f;
+
+    private final short[][] levels;
+    private final short[] a;
+    private final short[] b;
+    private final int dim;
+
+    /** Factor by which stored level values are scaled. */
+    private final float scale;
+
+    /** Converts the results of {@link Kernels#fromHalf(short)} to level values. */
+    private final float unscale;
+
+    /**
+     * Creates a pyramid whose levels are held in the workspace planes.
+     *
+     * @param planes holds the levels and color planes
+     * @param dim number of pixels
+     * @param n number of levels
+     * @param luminance white luminance, the largest value of level 0
+     */
+    Compact(ComparisonWorkspace.Planes planes, int dim, int n, double luminance) {
+      levels = new short[n][];
+      for (int i = 0; i < n; i++) {
+        levels[i] = planes.compactLevel(i, dim);
+      }
+      a = planes.compactA(dim);
+      b = planes.compactB(dim);
+      this.dim = dim;
+      scale = Math.scalb(1f, 7 - Math.getExponent((float) luminance));
+      unscale = 0x1p112f / scale;
+    }
+
+    /**
+     * Rounds and stores the given range of a level. Levels must be stored in order.
+     *
+     * @param i level
+     * @param src level values
+     * @param stored holds the values of the previous level as stored, and receives the values of
+     *     this level as stored
+     * @param begin beginning index, inclusive
+     * @param end ending index, exclusive
+     */
+    void storeLevel(int i, float[] src, float[] stored, int begin, int end) {
+      Kernels.INSTANCE.toHalf(src, stored, i == 0, scale, unscale, levels[i], begin, end);
+    }
+
+    /**
+     * Rounds and stores the given range of the color planes.
+     */
+    void storeColor(float[] srcA, float[] srcB, int begin, int end) {
+      for (int index = begin; index < end; index++) {
+        a[index] = toFixed(srcA[index]);
+        b[index] = toFixed(srcB[index]);
+      }
+    }
+
+    @Override
+    int levels() {
+      return levels.length;
+    }
+
+    @Override
+    int size(int i) {
+      return dim;
+    }
+
+    @Override
+    void gather(int x, int y, int index, int n, float[][] values) {
+      Kernels.INSTANCE.fromHalf(levels[0], index, null, unscale, values[0], n);
+      for (int i = 1; i < levels.length; i++) {
+        Kernels.INSTANCE.fromHalf(levels[i], index, values[i - 1], unscale, values[i], n);
+      }
+    }
+
+    @Override
+    void gatherColor(int x, int y, int index, int n, float[] dstA, float[] dstB) {
+      for (int k = 0; k < n; k++) {
+        dstA[k] = a[index + k] * (1 / COLOR_SCALE);
+        dstB[k] = b[index + k] * (1 / COLOR_SCALE);
+      }
+    }
+
+    /**
+     * Rounds a color value to the nearest fixed-point value, clamping to the range of a short.
+     */
+    static short toFixed(float f) {
+      int i = Math.round(f * COLOR_SCALE);
+      return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, i));
+    }
+  }
+
+  /**
+   * Pyramid in which each level is blurred and then decimated to half the size of the previous
+   * level. Level values are bilinearly upsampled on lookup.
+   */
+  static class Decimated extends Pyramid implements FloatLevels {
+
+    private final float[][] levels;
+    private final int[] widths;
+    private final int[] heights;
+    private final float[] a;
+    private final float[] b;
+
+    /**
+     * Creates a pyramid whose levels are held in the workspace planes.
+     *
+     * @param planes holds the levels and color planes
+     * @param width image width
+     * @param height image height
+     * @param n number of levels
+     */
+    Decimated(ComparisonWorkspace.Planes planes, int width, int height, int n) {
+      levels = new float[n][];
+      widths = new int[n];
+      heights = new int[n];
+      widths[0] = width;
+      heights[0] = height;
+      levels[0] = planes.level(0, width * height);
+      a = planes.a(width * height);
+      b = planes.b(width * height);
+      for (int i = 1; i < n; i++) {
+        widths[i] = (widths[i - 1] + 1) / 2;
+        heights[i] = (heights[i - 1] + 1) / 2;
+        levels[i] = planes.level(i, widths[i] * heights[i]);
+      }
+    }
+
+    /**
+     * Constructs the levels above level 0.
+     *
+     * @param tmp scratch array of at least half the size of level 0
+     */
+    void construct(float[] tmp) {
+      for (int i = 1; i < levels.length; i++) {
+        blurAndDecimate(levels[i - 1], widths[i - 1], heights[i - 1], levels[i], tmp);
+      }
+    }
+
+    @Override
+    public int levels() {
+      return levels.length;
+    }
+
+    @Override
+    public float[] level(int i) {
+      return levels[i];
+    }
+
+    @Override
+    public int size(int i) {
+      return widths[i] * heights[i];
+    }
+
+    /**
+     * Applies the filter kernel horizontally and then vertically, keeping only the even columns
+     * and rows.
+     */
+    private static void blurAndDecimate(float[] src, int width, int height, float[] dst,
+        float[] tmp) {
+      int halfWidth = (width + 1) / 2;
+      for (int y = 0; y < height; y++) {
+        int offset = y * width;
+        for (int x = 0, index = y * halfWidth; x < width; x += 2, index++) {
+          float f = 0;
+          for (int i = -2; i <= 2; i++) {
+            f += KERNEL[i + 2] * src[offset + edge(x + i, width)];
+          }
+          tmp[index] = f;
+        }
+      }
+      for (int y = 0, index = 0; y < height; y += 2) {
+        for (int x = 0; x < halfWidth; x++, index++) {
+          float f = 0;
+          for (int i = -2; i <= 2; i++) {
+            f += KERNEL[i + 2] * tmp[edge(y + i, height) * halfWidth + x];
+          }
+          dst[index] = f;
+        }
+      }
+    }
+
+    /**
+     * Wraps index <code>i</code> at the edges of the range [0, n), clamping when the range is too
+     * small for the kernel, as it is at the top of the pyramid.
+     */
+    private static int edge(int i, int n) {
+      int j = wrap(i, n);
+      return (j < 0) ? 0 : (j >= n) ? n - 1 : j;
+    }
+
+    @Override
+    void gather(int x, int y, int index, int n, float[][] values) {
+      System.arraycopy(levels[0], index, values[0], 0, n);
+      for (int i = 1; i < levels.length; i++) {
+        float[] level = levels[i];
+        float[] dst = values[i];
+        int w = widths[i];
+        int h = heights[i];
+        int mask = (1 << i) - 1;
+        float scale = 1f / (1 << i);
+        for (int k = 0, px = x, py = y; k < n; k++) {
+          int x0 = px >> i;
+          int y0 = py >> i;
+          int x1 = (x0 + 1 < w) ? x0 + 1 : x0;
+          int y1 = (y0 + 1 < h) ? y0 + 1 : y0;
+          float tx = (px & mask) * scale;
+          float ty = (py & mask) * scale;
+          float top = level[y0 * w + x0] + tx * (level[y0 * w + x1] - level[y0 * w + x0]);
+          float bottom = level[y1 * w + x0] + tx * (level[y1 * w + x1] - level[y1 * w + x0]);
+          dst[k] = top + ty * (bottom - top);
+          if (++px == widths[0]) {
+            px = 0;
+            py++;
+          }
+        }
+      }
+    }
+
+    @Override
+    void gatherColor(int x, int y, int index, int n, float[] dstA, float[] dstB) {
+      System.arraycopy(a, index, dstA, 0, n);
+      System.arraycopy(b, index, dstB, 0, n);
+    }
+  }
+
+  /**
+   * Pyramid in which every level is stored at full resolution outside the heap, together with the
+   * color planes, so that neither the heap nor the size of a buffer limits the size of the image.
+   * The values are stored in {@link OffHeapFloats}, indexed by <code>(long) y * width + x</code>,
+   * and may be mapped from scratch files so that they can also exceed physical memory, or from
+   * an entry of a {@link PyramidCache}.
+   * <p>
+   * Levels are constructed elsewhere, one tile at a time, and stored a row of a tile at a time.
+   */
+  static class OffHeap extends Pyramid {
+
+    private final OffHeapFloats[] levels;
+    private final OffHeapFloats a;
+    private final OffHeapFloats b;
+    private final int width;
+    private final int height;
+
+    /**
+     * @param n number of levels
+     * @param scratchDir directory in which to map scratch files, or <code>null</code> for direct
+     *     buffers
+     */
+    OffHeap(int width, int height, int n, File scratchDir) throws IOException {
+      this.width = width;
+      this.height = height;
+      long dim = (long) width * height;
+      levels = new OffHeapFloats[n];
+      for (int i = 0; i < n; i++) {
+        levels[i] = new OffHeapFloats(dim, scratchDir);
+      }
+      a = new OffHeapFloats(dim, scratchDir);
+      b = new OffHeapFloats(dim, scratchDir);
+    }
+
+    /**
+     * Creates a pyramid of levels and color planes that are already stored.
+     */
+    OffHeap(int width, int height, OffHeapFloats[] levels, OffHeapFloats a, OffHeapFloats b) {
+      this.width = width;
+      this.height = height;
+      this.levels = levels;
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    int levels() {
+      return levels.length;
+    }
+
+    @Override
+    int size(int i) {
+      return width * height;
+    }
+
+    /**
+     * Stores a run of values of a level.
+     */
+    void store(int level, int x, int y, float[] src, int offset, int n) {
+      levels[level].put((long) y * width + x, src, offset, n);
+    }
+
+    /**
+     * Stores the A and B values of a run of pixels.
+     */
+    void storeColor(int x, int y, float[] srcA, float[] srcB, int offset, int n) {
+      a.put((long) y * width + x, srcA, offset, n);
+      b.put((long) y * width + x, srcB, offset, n);
+    }
+
+    @Override
+    void gather(int x, int y, int index, int n, float[][] values) {
+      long start = (long) y * width + x;
+      for (int i = 0; i < levels.length; i++) {
+        levels[i].get(start, values[i], 0, n);
+      }
+    }
+
+    @Override
+    void gatherColor(int x, int y, int index, int n, float[] dstA, float[] dstB) {
+      a.get((long) y * width + x, dstA, 0, n);
+      b.get((long) y * width + x, dstB, 0, n);
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package com.joebowbeer.perceptualdiff;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent cache of converted color planes and pyramids, keyed by the pixel content of an image
+ * and the parameters that affect them. Used for baseline images that are compared many times.
+ * <p>
+ * Each entry is a file holding the A and B planes followed by the pyramid levels, as
+ * little-endian floats, so that a comparison with a cached baseline finds exactly the same
+ * differences as one without. The entry of a full pyramid is memory-mapped, and the comparison
+ * reads it in place; the smaller entry of a decimated pyramid is copied into the workspace.
+ * When the total size of the entries exceeds the limit, the least recently used entries are
+ * deleted.
+ * <p>
+ * Caches in any number of threads and processes may share a directory. Each entry is written to
+ * a temporary file of its own and moved into place, and entries are moved and evicted while
+ * holding a lock on the directory.
+ */
+public class PyramidCache {
+
+  private static final int MAGIC = 0x50445043; // PDPC
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 24;
+  private static final String SUFFIX = ".pyr";
+  private static final int CHUNK_SIZE = 1 << 16;
+  private static final String LOCK = "cache.lock";
+
+  /** Lock of each cache directory used by this process. */
+  private static final ConcurrentMap<Path, Object> LOCKS = new ConcurrentHashMap<Path, Object>();
+
+  private final File directory;
+  private final long maxBytes;
+
+  /**
+   * Creates a cache in the given directory.
+   *
+   * @param directory holds the cache entries, and is created if needed
+   * @param maxBytes total size of entries above which entries are evicted
+   */
+  public PyramidCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cache key for the given pixels and parameters.
+   */
+  static String key(int[] rgb, int width, int height, double gamma, double luminance,
+      PerceptualDiff.PyramidType pyramidType) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+    ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+    IntBuffer ints = buf.asIntBuffer();
+    int dim = width * height;
+    for (int offset = 0; offset < dim; offset += ints.capacity()) {
+      int length = Math.min(ints.capacity(), dim - offset);
+      ints.clear();
+      ints.put(rgb, offset, length);
+      digest.update(buf.array(), 0, length * 4);
+    }
+    buf.clear();
+    buf.putInt(VERSION).putInt(width).putInt(height).putInt(pyramidType.ordinal())
+        .putDouble(gamma).putDouble(luminance);
+    digest.update(buf.array(), 0, buf.position());
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(String.format("%02x", b & 0xff));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Maps the entry with the given key for a full pyramid, which then reads its levels and color
+   * planes in place from the file.
+   *
+   * @param levels number of levels
+   * @return the pyramid, or <code>null</code> if the entry was not found
+   */
+  Pyramid map(String key, int width, int height, int levels) {
+    File file = new File(directory, key + SUFFIX);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+        long dim = (long) width * height;
+        if (!checkHeader(channel, file, levels, dim, (levels + 2) * dim)) {
+          return null;
+        }
+        OffHeapFloats a = OffHeapFloats.map(channel, HEADER_SIZE, dim, ByteOrder.LITTLE_ENDIAN);
+        OffHeapFloats b =
+            OffHeapFloats.map(channel, HEADER_SIZE + 4 * dim, dim, ByteOrder.LITTLE_ENDIAN);
+        OffHeapFloats[] mapped = new OffHeapFloats[levels];
+        for (int i = 0; i < levels; i++) {
+          mapped[i] = OffHeapFloats.map(channel, HEADER_SIZE + 4 * (i + 2) * dim, dim,
+              ByteOrder.LITTLE_ENDIAN);
+        }
+        touch(file);
+        return new Pyramid.OffHeap(width, height, mapped, a, b);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException ex) {
+      Log.w("Cannot map cache entry " + file + ": " + ex);
+      return null;
+    }
+  }
+
+  /**
+   * Reads the entry with the given key into the A and B planes and the levels of a decimated
+   * pyramid, which are small enough to copy.
+   *
+   * @return <code>true</code> if the entry was found
+   */
+  boolean load(String key, float[] a, float[] b, Pyramid.FloatLevels pyramid) {
+    File file = new File(directory, key + SUFFIX);
+    if (!file.isFile()) {
+      return false;
+    }
+    try {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+        int dim = pyramid.size(0);
+        if (!checkHeader(channel, file, pyramid.levels(), dim, entrySize(pyramid))) {
+          return false;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buf.flip();
+        read(channel, buf, a, dim);
+        read(channel, buf, b, dim);
+        for (int i = 0; i < pyramid.levels(); i++) {
+          read(channel, buf, pyramid.level(i), pyramid.size(i));
+        }
+      } finally {
+        channel.close();
+      }
+      touch(file);
+      return true;
+    } catch (IOException ex) {
+      Log.w("Cannot read cache entry " + file + ": " + ex);
+      return false;
+    }
+  }
+
+  /**
+   * Reads the header of an entry, leaving the channel at the first float.
+   *
+   * @param dim number of pixels
+   * @param floats number of floats that should follow the header
+   * @return whether the entry holds a pyramid of the given dimensions
+   */
+  private static boolean checkHeader(FileChannel channel, File file, int levels, long dim,
+      long floats) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    while (header.hasRemaining() && channel.read(header) != -1) {
+      // keep reading
+    }
+    header.flip();
+    if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC
+        || header.getInt() != VERSION || header.getInt() != levels || header.getInt() != dim) {
+      Log.w("Ignoring invalid cache entry " + file);
+      return false;
+    }
+    if (header.getLong() != floats || channel.size() != HEADER_SIZE + 4 * floats) {
+      Log.w("Ignoring truncated cache entry " + file);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Records the use of an entry for eviction.
+   */
+  private static void touch(File file) {
+    file.setLastModified(System.currentTimeMillis());
+    Log.v("Loaded pyramid from " + file);
+  }
+
+  /**
+   * Stores the A and B planes and pyramid as the entry with the given key, and then evicts the
+   * least recently used entries if the cache is too large.
+   */
+  void store(String key, float[] a, float[] b, Pyramid.FloatLevels pyramid) {
+    File file = new File(directory, key + SUFFIX);
+    File tmp = null;
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Cannot create directory " + directory);
+      }
+      // concurrent stores of the same entry each write their own file
+      tmp = File.createTempFile(key, ".tmp", directory);
+      FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+      try {
+        ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(pyramid.levels()).putInt(pyramid.size(0));
+        buf.putLong(entrySize(pyramid));
+        int dim = pyramid.size(0);
+        write(channel, buf, a, dim);
+        write(channel, buf, b, dim);
+        for (int i = 0; i < pyramid.levels(); i++) {
+          write(channel, buf, pyramid.level(i), pyramid.size(i));
+        }
+      } finally {
+        channel.close();
+      }
+      synchronized (lock()) {
+        FileChannel lockChannel = FileChannel.open(new File(directory, LOCK).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+          // excludes other processes, and is released when the channel is closed
+          lockChannel.lock();
+          Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+          Log.v("Stored pyramid in " + file);
+          evict();
+        } finally {
+          lockChannel.close();
+        }
+      }
+    } catch (IOException ex) {
+      Log.w("Cannot write cache entry " + file + ": " + ex);
+      if (tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+
+  /**
+   * Returns the object on which this process synchronizes the stores to the directory. A file
+   * lock cannot be held twice by one process, so every cache of the directory shares it.
+   */
+  private Object lock() {
+    Path path = directory.toPath().toAbsolutePath().normalize();
+    Object lock = new Object();
+    Object existing = LOCKS.putIfAbsent(path, lock);
+    return (existing != null) ? existing : lock;
+  }
+
+  /**
+   * Returns the number of floats in an entry for the given pyramid.
+   */
+  private static long entrySize(Pyramid.FloatLevels pyramid) {
+    long size = 2L * pyramid.size(0);
+    for (int i = 0; i < pyramid.levels(); i++) {
+      size += pyramid.size(i);
+    }
+    return size;
+  }
+
+  /**
+   * Appends the floats to the buffer, writing the buffer to the channel whenever it fills up and
+   * once all of the floats have been appended.
+   */
+  private static void write(FileChannel channel, ByteBuffer buf, float[] src, int length)
+      throws IOException {
+    for (int offset = 0; offset < length; ) {
+      FloatBuffer floats = buf.asFloatBuffer();
+      int n = Math.min(floats.remaining(), length - offset);
+      floats.put(src, offset, n);
+      buf.position(buf.position() + n * 4);
+      offset += n;
+      if (!buf.hasRemaining() || offset == length) {
+        buf.flip();
+        while (buf.hasRemaining()) {
+          channel.write(buf);
+        }
+        buf.clear();
+      }
+    }
+  }
+
+  /**
+   * Reads floats from the channel through the buffer, which holds the bytes read but not yet
+   * consumed.
+   */
+  private static void read(FileChannel channel, ByteBuffer buf, float[] dst, int length)
+      throws IOException {
+    for (int offset = 0; offset < length; ) {
+      if (buf.remaining() < 4) {
+        buf.compact();
+        if (channel.read(buf) == -1) {
+          throw new IOException("Unexpected end of file");
+        }
+        buf.flip();
+        continue;
+      }
+      FloatBuffer floats = buf.asFloatBuffer();
+      int n = Math.min(floats.remaining(), length - offset);
+      floats.get(dst, offset, n);
+      buf.position(buf.position() + n * 4);
+      offset += n;
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the total size is within the limit.
+   */
+  private void evict() {
+    File[] files = directory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().endsWith(SUFFIX);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+    final long[] lastModified = new long[files.length];
+    Integer[] order = new Integer[files.length];
+    for (int i = 0; i < files.length; i++) {
+      lastModified[i] = files[i].lastModified();
+      order[i] = i;
+    }
+    // most recently used first
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i, Integer j) {
+        return Long.compare(lastModified[j], lastModified[i]);
+      }
+    });
+    long total = 0;
+    for (Integer i : order) {
+      total += files[i].length();
+      if (total > maxBytes) {
+        Log.v("Evicting " + files[i]);
+        files[i].delete();
+      }
+    }
+  }
+}
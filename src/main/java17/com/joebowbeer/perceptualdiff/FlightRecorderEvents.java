@@ -0,0 +1,110 @@
+package com.joebowbeer.perceptualdiff;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Commits a Java Flight Recorder event for each comparison. The event begins when the comparison
+ * starts and is committed when it finishes, so that it spans the garbage collections, safepoints
+ * and thread parks that happened meanwhile, and it holds the time of each stage.
+ */
+class FlightRecorderEvents extends CompareEvents {
+
+  @Name("com.joebowbeer.perceptualdiff.Compare")
+  @Label("Image Comparison")
+  @Category("PerceptualDiff")
+  @Description("Perceptual comparison of two images")
+  static class CompareEvent extends Event {
+
+    @Label("Passed")
+    boolean passed;
+
+    @Label("Pixels Failed")
+    int pixelsFailed;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Pixels Evaluated")
+    long pixelsEvaluated;
+
+    @Label("Tasks Forked")
+    long tasksForked;
+
+    @Label("Allocated")
+    @DataAmount
+    long bytesAllocated;
+
+    @Label("Decode Time")
+    @Timespan
+    long decodeTime;
+
+    @Label("Read Time")
+    @Timespan
+    long readTime;
+
+    @Label("Cascade Time")
+    @Timespan
+    long cascadeTime;
+
+    @Label("Pyramid Time")
+    @Timespan
+    long pyramidTime;
+
+    @Label("Compare Time")
+    @Timespan
+    long compareTime;
+
+    @Label("Write Time")
+    @Timespan
+    long writeTime;
+
+    @Label("Total Time")
+    @Timespan
+    long totalTime;
+  }
+
+  @Override
+  Object begin() {
+    CompareEvent event = new CompareEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  @Override
+  void end(Object event) {
+    if (event != null) {
+      ((CompareEvent) event).end();
+    }
+  }
+
+  @Override
+  void commit(CompareResult result, CompareMetrics metrics) {
+    CompareEvent event = (CompareEvent) metrics.event;
+    if (event == null) {
+      return;
+    }
+    event.passed = result.isPassed();
+    event.pixelsFailed = result.getPixelsFailed();
+    event.pixels = metrics.getPixels();
+    event.pixelsEvaluated = metrics.getPixelsEvaluated();
+    event.tasksForked = metrics.getTasksForked();
+    event.bytesAllocated = metrics.getBytesAllocated();
+    event.decodeTime = metrics.getNanos(CompareMetrics.Stage.DECODE);
+    event.readTime = metrics.getNanos(CompareMetrics.Stage.READ);
+    event.cascadeTime = metrics.getNanos(CompareMetrics.Stage.CASCADE);
+    event.pyramidTime = metrics.getNanos(CompareMetrics.Stage.PYRAMID);
+    event.compareTime = metrics.getNanos(CompareMetrics.Stage.COMPARE);
+    event.writeTime = metrics.getNanos(CompareMetrics.Stage.WRITE);
+    event.totalTime = metrics.getTotalNanos();
+    event.commit();
+  }
+}
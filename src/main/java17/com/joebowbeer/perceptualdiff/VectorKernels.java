@@ -0,0 +1,300 @@
+/*
+ * Adapted from http://pdiff.sourceforge.net/
+ *
+ * Copyright (C) 2006 Yangli Hector Yee
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA
+ * 02111-1307 USA
+ */
+package com.joebowbeer.perceptualdiff;
+
+import static com.joebowbeer.perceptualdiff.PerceptualDiff.KERNEL;
+import static com.joebowbeer.perceptualdiff.PerceptualDiff.wrap;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels computed with the Vector API, several pixels at a time.
+ * <p>
+ * Each lane performs the same operations as {@link Kernels} in the same order, without fused
+ * multiply-add, so the results are bit for bit the same. Pixels left over at the end of a range,
+ * and pixels whose neighbors wrap at the edges, are computed by scalar loops.
+ * <p>
+ * Color conversion is inherited from the scalar implementation. It is dominated by table lookups
+ * and by the conversions between long and double in {@link PerceptualDiff#fastpow fastpow}, and
+ * measured slower when vectorized.
+ */
+final class VectorKernels extends Kernels {
+
+  private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Integer> INTS = FLOATS.withLanes(int.class);
+  private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED
+      .withShape(VectorShape.forBitSize(FLOATS.vectorBitSize() / 2));
+
+  /** Bits of the smallest normal half float, and of the smallest float that overflows it. */
+  private static final int MIN_NORMAL_BITS = Float.floatToRawIntBits(0x1p-14f);
+  private static final int OVERFLOW_BITS = Float.floatToRawIntBits(65520f);
+
+  VectorKernels() {
+    if (FLOATS.length() < 4) {
+      throw new UnsupportedOperationException("Vectors are too short: " + FLOATS);
+    }
+  }
+
+  @Override
+  void convolveAndTransposeRows(float[] src, float[] dst, int width, int height, int beginRow,
+      int endRow) {
+    int lanes = FLOATS.length();
+    if (width < lanes + 4) {
+      super.convolveAndTransposeRows(src, dst, width, height, beginRow, endRow);
+      return;
+    }
+    // convolve a band of rows, and then store the band transposed a column at a time, so that
+    // each column of the band is stored contiguously
+    int bandRows = Math.min(lanes, endRow - beginRow);
+    float[] band = new float[bandRows * width];
+    for (int y0 = beginRow; y0 < endRow; y0 += bandRows) {
+      int rows = Math.min(bandRows, endRow - y0);
+      for (int j = 0; j < rows; j++) {
+        int offset = (y0 + j) * width;
+        int row = j * width;
+        // the two pixels at each edge wrap
+        int upper = width - 2 - lanes;
+        int x = 2;
+        for (; x <= upper; x += lanes) {
+          int i = offset + x;
+          FloatVector f = FloatVector.zero(FLOATS)
+              .add(FloatVector.fromArray(FLOATS, src, i - 2).mul(KERNEL[0]))
+              .add(FloatVector.fromArray(FLOATS, src, i - 1).mul(KERNEL[1]))
+              .add(FloatVector.fromArray(FLOATS, src, i).mul(KERNEL[2]))
+              .add(FloatVector.fromArray(FLOATS, src, i + 1).mul(KERNEL[3]))
+              .add(FloatVector.fromArray(FLOATS, src, i + 2).mul(KERNEL[4]));
+          f.intoArray(band, row + x);
+        }
+        convolve(src, offset, width, band, row, 0, 2);
+        convolve(src, offset, width, band, row, x, width);
+      }
+      for (int x = 0, index = y0; x < width; x++, index += height) {
+        for (int j = 0, k = x; j < rows; j++, k += width) {
+          dst[index + j] = band[k];
+        }
+      }
+    }
+  }
+
+  @Override
+  void convolveAndTransposeBlocked(float[] src, float[] dst, int width, int height,
+      int beginRow, int endRow) {
+    int lanes = FLOATS.length();
+    if (width < lanes + 4) {
+      super.convolveAndTransposeBlocked(src, dst, width, height, beginRow, endRow);
+      return;
+    }
+    // convolve a tile into a buffer a row at a time, and then store it transposed a column at a
+    // time
+    float[] tile = new float[TILE * TILE];
+    for (int y0 = beginRow; y0 < endRow; y0 += TILE) {
+      int rows = Math.min(TILE, endRow - y0);
+      for (int x0 = 0; x0 < width; x0 += TILE) {
+        int x1 = Math.min(x0 + TILE, width);
+        // the two pixels at each edge wrap
+        int lower = Math.max(x0, 2);
+        int upper = Math.min(x1, width - 2) - lanes;
+        for (int j = 0; j < rows; j++) {
+          int offset = (y0 + j) * width;
+          int row = j * TILE - x0;
+          int x = lower;
+          for (; x <= upper; x += lanes) {
+            int i = offset + x;
+            FloatVector f = FloatVector.zero(FLOATS)
+                .add(FloatVector.fromArray(FLOATS, src, i - 2).mul(KERNEL[0]))
+                .add(FloatVector.fromArray(FLOATS, src, i - 1).mul(KERNEL[1]))
+                .add(FloatVector.fromArray(FLOATS, src, i).mul(KERNEL[2]))
+                .add(FloatVector.fromArray(FLOATS, src, i + 1).mul(KERNEL[3]))
+                .add(FloatVector.fromArray(FLOATS, src, i + 2).mul(KERNEL[4]));
+            f.intoArray(tile, row + x);
+          }
+          convolve(src, offset, width, tile, row, x0, lower);
+          convolve(src, offset, width, tile, row, x, x1);
+        }
+        for (int x = x0, index = x0 * height + y0; x < x1; x++, index += height) {
+          for (int j = 0, k = x - x0; j < rows; j++, k += TILE) {
+            dst[index + j] = tile[k];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Convolves pixels <code>begin</code> to <code>end</code> of the row of <code>src</code> at
+   * <code>offset</code> into the row of <code>band</code> at <code>row</code>.
+   */
+  private static void convolve(float[] src, int offset, int width, float[] band, int row,
+      int begin, int end) {
+    for (int x = begin; x < end; x++) {
+      float f = 0;
+      for (int i = -2; i <= 2; i++) {
+        f += KERNEL[i + 2] * src[offset + wrap(x + i, width)];
+      }
+      band[row + x] = f;
+    }
+  }
+
+  @Override
+  void contrast(float[][] va, float[][] vb, int n, float[][] contrast, float[] sumContrast) {
+    int lanes = FLOATS.length();
+    int upper = n - n % lanes;
+    for (int k = 0; k < upper; k += lanes) {
+      FloatVector.zero(FLOATS).intoArray(sumContrast, k);
+    }
+    for (int k = upper; k < n; k++) {
+      sumContrast[k] = 0;
+    }
+    for (int i = 0; i < contrast.length; i++) {
+      float[] a0 = va[i];
+      float[] a1 = va[i + 1];
+      float[] a2 = va[i + 2];
+      float[] b0 = vb[i];
+      float[] b1 = vb[i + 1];
+      float[] b2 = vb[i + 2];
+      float[] c = contrast[i];
+      for (int k = 0; k < upper; k += lanes) {
+        FloatVector n1 = FloatVector.fromArray(FLOATS, a0, k)
+            .sub(FloatVector.fromArray(FLOATS, a1, k)).abs();
+        FloatVector n2 = FloatVector.fromArray(FLOATS, b0, k)
+            .sub(FloatVector.fromArray(FLOATS, b1, k)).abs();
+        FloatVector numerator = n1.blend(n2, n1.compare(VectorOperators.GT, n2).not());
+        FloatVector d1 = FloatVector.fromArray(FLOATS, a2, k).abs();
+        FloatVector d2 = FloatVector.fromArray(FLOATS, b2, k).abs();
+        FloatVector denominator = d1.blend(d2, d1.compare(VectorOperators.GT, d2).not());
+        VectorMask<Float> small = denominator.compare(VectorOperators.LT, 1e-5f);
+        denominator = denominator.blend(1e-5f, small);
+        FloatVector ck = numerator.div(denominator);
+        ck.intoArray(c, k);
+        FloatVector.fromArray(FLOATS, sumContrast, k).add(ck).intoArray(sumContrast, k);
+      }
+      for (int k = upper; k < n; k++) {
+        float n1 = Math.abs(a0[k] - a1[k]);
+        float n2 = Math.abs(b0[k] - b1[k]);
+        float numerator = (n1 > n2) ? n1 : n2;
+        float d1 = Math.abs(a2[k]);
+        float d2 = Math.abs(b2[k]);
+        float denominator = (d1 > d2) ? d1 : d2;
+        if (denominator < 1e-5f) {
+          denominator = 1e-5f;
+        }
+        c[k] = numerator / denominator;
+        sumContrast[k] += c[k];
+      }
+    }
+    for (int k = 0; k < upper; k += lanes) {
+      FloatVector s = FloatVector.fromArray(FLOATS, sumContrast, k);
+      s.blend(1e-5f, s.compare(VectorOperators.LT, 1e-5f)).intoArray(sumContrast, k);
+    }
+    for (int k = upper; k < n; k++) {
+      if (sumContrast[k] < 1e-5f) {
+        sumContrast[k] = 1e-5f;
+      }
+    }
+  }
+
+  /*
+   * The half float loops are written out in full, without helper methods that take or return
+   * vectors: such methods are not always inlined, and then every vector they handle is allocated.
+   * In each loop, the bits of the half floats are computed as ints, as in Kernels.toHalf(float),
+   * and shifted back into place as in Kernels.fromHalf(short). The bits of non-negative floats,
+   * including infinity and NaN, are in the same order as their values, so magnitudes are compared
+   * as ints.
+   */
+
+  @Override
+  void toHalf(float[] src, float[] stored, boolean first, float scale, float unscale,
+      short[] dst, int begin, int end) {
+    int lanes = FLOATS.length();
+    int index = begin;
+    if (first) {
+      for (; index <= end - lanes; index += lanes) {
+        IntVector bits = FloatVector.fromArray(FLOATS, src, index).mul(scale).reinterpretAsInts();
+        IntVector magnitude = bits.and(0x7fffffff);
+        IntVector h = magnitude.add(magnitude.lanewise(VectorOperators.LSHR, 13).and(1))
+            .add(0xfff).lanewise(VectorOperators.LSHR, 13).sub(112 << 10)
+            .blend(magnitude.reinterpretAsFloats().add(0.5f).reinterpretAsInts().sub(0x3f000000),
+                magnitude.compare(VectorOperators.LT, MIN_NORMAL_BITS))
+            .blend(0x7c00, magnitude.compare(VectorOperators.GE, OVERFLOW_BITS))
+            .or(bits.lanewise(VectorOperators.LSHR, 16).and(0x8000));
+        ((ShortVector) h.convertShape(VectorOperators.I2S, SHORTS, 0)).intoArray(dst, index);
+        h.and(0x8000).lanewise(VectorOperators.LSHL, 16)
+            .or(h.and(0x7fff).lanewise(VectorOperators.LSHL, 13))
+            .reinterpretAsFloats().mul(unscale).intoArray(stored, index);
+      }
+    } else {
+      for (; index <= end - lanes; index += lanes) {
+        FloatVector previous = FloatVector.fromArray(FLOATS, stored, index);
+        IntVector bits = previous.sub(FloatVector.fromArray(FLOATS, src, index)).mul(scale)
+            .reinterpretAsInts();
+        IntVector magnitude = bits.and(0x7fffffff);
+        IntVector h = magnitude.add(magnitude.lanewise(VectorOperators.LSHR, 13).and(1))
+            .add(0xfff).lanewise(VectorOperators.LSHR, 13).sub(112 << 10)
+            .blend(magnitude.reinterpretAsFloats().add(0.5f).reinterpretAsInts().sub(0x3f000000),
+                magnitude.compare(VectorOperators.LT, MIN_NORMAL_BITS))
+            .blend(0x7c00, magnitude.compare(VectorOperators.GE, OVERFLOW_BITS))
+            .or(bits.lanewise(VectorOperators.LSHR, 16).and(0x8000));
+        ((ShortVector) h.convertShape(VectorOperators.I2S, SHORTS, 0)).intoArray(dst, index);
+        previous.sub(h.and(0x8000).lanewise(VectorOperators.LSHL, 16)
+            .or(h.and(0x7fff).lanewise(VectorOperators.LSHL, 13))
+            .reinterpretAsFloats().mul(unscale)).intoArray(stored, index);
+      }
+    }
+    super.toHalf(src, stored, first, scale, unscale, dst, index, end);
+  }
+
+  @Override
+  void fromHalf(short[] src, int offset, float[] prev, float unscale, float[] dst, int n) {
+    int lanes = FLOATS.length();
+    int k = 0;
+    if (prev == null) {
+      for (; k <= n - lanes; k += lanes) {
+        IntVector h = (IntVector) ShortVector.fromArray(SHORTS, src, offset + k)
+            .convertShape(VectorOperators.S2I, INTS, 0);
+        h.and(0x8000).lanewise(VectorOperators.LSHL, 16)
+            .or(h.and(0x7fff).lanewise(VectorOperators.LSHL, 13))
+            .reinterpretAsFloats().mul(unscale).intoArray(dst, k);
+      }
+    } else {
+      for (; k <= n - lanes; k += lanes) {
+        IntVector h = (IntVector) ShortVector.fromArray(SHORTS, src, offset + k)
+            .convertShape(VectorOperators.S2I, INTS, 0);
+        FloatVector.fromArray(FLOATS, prev, k)
+            .sub(h.and(0x8000).lanewise(VectorOperators.LSHL, 16)
+                .or(h.and(0x7fff).lanewise(VectorOperators.LSHL, 13))
+                .reinterpretAsFloats().mul(unscale))
+            .intoArray(dst, k);
+      }
+    }
+    for (; k < n; k++) {
+      float f = Kernels.fromHalf(src[offset + k]) * unscale;
+      dst[k] = (prev != null) ? prev[k] - f : f;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "vector kernels (" + FLOATS.length() + " lanes)";
+  }
+}
@@ -4,11 +4,39 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
+import javax.management.JMX;
+import javax.management.ObjectName;
 
 /**
  * Unit test for PerceptualDiff.
@@ -47,9 +75,1017 @@ public class PerceptualDiffTest extends TestCase {
     assertTrue(compare(pdlo, "Aqsis_vase_ref.png", "Aqsis_vase.png"));
   }
 
+  /**
+   * Checks that the decimated pyramid reaches the same verdicts as the full pyramid.
+   */
+  public void testCompareDecimated() throws IOException {
+    PerceptualDiff pd = new PerceptualDiff.Builder()
+        .setPyramidType(PerceptualDiff.PyramidType.DECIMATED).build();
+    assertFalse(compare(pd, "fish2.png", "fish1.png"));
+    assertFalse(compare(pd, "Bug1102605_ref.png", "Bug1102605.png"));
+    assertTrue(compare(pd, "Bug1471457_ref.png", "Bug1471457.png"));
+    assertTrue(compare(pd, "cam_mb_ref.png", "cam_mb.png"));
+
+    PerceptualDiff pdlo = new PerceptualDiff.Builder()
+        .setPyramidType(PerceptualDiff.PyramidType.DECIMATED).setLuminanceOnly(true).build();
+    assertTrue(compare(pdlo, "Aqsis_vase_ref.png", "Aqsis_vase.png"));
+  }
+
+  /**
+   * Checks that the visual model interpolated from lookup tables reaches the same verdicts as the
+   * exact model.
+   */
+  public void testCompareModelTables() throws IOException {
+    PerceptualDiff pd = new PerceptualDiff.Builder().setExactModel(false).build();
+    assertFalse(compare(pd, "fish2.png", "fish1.png"));
+    assertFalse(compare(pd, "Bug1102605_ref.png", "Bug1102605.png"));
+    assertTrue(compare(pd, "Bug1471457_ref.png", "Bug1471457.png"));
+    assertTrue(compare(pd, "cam_mb_ref.png", "cam_mb.png"));
+
+    PerceptualDiff pdlo = new PerceptualDiff.Builder()
+        .setExactModel(false).setLuminanceOnly(true).build();
+    assertTrue(compare(pdlo, "Aqsis_vase_ref.png", "Aqsis_vase.png"));
+  }
+
+  /**
+   * Checks that a workspace can be reused across images of different sizes.
+   */
+  public void testCompareWorkspace() throws IOException {
+    ComparisonWorkspace workspace = new ComparisonWorkspace();
+    for (PerceptualDiff.PyramidType type : PerceptualDiff.PyramidType.values()) {
+      PerceptualDiff pd = new PerceptualDiff.Builder().setPyramidType(type).build();
+      for (int i = 0; i < 2; i++) {
+        assertFalse(compare(pd, workspace, "fish2.png", "fish1.png"));
+        assertFalse(compare(pd, workspace, "Bug1102605_ref.png", "Bug1102605.png"));
+        assertTrue(compare(pd, workspace, "Bug1471457_ref.png", "Bug1471457.png"));
+        assertTrue(compare(pd, workspace, "cam_mb_ref.png", "cam_mb.png"));
+      }
+    }
+  }
+
+  /**
+   * Checks that comparisons against cached baselines produce exactly the same differences, also
+   * when caches of the same directory store the same entry concurrently.
+   */
+  public void testCompareBaselineCache() throws Exception {
+    File dir = Files.createTempDirectory("pyramids").toFile();
+    try {
+      for (PerceptualDiff.PyramidType type : PerceptualDiff.PyramidType.values()) {
+        PerceptualDiff pd = new PerceptualDiff.Builder().setPyramidType(type).build();
+        PerceptualDiff pdCached = new PerceptualDiff.Builder().setPyramidType(type)
+            .setBaselineCache(new PyramidCache(dir, Long.MAX_VALUE)).build();
+        for (int i = 0; i < 2; i++) {
+          assertSameDiff(pd, pdCached, "fish2.png", "fish1.png");
+          assertSameDiff(pd, pdCached, "Bug1102605_ref.png", "Bug1102605.png");
+        }
+      }
+      int entries = 0;
+      for (String name : dir.list()) {
+        if (name.endsWith(".pyr")) {
+          entries++;
+        } else {
+          assertEquals("cache.lock", name);
+        }
+      }
+      assertEquals(4, entries);
+
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      final PerceptualDiff pd = new PerceptualDiff.Builder().build();
+      final BufferedImage imgA = read("fish2.png");
+      final BufferedImage imgB = read("fish1.png");
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (int i = 0; i < 4; i++) {
+          final PerceptualDiff pdCached = new PerceptualDiff.Builder()
+              .setBaselineCache(new PyramidCache(dir, Long.MAX_VALUE)).build();
+          tasks.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+              assertSameDiff(pd, pdCached, imgA, imgB);
+              return null;
+            }
+          }));
+        }
+        for (Future<?> task : tasks) {
+          task.get();
+        }
+      } finally {
+        executor.shutdown();
+      }
+      assertEquals(2, dir.list().length);
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  /**
+   * Checks that tiled comparison produces exactly the same differences as whole-image comparison.
+   */
+  public void testCompareTiled() throws IOException {
+    PerceptualDiff pd = new PerceptualDiff.Builder().build();
+    for (int tileSize : new int[] {64, 100}) {
+      PerceptualDiff pdTiled = new PerceptualDiff.Builder().setTileSize(tileSize).build();
+      assertSameDiff(pd, pdTiled, "fish2.png", "fish1.png");
+      assertSameDiff(pd, pdTiled, "Bug1102605_ref.png", "Bug1102605.png");
+      assertSameDiff(pd, pdTiled, "Bug1471457_ref.png", "Bug1471457.png");
+      assertSameDiff(pd, pdTiled, "cam_mb_ref.png", "cam_mb.png");
+    }
+  }
+
+  /**
+   * Checks that constructing pyramids in parallel bands produces exactly the same differences as
+   * constructing each pyramid in a single task.
+   */
+  public void testCompareBanded() throws IOException {
+    for (PerceptualDiff.PyramidType type : new PerceptualDiff.PyramidType[] {
+        PerceptualDiff.PyramidType.FULL, PerceptualDiff.PyramidType.COMPACT}) {
+      PerceptualDiff.Builder builder = new PerceptualDiff.Builder().setPyramidType(type)
+          .setSkipUnchanged(false);
+      PerceptualDiff pd = builder.setBandSize(0).build();
+      PerceptualDiff pdBanded = builder.setBandSize(1000).build();
+      assertSameDiff(pd, pdBanded, "fish2.png", "fish1.png");
+      assertSameDiff(pd, pdBanded, "cam_mb_ref.png", "cam_mb.png");
+    }
+  }
+
+  /**
+   * Checks that cascade comparison produces exactly the same differences, and that it skips the
+   * regions that clearly pass and stops when enough pixels clearly fail.
+   */
+  public void testCompareCascade() throws IOException {
+    PerceptualDiff pd = new PerceptualDiff.Builder().build();
+    PerceptualDiff pdCascade = new PerceptualDiff.Builder().setCascade(true).build();
+    assertSameDiff(pd, pdCascade, "fish2.png", "fish1.png");
+    assertSameDiff(pd, pdCascade, "Bug1102605_ref.png", "Bug1102605.png");
+    assertSameDiff(pd, pdCascade, "Bug1471457_ref.png", "Bug1471457.png");
+    assertSameDiff(pd, pdCascade, "cam_mb_ref.png", "cam_mb.png");
+    assertSameDiff(pd, new PerceptualDiff.Builder().setCascade(true).setBandSize(0).build(),
+        "cam_mb_ref.png", "cam_mb.png");
+    assertSameDiff(new PerceptualDiff.Builder().setLuminanceOnly(true).build(),
+        new PerceptualDiff.Builder().setLuminanceOnly(true).setCascade(true).build(),
+        "Aqsis_vase_ref.png", "Aqsis_vase.png");
+
+    ComparisonWorkspace workspace = new ComparisonWorkspace();
+    CompareResult result = pdCascade.compare(pool, workspace,
+        read("fish2.png"), read("fish1.png"), null);
+    assertFalse(result.isPassed());
+    assertEquals(0, result.getPixelsCompared());
+    result = pdCascade.compare(pool, workspace,
+        read("cam_mb_ref.png"), read("cam_mb.png"), null);
+    assertTrue(result.isPassed());
+    assertTrue(result.getPixelsCompared() < 320 * 240);
+
+    // a margin below 1 would let the coarse stage decide what the full comparison would not
+    for (double margin : new double[] {0.5, Double.NaN}) {
+      try {
+        new PerceptualDiff.Builder().setCascadeMargin(margin);
+        fail("Cascade margin " + margin + " accepted");
+      } catch (IllegalArgumentException expected) {
+        // expected
+      }
+    }
+  }
+
+  /**
+   * Checks that comparing only the regions that changed, with or without tiles, produces exactly
+   * the same differences as comparing the whole images.
+   */
+  public void testCompareChanged() throws IOException {
+    PerceptualDiff pd = new PerceptualDiff.Builder().setSkipUnchanged(false).build();
+    PerceptualDiff pdSkip = new PerceptualDiff.Builder().build();
+    PerceptualDiff pdSkipTiled = new PerceptualDiff.Builder().setTileSize(64).build();
+    BufferedImage imgA = read("fish2.png");
+    BufferedImage fish1 = read("fish1.png");
+    // change a small region, and a few pixels near the edges
+    BufferedImage imgB = read("fish2.png");
+    imgB.setRGB(150, 200, 60, 40, fish1.getRGB(150, 200, 60, 40, null, 0, 60), 0, 60);
+    imgB.setRGB(0, 0, 0xffffffff);
+    imgB.setRGB(imgB.getWidth() - 1, imgB.getHeight() - 1, 0xff000000);
+    assertSameDiff(pd, pdSkip, imgA, imgB);
+    assertSameDiff(pd, pdSkipTiled, imgA, imgB);
+    assertSameDiff(pd, pdSkip, read("Bug1471457_ref.png"), read("Bug1471457.png"));
+  }
+
+  /**
+   * Checks that pyramids stored outside the heap, in direct buffers or mapped scratch files,
+   * produce exactly the same differences as pyramids in the heap.
+   */
+  public void testCompareOffHeap() throws IOException {
+    File dir = Files.createTempDirectory("scratch").toFile();
+    try {
+      PerceptualDiff pd = new PerceptualDiff.Builder().setSkipUnchanged(false).build();
+      PerceptualDiff pdDirect =
+          new PerceptualDiff.Builder().setSkipUnchanged(false).setOffHeap(true).build();
+      PerceptualDiff pdMapped = new PerceptualDiff.Builder().setSkipUnchanged(false)
+          .setOffHeap(true).setScratchDirectory(dir).build();
+      for (PerceptualDiff pdOffHeap : new PerceptualDiff[] {pdDirect, pdMapped}) {
+        assertSameDiff(pd, pdOffHeap, "fish2.png", "fish1.png");
+        assertSameDiff(pd, pdOffHeap, "Bug1102605_ref.png", "Bug1102605.png");
+        assertSameDiff(pd, pdOffHeap, "cam_mb_ref.png", "cam_mb.png");
+        assertSameFileDiff(pd, pdOffHeap, file("Bug1471457_ref.png"), file("Bug1471457.png"));
+      }
+      assertTrue(compare(new PerceptualDiff.Builder().setOffHeap(true).build(),
+          "fish1.png", "fish1.png"));
+      assertEquals(0, dir.list().length);
+
+      // scratch files that cannot be created fail the comparison
+      PerceptualDiff pdMissing = new PerceptualDiff.Builder().setSkipUnchanged(false)
+          .setOffHeap(true).setScratchDirectory(new File(dir, "missing")).build();
+      try {
+        pdMissing.compare(pool, new ComparisonWorkspace(), read("fish2.png"), read("fish1.png"),
+            null);
+        fail();
+      } catch (IOException expected) {
+        // expected
+      }
+
+      // pixels are indexed with an int
+      assertEquals(Integer.MAX_VALUE, PerceptualDiff.pixels(Integer.MAX_VALUE, 1));
+      try {
+        PerceptualDiff.pixels(1 << 16, 1 << 15);
+        fail();
+      } catch (IllegalArgumentException expected) {
+        // expected
+      }
+      try {
+        new ComparisonWorkspace(1 << 16, 1 << 15);
+        fail();
+      } catch (IllegalArgumentException expected) {
+        // expected
+      }
+
+      // values that span chunks
+      OffHeapFloats floats = new OffHeapFloats(100, dir, 4);
+      float[] values = new float[90];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = i;
+      }
+      floats.put(5, values, 0, values.length);
+      float[] copy = new float[values.length];
+      floats.get(5, copy, 0, copy.length);
+      assertTrue(Arrays.equals(values, copy));
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  /**
+   * Checks that decoding files straight into the comparison gives the same results as comparing
+   * the decoded images.
+   */
+  public void testCompareFiles() throws IOException {
+    PerceptualDiff pd = new PerceptualDiff.Builder().setSkipUnchanged(false).build();
+    PerceptualDiff pdBanded = new PerceptualDiff.Builder().setSkipUnchanged(false)
+        .setBandSize(1000).build();
+    PerceptualDiff pdSerial = new PerceptualDiff.Builder().setSkipUnchanged(false)
+        .setBandSize(0).build();
+    PerceptualDiff pdCascade = new PerceptualDiff.Builder().setCascade(true).build();
+    PerceptualDiff pdTiled = new PerceptualDiff.Builder().setTileSize(64).build();
+    PerceptualDiff pdChanged = new PerceptualDiff.Builder().build();
+    String[][] pairs = {{"fish2.png", "fish1.png"}, {"Bug1102605_ref.png", "Bug1102605.png"},
+        {"Aqsis_vase_ref.png", "Aqsis_vase.png"}, {"cam_mb_ref.png", "cam_mb.png"}};
+    for (String[] pair : pairs) {
+      assertSameFileDiff(pd, pd, file(pair[0]), file(pair[1]));
+      // changed regions are copied from the images converted while decoding
+      assertSameFileDiff(pdChanged, pdChanged, file(pair[0]), file(pair[1]));
+      assertSameFileDiff(pd, pdBanded, file(pair[0]), file(pair[1]));
+      assertSameFileDiff(pd, pdSerial, file(pair[0]), file(pair[1]));
+      assertSameFileDiff(pd, pdCascade, file(pair[0]), file(pair[1]));
+      assertSameFileDiff(pd, pdTiled, file(pair[0]), file(pair[1]));
+    }
+    // the difference image can be created once the files are decoded
+    BufferedImage imgA = read("cam_mb_ref.png");
+    int w = imgA.getWidth();
+    int h = imgA.getHeight();
+    BufferedImage expectedDiff = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    pd.compare(pool, new ComparisonWorkspace(), imgA, read("cam_mb.png"), expectedDiff);
+    BufferedImage createdDiff = pd.compareWithDiff(pool, new ComparisonWorkspace(),
+        file("cam_mb_ref.png"), file("cam_mb.png")).getDiffImage();
+    assertTrue(Arrays.equals(expectedDiff.getRGB(0, 0, w, h, null, 0, w),
+        createdDiff.getRGB(0, 0, w, h, null, 0, w)));
+    // a gray image is decoded as usual and then copied
+    BufferedImage gray = new BufferedImage(64, 48, BufferedImage.TYPE_BYTE_GRAY);
+    gray.getGraphics().drawImage(read("fish1.png"), 0, 0, null);
+    File grayFile = File.createTempFile("gray", ".png");
+    try {
+      ImageIO.write(gray, "png", grayFile);
+      assertSameFileDiff(pd, pd, grayFile, grayFile);
+      assertTrue(pd.compare(pool, new ComparisonWorkspace(), grayFile, grayFile, null)
+          .isPassed());
+    } finally {
+      grayFile.delete();
+    }
+    try {
+      pd.compare(pool, new ComparisonWorkspace(), file("fish1.png"), new File("missing.png"),
+          null);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // expected
+    }
+  }
+
+  /**
+   * Checks that asynchronous comparisons give the same results as blocking ones, notify their
+   * listeners, report decoding failures, and can be cancelled.
+   */
+  public void testCompareAsync() throws Exception {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      PerceptualDiff pd = new PerceptualDiff.Builder().build();
+      CompareResult expected = pd.compare(pool, new ComparisonWorkspace(), read("fish2.png"),
+          read("fish1.png"), null);
+      CompareFuture future = pd.compareAsync(pool, executor, read("fish2.png"),
+          read("fish1.png"), null);
+      final CountDownLatch listened = new CountDownLatch(1);
+      future.addListener(new Runnable() {
+        @Override
+        public void run() {
+          listened.countDown();
+        }
+      }, executor);
+      assertEquals(expected.getPixelsFailed(), future.get().getPixelsFailed());
+      assertTrue(listened.await(10, TimeUnit.SECONDS));
+
+      CompareResult result = pd.compareAsync(pool, executor, file("fish2.png"),
+          file("fish1.png"), null).get();
+      assertEquals(expected.isPassed(), result.isPassed());
+      assertEquals(expected.getPixelsFailed(), result.getPixelsFailed());
+      try {
+        pd.compareAsync(pool, executor, file("fish1.png"), new File("missing.png"), null).get();
+        fail("Expected ExecutionException");
+      } catch (ExecutionException expectedEx) {
+        assertTrue(expectedEx.getCause() instanceof IOException);
+      }
+
+      BufferedImage noise = new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_RGB);
+      Random random = new Random(3);
+      for (int y = 0; y < noise.getHeight(); y++) {
+        for (int x = 0; x < noise.getWidth(); x++) {
+          noise.setRGB(x, y, random.nextInt());
+        }
+      }
+      future = new PerceptualDiff.Builder().setSkipUnchanged(false).build()
+          .compareAsync(pool, executor, noise,
+              new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_RGB), null);
+      future.cancel(false);
+      assertTrue(future.isCancelled());
+      try {
+        future.get();
+        fail("Expected CancellationException");
+      } catch (CancellationException expectedEx) {
+        // expected
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Checks that the failure map marks the same pixels as the difference image, whichever way the
+   * images are compared, and that its tiles and regions account for every failure.
+   */
+  public void testFailureMap() throws IOException {
+    PerceptualDiff.Builder[] builders = {
+        new PerceptualDiff.Builder().setSkipUnchanged(false),
+        new PerceptualDiff.Builder(),
+        new PerceptualDiff.Builder().setCascade(true),
+        new PerceptualDiff.Builder().setTileSize(64)};
+    String[][] pairs = {{"fish2.png", "fish1.png"}, {"Bug1102605_ref.png", "Bug1102605.png"},
+        {"cam_mb_ref.png", "cam_mb.png"}};
+    for (PerceptualDiff.Builder builder : builders) {
+      PerceptualDiff pd = builder.setFailureMap(true).build();
+      for (String[] pair : pairs) {
+        BufferedImage imgA = read(pair[0]);
+        int w = imgA.getWidth();
+        int h = imgA.getHeight();
+        BufferedImage imgDiff = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        CompareResult result = pd.compare(pool, new ComparisonWorkspace(), imgA, read(pair[1]),
+            imgDiff);
+        FailureMap map = result.getFailureMap();
+        assertEquals(result.getPixelsFailed(), map.getFailedCount());
+        int[] diff = imgDiff.getRGB(0, 0, w, h, null, 0, w);
+        int tileSum = 0;
+        for (int row = 0; row < map.getTileRows(); row++) {
+          for (int column = 0; column < map.getTileColumns(); column++) {
+            tileSum += map.getTileFailures(column, row);
+          }
+        }
+        assertEquals(map.getFailedCount(), tileSum);
+        for (int y = 0; y < h; y++) {
+          for (int x = 0; x < w; x++) {
+            boolean failed = diff[y * w + x] != PerceptualDiff.Comparison.COLOR_PASS;
+            assertEquals(failed, map.isFailed(x, y));
+            if (failed) {
+              boolean inRegion = false;
+              for (Rectangle region : map.getRegions()) {
+                inRegion |= region.contains(x, y);
+              }
+              assertTrue(inRegion);
+            }
+          }
+        }
+      }
+    }
+    // identical images have an empty map
+    FailureMap map = new PerceptualDiff.Builder().setFailureMap(true).build()
+        .compare(pool, new ComparisonWorkspace(), read("fish1.png"), read("fish1.png"), null)
+        .getFailureMap();
+    assertEquals(0, map.getFailedCount());
+    assertTrue(map.getRegions().isEmpty());
+  }
+
+  /**
+   * Checks that the indexed PNG written from a failure map decodes to the difference image,
+   * whether it is deflated in one chunk or many, and that an overview keeps every failure.
+   */
+  public void testDiffWriter() throws IOException {
+    BufferedImage imgA = read("cam_mb_ref.png");
+    int w = imgA.getWidth();
+    int h = imgA.getHeight();
+    BufferedImage imgDiff = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    FailureMap map = new PerceptualDiff.Builder().setSkipUnchanged(false).setFailureMap(true)
+        .build().compare(pool, new ComparisonWorkspace(), imgA, read("cam_mb.png"), imgDiff)
+        .getFailureMap();
+    assertTrue(map.getFailedCount() > 0);
+    int[] expected = imgDiff.getRGB(0, 0, w, h, null, 0, w);
+    File file = File.createTempFile("diff", ".png");
+    try {
+      for (int chunkBytes : new int[] {1, 1000, DiffWriter.CHUNK_BYTES}) {
+        DiffWriter.write(map.getFailedPixels(), w, h, file, pool, chunkBytes);
+        BufferedImage img = ImageIO.read(file);
+        assertTrue(Arrays.equals(expected, img.getRGB(0, 0, w, h, null, 0, w)));
+      }
+
+      DiffWriter.write(map, file, 3, pool);
+      BufferedImage overview = ImageIO.read(file);
+      assertEquals((w + 7) / 8, overview.getWidth());
+      assertEquals((h + 7) / 8, overview.getHeight());
+      for (int y = 0; y < h; y++) {
+        for (int x = 0; x < w; x++) {
+          if (map.isFailed(x, y)) {
+            assertTrue(overview.getRGB(x / 8, y / 8) != PerceptualDiff.Comparison.COLOR_PASS);
+          }
+        }
+      }
+      File sidecar = new File(file.getPath() + ".json");
+      try {
+        String json = new String(Files.readAllBytes(sidecar.toPath()), "UTF-8");
+        assertTrue(json.startsWith(String.format("{\"width\":%d,\"height\":%d,\"scale\":8", w, h)));
+      } finally {
+        sidecar.delete();
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Checks that comparisons report where their time went and how much work they did, and that
+   * the statistics of the process accumulate them.
+   */
+  public void testMetrics() throws Exception {
+    assertNotNull(CompareStats.INSTANCE); // registers the statistics
+    CompareStatsMXBean stats = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+        new ObjectName(CompareStats.OBJECT_NAME), CompareStatsMXBean.class);
+    long comparisons = stats.getComparisons();
+    long failures = stats.getFailures();
+
+    PerceptualDiff pd = new PerceptualDiff.Builder().setSkipUnchanged(false).build();
+    BufferedImage imgA = read("fish2.png");
+    int dim = imgA.getWidth() * imgA.getHeight();
+    CompareMetrics metrics = pd.compare(pool, new ComparisonWorkspace(), imgA,
+        read("fish1.png"), null).getMetrics();
+    assertEquals(dim, metrics.getPixels());
+    assertEquals(dim, metrics.getPixelsEvaluated());
+    assertEquals(0, metrics.getPixelsSkipped());
+    assertEquals(-1, metrics.getBytesAllocated());
+    long stages = 0;
+    for (CompareMetrics.Stage stage : CompareMetrics.Stage.values()) {
+      stages += metrics.getNanos(stage);
+    }
+    assertTrue(metrics.getNanos(CompareMetrics.Stage.PYRAMID) > 0);
+    assertTrue(metrics.getNanos(CompareMetrics.Stage.COMPARE) > 0);
+    assertEquals(0, metrics.getNanos(CompareMetrics.Stage.DECODE));
+    assertTrue(stages <= metrics.getTotalNanos());
+
+    // failing fast skips pixels
+    metrics = new PerceptualDiff.Builder().setSkipUnchanged(false).setFailFast(true)
+        .setThresholdPixels(10).build()
+        .compare(pool, new ComparisonWorkspace(), imgA, read("fish1.png"), null).getMetrics();
+    assertTrue(metrics.getPixelsEvaluated() < dim);
+
+    // skipping unchanged regions evaluates only the changed pixels and their surroundings
+    metrics = new PerceptualDiff.Builder().build().compare(pool, new ComparisonWorkspace(),
+        read("cam_mb_ref.png"), read("cam_mb.png"), null).getMetrics();
+    assertTrue(metrics.getPixelsSkipped() > 0);
+
+    assertEquals(comparisons + 3, stats.getComparisons());
+    assertEquals(failures + 2, stats.getFailures());
+    assertEquals(CompareMetrics.Stage.values().length, stats.getStageHistograms().length);
+  }
+
+  /**
+   * Checks that down sampling averages each block of pixels, whether the image is read or already
+   * decoded, and that comparisons of down sampled images match comparisons of reduced copies.
+   */
+  public void testDownSample() throws IOException {
+    BufferedImage img = new BufferedImage(5, 3, BufferedImage.TYPE_INT_ARGB);
+    int[] pixels = new int[15];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = (0xff - i) << 24 | (i * 16) << 16 | (i * 8) << 8 | i;
+    }
+    img.setRGB(0, 0, 5, 3, pixels, 0, 5);
+    BufferedImage reduced = Pixels.downSample(img, 1, new int[6], false);
+    assertEquals(3, reduced.getWidth());
+    assertEquals(2, reduced.getHeight());
+    // a full block, a block of one column, and a block of one pixel
+    assertEquals(0xfc301803, reduced.getRGB(0, 0));
+    assertEquals(0xf9683407, reduced.getRGB(2, 0));
+    assertEquals(0xf1e0700e, reduced.getRGB(2, 1));
+    int[] rgb = Arrays.copyOf(pixels, pixels.length);
+    assertTrue(Arrays.equals(reduced.getRGB(0, 0, 3, 2, null, 0, 3),
+        Pixels.downSample(img, 1, rgb, true).getRGB(0, 0, 3, 2, null, 0, 3)));
+
+    assertEquals(2, Pixels.reduced(Integer.MAX_VALUE, PerceptualDiff.MAX_DOWN_SAMPLE));
+    for (int n : new int[] {-1, PerceptualDiff.MAX_DOWN_SAMPLE + 1}) {
+      try {
+        new PerceptualDiff.Builder().setDownSample(n);
+        fail("Down sample " + n + " accepted");
+      } catch (IllegalArgumentException expected) {
+        // expected
+      }
+    }
+
+    PerceptualDiff pd = new PerceptualDiff.Builder().build();
+    PerceptualDiff pdDownSample = new PerceptualDiff.Builder().setDownSample(1).build();
+    String[][] pairs = {{"fish2.png", "fish1.png"}, {"cam_mb_ref.png", "cam_mb.png"}};
+    for (String[] pair : pairs) {
+      BufferedImage imgA = read(pair[0]);
+      BufferedImage imgB = read(pair[1]);
+      BufferedImage reducedA = Pixels.downSample(imgA, 1,
+          new int[Pixels.reduced(imgA.getWidth(), 1) * Pixels.reduced(imgA.getHeight(), 1)],
+          false);
+      BufferedImage reducedB = Pixels.downSample(imgB, 1,
+          new int[Pixels.reduced(imgB.getWidth(), 1) * Pixels.reduced(imgB.getHeight(), 1)],
+          false);
+      int w = reducedA.getWidth();
+      int h = reducedA.getHeight();
+      BufferedImage expectedDiff = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+      BufferedImage actualDiff = pdDownSample.createDiffImage(imgA.getWidth(), imgA.getHeight());
+      BufferedImage fileDiff = pdDownSample.createDiffImage(imgA.getWidth(), imgA.getHeight());
+      CompareResult expected = pd.compare(pool, new ComparisonWorkspace(), reducedA, reducedB,
+          expectedDiff);
+      CompareResult actual = pdDownSample.compare(pool, new ComparisonWorkspace(), imgA, imgB,
+          actualDiff);
+      CompareResult decoded = pdDownSample.compare(pool, new ComparisonWorkspace(),
+          file(pair[0]), file(pair[1]), fileDiff);
+      for (CompareResult result : new CompareResult[] {actual, decoded}) {
+        assertEquals(expected.isPassed(), result.isPassed());
+        assertEquals(expected.getPixelsFailed(), result.getPixelsFailed());
+      }
+      int[] expectedPixels = expectedDiff.getRGB(0, 0, w, h, null, 0, w);
+      assertTrue(Arrays.equals(expectedPixels, actualDiff.getRGB(0, 0, w, h, null, 0, w)));
+      assertTrue(Arrays.equals(expectedPixels, fileDiff.getRGB(0, 0, w, h, null, 0, w)));
+    }
+  }
+
+  /**
+   * Checks the content hash against known XXH64 values, and that a batch with a hash manifest
+   * passes candidates identical to their baselines without comparing them.
+   */
+  public void testHashManifest() throws IOException, InterruptedException {
+    assertEquals(0xEF46DB3751D8E999L, new ContentHash().digest());
+    assertEquals(0x44BC2CF5AD770999L,
+        new ContentHash().update(ByteBuffer.wrap("abc".getBytes("US-ASCII"))).digest());
+    byte[] bytes = new byte[1000];
+    new Random(1).nextBytes(bytes);
+    ContentHash split = new ContentHash();
+    for (int offset = 0; offset < bytes.length; offset += 77) {
+      split.update(ByteBuffer.wrap(bytes, offset, Math.min(77, bytes.length - offset)));
+    }
+    assertEquals(new ContentHash().update(ByteBuffer.wrap(bytes)).digest(), split.digest());
+
+    File dir = Files.createTempDirectory("hashes").toFile();
+    File dirA = new File(dir, "a");
+    File dirB = new File(dir, "b");
+    try {
+      assertTrue(dirA.mkdir() && dirB.mkdir());
+      for (String name : new String[] {"same.png", "reencoded.png", "different.png"}) {
+        Files.copy(file("fish1.png").toPath(), new File(dirA, name).toPath());
+      }
+      Files.copy(file("fish1.png").toPath(), new File(dirB, "same.png").toPath());
+      ImageIO.write(read("fish1.png"), "png", new File(dirB, "reencoded.png"));
+      Files.copy(file("fish2.png").toPath(), new File(dirB, "different.png").toPath());
+      File manifest = new File(dir, "hashes.txt");
+
+      // the first run records the hashes of the baselines, and the second uses them
+      for (int run = 0; run < 2; run++) {
+        HashManifest hashes = HashManifest.load(manifest);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PerceptualDiff pd = new PerceptualDiff.Builder().build();
+        assertEquals(1, new Batch(pd, pool, 0, hashes)
+            .run(Batch.walk(dirA, dirB, null), new PrintStream(out, true, "UTF-8")));
+        hashes.save();
+        String summary = out.toString("UTF-8");
+        assertEquals(run, summary.split("Files are identical", -1).length - 1);
+        assertEquals(2 - run, summary.split("Images are binary identical", -1).length - 1);
+        assertEquals(1, summary.split("\"FAIL\"", -1).length - 1);
+      }
+      assertEquals(3, Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8).size());
+    } finally {
+      for (File sub : new File[] {dirA, dirB}) {
+        for (File file : sub.listFiles()) {
+          file.delete();
+        }
+        sub.delete();
+      }
+      new File(dir, "hashes.txt").delete();
+      dir.delete();
+    }
+  }
+
+  /**
+   * Checks that comparing the frames of sequences, reusing the pyramid of each frame, gives the
+   * same results as comparing each pair on its own.
+   */
+  public void testFrameSequence() throws IOException {
+    File dir = Files.createTempDirectory("frames").toFile();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      String[] names = {"fish2.png", "fish1.png", "fish1.png", "fish2.png", "fish1.png"};
+      final List<File> frames = new ArrayList<File>();
+      for (int i = 0; i < names.length; i++) {
+        File frame = new File(dir, String.format("frame%02d.png", i));
+        Files.copy(file(names[i]).toPath(), frame.toPath());
+        frames.add(frame);
+      }
+      assertEquals(frames, FrameSequence.list(dir));
+
+      final PerceptualDiff pd = new PerceptualDiff.Builder().setSkipUnchanged(false).build();
+      FrameSequence sequence = new FrameSequence(pd, pool, executor, 2);
+      final List<Integer> compared = new ArrayList<Integer>();
+      FrameSequence.Listener listener = new FrameSequence.Listener() {
+        @Override
+        public void compared(int frame, File fileA, File fileB, CompareResult result) {
+          try {
+            assertEquals(pd.compare(pool, ImageIO.read(fileA), ImageIO.read(fileB), null),
+                result.isPassed());
+            assertEquals(pd.compare(pool, new ComparisonWorkspace(), fileA, fileB, null)
+                .getPixelsFailed(), result.getPixelsFailed());
+          } catch (IOException ex) {
+            throw new RuntimeException(ex);
+          }
+          compared.add(frame);
+        }
+      };
+      assertEquals(3, sequence.compareConsecutive(frames, listener));
+      assertEquals(Arrays.asList(1, 2, 3, 4), compared);
+
+      compared.clear();
+      List<File> reference = new ArrayList<File>(frames);
+      Collections.reverse(reference);
+      assertEquals(4, sequence.compareToReference(reference, frames.subList(0, 4), listener));
+      assertEquals(Arrays.asList(0, 1, 2, 3), compared);
+
+      // the pyramid of each frame is constructed once, with the default builder too, and
+      // identical frames construct none but leave the pyramid of the second for the next
+      final List<Integer> constructed = new ArrayList<Integer>();
+      for (final PerceptualDiff pdReused : new PerceptualDiff[] {
+          new PerceptualDiff.Builder().build(),
+          new PerceptualDiff.Builder().setDownSample(1).build()}) {
+        constructed.clear();
+        FrameSequence.Listener counter = new FrameSequence.Listener() {
+          @Override
+          public void compared(int frame, File fileA, File fileB, CompareResult result) {
+            try {
+              assertEquals(pdReused.compare(pool, new ComparisonWorkspace(), fileA, fileB, null)
+                  .getPixelsFailed(), result.getPixelsFailed());
+            } catch (IOException ex) {
+              throw new RuntimeException(ex);
+            }
+            constructed.add(result.getMetrics().getPyramidsConstructed());
+          }
+        };
+        assertEquals(3, new FrameSequence(pdReused, pool, executor, 2)
+            .compareConsecutive(frames, counter));
+        assertEquals(Arrays.asList(2, 0, 1, 1), constructed);
+      }
+    } finally {
+      executor.shutdown();
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  /**
+   * Checks that a daemon runs command lines for clients with the exit status of the command line
+   * tool, resolving paths against the client's directory, and only for clients with its token.
+   */
+  public void testDaemon() throws IOException, InterruptedException, ExecutionException {
+    final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    final byte[] token = new byte[32];
+    new Random(7).nextBytes(token);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Daemon.serve(server, token);
+        } catch (IOException ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+    });
+    thread.start();
+    try {
+      final int port = server.getLocalPort();
+      final File dir = file("fish1.png").getParentFile();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ByteArrayOutputStream err = new ByteArrayOutputStream();
+      assertEquals(1, Daemon.request(port, token, dir, new String[] {"fish2.png", "fish1.png"},
+          out, err));
+      assertEquals("FAIL", out.toString("UTF-8").trim());
+      out.reset();
+      assertEquals(0, Daemon.request(port, token, dir,
+          new String[] {"cam_mb_ref.png", "cam_mb.png"}, out, err));
+      assertEquals("PASS", out.toString("UTF-8").trim());
+      assertEquals(0, err.size());
+      assertEquals(2, Daemon.request(port, token, dir, new String[] {"fish1.png"}, out, err));
+      assertTrue(err.toString("UTF-8").startsWith("Command parsing failed"));
+
+      // a client without the token is turned away
+      out.reset();
+      err.reset();
+      byte[] forged = token.clone();
+      forged[0]++;
+      assertEquals(2, Daemon.request(port, forged, dir,
+          new String[] {"cam_mb_ref.png", "cam_mb.png"}, out, err));
+      assertEquals(0, out.size());
+      assertTrue(err.toString("UTF-8").startsWith("Not authorized"));
+      if (!Daemon.tokenFile(port).exists()) {
+        try {
+          Daemon.request(port, dir, new String[] {"fish1.png"}, out, err);
+          fail();
+        } catch (ConnectException expected) {
+          // expected
+        }
+      }
+
+      // concurrent clients parse their own options
+      ExecutorService clients = Executors.newFixedThreadPool(4);
+      try {
+        List<Future<String>> outcomes = new ArrayList<Future<String>>();
+        final CountDownLatch ready = new CountDownLatch(1);
+        for (int i = 0; i < 8; i++) {
+          final String[] args = (i % 2 == 0)
+              ? new String[] {"-threshold", "1000000", "-fov", "45", "fish2.png", "fish1.png"}
+              : new String[] {"-gamma", "2.2", "fish2.png", "fish1.png"};
+          outcomes.add(clients.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+              ByteArrayOutputStream out = new ByteArrayOutputStream();
+              ByteArrayOutputStream err = new ByteArrayOutputStream();
+              ready.await();
+              int status = Daemon.request(port, token, dir, args, out, err);
+              return status + " " + out.toString("UTF-8").trim() + err.toString("UTF-8");
+            }
+          }));
+        }
+        ready.countDown();
+        for (int i = 0; i < outcomes.size(); i++) {
+          assertEquals((i % 2 == 0) ? "0 PASS" : "1 FAIL", outcomes.get(i).get());
+        }
+      } finally {
+        clients.shutdown();
+      }
+    } finally {
+      server.close();
+      thread.join();
+    }
+  }
+
+  /**
+   * Checks that the selected kernels, which are vectorized when the Vector API is available,
+   * produce exactly the same results as the scalar kernels.
+   */
+  public void testKernels() {
+    Kernels scalar = new Kernels();
+    Kernels selected = Kernels.INSTANCE;
+    Random random = new Random(1);
+
+    double[] lut = new double[256];
+    for (int i = 0; i < lut.length; i++) {
+      lut[i] = Math.pow(i / 255.0, 2.2);
+    }
+    int length = 1001;
+    int[] rgb = new int[length];
+    for (int i = 0; i < length; i++) {
+      rgb[i] = random.nextInt();
+    }
+    float[][] expected = new float[3][length];
+    float[][] actual = new float[3][length];
+    scalar.convert(lut, 100.0, rgb, expected[0], expected[1], expected[2], 0, length);
+    selected.convert(lut, 100.0, rgb, actual[0], actual[1], actual[2], 0, length);
+    assertTrue(Arrays.deepEquals(expected, actual));
+
+    int width = 37;
+    int height = 27;
+    float[] src = new float[width * height];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = random.nextFloat();
+    }
+    float[] expectedDst = new float[src.length];
+    float[] actualDst = new float[src.length];
+    scalar.convolveAndTranspose(src, expectedDst, width, height, 0, height);
+    selected.convolveAndTranspose(src, actualDst, width, height, 0, height);
+    assertTrue(Arrays.equals(expectedDst, actualDst));
+
+    // several tiles, partly covered
+    width = 150;
+    height = 131;
+    float[] bigSrc = new float[width * height];
+    for (int i = 0; i < bigSrc.length; i++) {
+      bigSrc[i] = random.nextFloat();
+    }
+    float[] expectedBig = new float[bigSrc.length];
+    scalar.convolveAndTransposeRows(bigSrc, expectedBig, width, height, 5, 120);
+    for (Kernels kernels : new Kernels[] {scalar, selected}) {
+      float[] rows = new float[bigSrc.length];
+      float[] blocked = new float[bigSrc.length];
+      kernels.convolveAndTransposeRows(bigSrc, rows, width, height, 5, 120);
+      kernels.convolveAndTransposeBlocked(bigSrc, blocked, width, height, 5, 120);
+      assertTrue(Arrays.equals(expectedBig, rows));
+      assertTrue(Arrays.equals(expectedBig, blocked));
+    }
+
+    int n = 61;
+    float[][] va = new float[PerceptualDiff.MAX_PYR_LEVELS][n];
+    float[][] vb = new float[PerceptualDiff.MAX_PYR_LEVELS][n];
+    for (int i = 0; i < va.length; i++) {
+      for (int k = 0; k < n; k++) {
+        va[i][k] = random.nextFloat() - 0.5f;
+        vb[i][k] = (k % 4 == 0) ? 0 : random.nextFloat() - 0.5f;
+      }
+    }
+    float[][] expectedContrast = new float[PerceptualDiff.MAX_PYR_LEVELS - 2][n];
+    float[][] actualContrast = new float[PerceptualDiff.MAX_PYR_LEVELS - 2][n];
+    float[] expectedSum = new float[n];
+    float[] actualSum = new float[n];
+    scalar.contrast(va, vb, n, expectedContrast, expectedSum);
+    selected.contrast(va, vb, n, actualContrast, actualSum);
+    assertTrue(Arrays.deepEquals(expectedContrast, actualContrast));
+    assertTrue(Arrays.equals(expectedSum, actualSum));
+
+    float[] values = new float[length];
+    for (int i = 0; i < length; i++) {
+      // normal, denormalized and overflowing half floats
+      values[i] = (float) (random.nextGaussian() * Math.scalb(1.0, random.nextInt(48) - 32));
+    }
+    short[] expectedHalf = new short[length];
+    short[] actualHalf = new short[length];
+    float[] expectedStored = new float[length];
+    float[] actualStored = new float[length];
+    for (boolean first : new boolean[] {true, false}) {
+      scalar.toHalf(values, expectedStored, first, 2f, 0x1p111f, expectedHalf, 0, length);
+      selected.toHalf(values, actualStored, first, 2f, 0x1p111f, actualHalf, 0, length);
+      assertTrue(Arrays.equals(expectedHalf, actualHalf));
+      assertTrue(Arrays.equals(expectedStored, actualStored));
+    }
+    scalar.fromHalf(expectedHalf, 3, values, 0x1p111f, expectedDst, n);
+    selected.fromHalf(expectedHalf, 3, values, 0x1p111f, actualDst, n);
+    assertTrue(Arrays.equals(expectedDst, actualDst));
+  }
+
+  /**
+   * Checks that compact pyramids store every half float exactly, and round other values to the
+   * nearest.
+   */
+  public void testCompactPyramid() {
+    int n = 1 << 16;
+    float[] values = new float[n];
+    for (int h = 0; h < n; h++) {
+      int exponent = (h >> 10) & 0x1f;
+      int mantissa = h & 0x3ff;
+      double magnitude = (exponent == 0) ? Math.scalb((double) mantissa, -24)
+          : (exponent == 0x1f) ? 0 : Math.scalb(1 + mantissa / 1024.0, exponent - 15);
+      values[h] = (float) (((h & 0x8000) != 0) ? -magnitude : magnitude);
+    }
+    // luminance 128 stores values unscaled
+    Pyramid.Compact pyramid =
+        new Pyramid.Compact(new ComparisonWorkspace.Planes(), n, 1, 128);
+    pyramid.storeLevel(0, values, new float[n], 0, n);
+    float[][] actual = new float[1][n];
+    pyramid.gather(0, 0, 0, n, actual);
+    assertTrue(Arrays.equals(values, actual[0]));
+
+    assertEquals(0x3c00, Kernels.toHalf(1f + 0x1p-11f)); // tie, to even
+    assertEquals(0x3c02, Kernels.toHalf(1f + 0x3p-11f)); // tie, to even
+    assertEquals(0x3c01, Kernels.toHalf(1f + 0x1p-11f + 0x1p-20f));
+    assertEquals(0x0400, Kernels.toHalf(0x1p-14f - 0x1p-26f)); // up to normal
+    assertEquals(0x7bff, Kernels.toHalf(65519f));
+    assertEquals(0x7c00, Kernels.toHalf(65520f));
+  }
+
+  /**
+   * Checks that pixels read directly from the raster are the same as those returned by getRGB.
+   */
+  public void testGetRGB() throws IOException {
+    int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+        BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_INT_BGR,
+        BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR,
+        BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY,
+        BufferedImage.TYPE_BYTE_INDEXED, BufferedImage.TYPE_BYTE_BINARY,
+        BufferedImage.TYPE_USHORT_565_RGB, BufferedImage.TYPE_USHORT_555_RGB};
+    Random random = new Random(2);
+    for (int type : types) {
+      BufferedImage img = new BufferedImage(37, 23, type);
+      WritableRaster raster = img.getRaster();
+      for (int y = 0; y < raster.getHeight(); y++) {
+        for (int x = 0; x < raster.getWidth(); x++) {
+          for (int b = 0; b < raster.getNumBands(); b++) {
+            int bits = raster.getSampleModel().getSampleSize(b);
+            raster.setSample(x, y, b, random.nextInt(1 << bits));
+          }
+        }
+      }
+      assertSameRGB(img);
+      assertSameRGB(img.getSubimage(3, 5, 29, 17));
+    }
+    assertSameRGB(read("fish1.png"));
+    assertSameRGB(read("cam_mb.png"));
+  }
+
+  private void assertSameRGB(BufferedImage img) {
+    int w = img.getWidth();
+    int h = img.getHeight();
+    assertTrue(Arrays.equals(img.getRGB(0, 0, w, h, null, 0, w),
+        Pixels.getRGB(img, 0, 0, w, h, null)));
+    assertTrue(Arrays.equals(img.getRGB(1, 2, w - 3, h - 5, null, 0, w - 3),
+        Pixels.getRGB(img, 1, 2, w - 3, h - 5, null)));
+  }
+
+  private void assertSameDiff(PerceptualDiff expected, PerceptualDiff actual,
+      String resName1, String resName2) throws IOException {
+    assertSameDiff(expected, actual, read(resName1), read(resName2));
+  }
+
+  private void assertSameDiff(PerceptualDiff expected, PerceptualDiff actual,
+      BufferedImage imgA, BufferedImage imgB) {
+    int w = imgA.getWidth();
+    int h = imgA.getHeight();
+    BufferedImage expectedDiff = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    BufferedImage actualDiff = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    assertEquals(expected.compare(pool, imgA, imgB, expectedDiff),
+        actual.compare(pool, imgA, imgB, actualDiff));
+    assertTrue(Arrays.equals(expectedDiff.getRGB(0, 0, w, h, null, 0, w),
+        actualDiff.getRGB(0, 0, w, h, null, 0, w)));
+  }
+
+  private void assertSameFileDiff(PerceptualDiff expected, PerceptualDiff actual,
+      File fileA, File fileB) throws IOException {
+    BufferedImage imgA = ImageIO.read(fileA);
+    int w = imgA.getWidth();
+    int h = imgA.getHeight();
+    BufferedImage expectedDiff = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    BufferedImage actualDiff = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    CompareResult expectedResult = expected.compare(pool, new ComparisonWorkspace(), imgA,
+        ImageIO.read(fileB), expectedDiff);
+    CompareResult actualResult = actual.compare(pool, new ComparisonWorkspace(), fileA, fileB,
+        actualDiff);
+    assertEquals(expectedResult.isPassed(), actualResult.isPassed());
+    assertEquals(expectedResult.getPixelsFailed(), actualResult.getPixelsFailed());
+    assertTrue(Arrays.equals(expectedDiff.getRGB(0, 0, w, h, null, 0, w),
+        actualDiff.getRGB(0, 0, w, h, null, 0, w)));
+  }
+
   private boolean compare(PerceptualDiff pd, String resName1, String resName2) throws IOException {
-    BufferedImage imgA = ImageIO.read(getClass().getClassLoader().getResourceAsStream(resName1));
-    BufferedImage imgB = ImageIO.read(getClass().getClassLoader().getResourceAsStream(resName2));
-    return pd.compare(pool, imgA, imgB, null);
+    return pd.compare(pool, read(resName1), read(resName2), null);
+  }
+
+  private boolean compare(PerceptualDiff pd, ComparisonWorkspace workspace,
+      String resName1, String resName2) throws IOException {
+    return pd.compare(pool, workspace, read(resName1), read(resName2), null).isPassed();
+  }
+
+  private File file(String resName) throws IOException {
+    try {
+      return new File(getClass().getClassLoader().getResource(resName).toURI());
+    } catch (URISyntaxException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  private BufferedImage read(String resName) throws IOException {
+    return ImageIO.read(getClass().getClassLoader().getResourceAsStream(resName));
   }
 }